@@ -0,0 +1,91 @@
+package lateral.lang;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * swap! under contention: every thread increments the same atom with a compiled Lisp function.
+ * The baseline does the same update under a lock. Compare the scores of each thread count.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlateral.interpreter=false")
+public class AtomBenchmark {
+    static final class Locked {
+        private Object value;
+
+        Locked(Object value) {
+            this.value = value;
+        }
+
+        synchronized Object swap(Function function) {
+            value = function.invoke1(value);
+            return value;
+        }
+    }
+
+    Function increment;
+    Atom atom;
+    Locked locked;
+
+    @Setup
+    public void setup() throws IOException {
+        Benchmarks.loadCore();
+        increment = Benchmarks.define("(defun atom-bench-inc (x) (+ x 1))");
+        atom = new Atom(0);
+        locked = new Locked(0);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object atom1() {
+        return atom.swap(increment);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public Object atom2() {
+        return atom.swap(increment);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object atom4() {
+        return atom.swap(increment);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Object atomMax() {
+        return atom.swap(increment);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object synchronized1() {
+        return locked.swap(increment);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public Object synchronized2() {
+        return locked.swap(increment);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object synchronized4() {
+        return locked.swap(increment);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public Object synchronizedMax() {
+        return locked.swap(increment);
+    }
+}
@@ -0,0 +1,40 @@
+package lateral.lang;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Shared setup of the benchmarks. They live in lateral.lang so they can reach package private
+ * parts of the compiler, and run from the project root so that src/lisp can be found.
+ */
+final class Benchmarks {
+    static final String CORE = "./src/lisp/core.lisp";
+    static final String FRACTAL = "./src/lisp/fractal.lisp";
+
+    private static boolean coreLoaded = false;
+
+    private Benchmarks() {}
+
+    /**
+     * Loads core.lisp once per JVM
+     */
+    static synchronized void loadCore() {
+        if(!coreLoaded) {
+            Compiler.load(CORE);
+            coreLoaded = true;
+        }
+    }
+
+    static String readFile(String path) throws IOException {
+        return Files.readString(Path.of(path));
+    }
+
+    /**
+     * @return The function defined by evaluating source, e.g. "(defun f (x) x)"
+     */
+    static Function define(String source) throws IOException {
+        Object form = LispReader.stringReader(source).readForm();
+        return (Function) Compiler.eval(form);
+    }
+}
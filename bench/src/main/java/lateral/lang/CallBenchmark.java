@@ -0,0 +1,67 @@
+package lateral.lang;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calling a compiled function through a linked call site, as compiled code does, versus
+ * through Function.invokeN, as calls of first class functions do, versus Function.apply
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlateral.interpreter=false")
+public class CallBenchmark {
+    Function inc;
+    Function list;
+    MethodHandle incSite;
+    MethodHandle listSite;
+    Object argument = 41;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        Benchmarks.loadCore();
+        inc = (Function) Environment.get(Symbol.makeSymbol("inc"));
+        list = (Function) Environment.get(Symbol.makeSymbol("list"));
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodType unary = MethodType.methodType(Object.class, Object.class);
+        incSite = Environment.dynamicFunction(lookup, "function", unary, "inc").dynamicInvoker();
+        listSite = Environment.dynamicFunction(lookup, "function", unary, "list").dynamicInvoker();
+    }
+
+    @Benchmark
+    public Object direct() throws Throwable {
+        return (Object) incSite.invokeExact(argument);
+    }
+
+    @Benchmark
+    public Object fixedArity() {
+        return inc.invoke1(argument);
+    }
+
+    @Benchmark
+    public Object apply() {
+        return inc.apply(argument);
+    }
+
+    @Benchmark
+    public Object directVarargs() throws Throwable {
+        return (Object) listSite.invokeExact(argument);
+    }
+
+    @Benchmark
+    public Object fixedArityVarargs() {
+        return list.invoke1(argument);
+    }
+
+    @Benchmark
+    public Object applyVarargs() {
+        return list.apply(argument);
+    }
+}
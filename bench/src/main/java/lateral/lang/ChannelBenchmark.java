@@ -0,0 +1,63 @@
+package lateral.lang;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A three stage pipeline over channels: a list is fed into a channel, two stages of compiled
+ * Lisp functions run with workers go blocks each, and the results are collected into a list.
+ * sequential applies the same functions in a loop, for the cost of the channels themselves.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlateral.interpreter=false")
+public class ChannelBenchmark {
+    static final int SIZE = 10000;
+
+    @Param({"1", "2", "4"})
+    int workers;
+
+    @Param({"1", "64"})
+    int buffer;
+
+    Sequence input;
+    Function parse;
+    Function transform;
+
+    @Setup
+    public void setup() throws IOException {
+        Benchmarks.loadCore();
+        Object[] values = new Object[SIZE];
+        for(int i = 0; i < SIZE; i ++) {
+            values[i] = i;
+        }
+        input = Sequence.makeList(values);
+        // a little work per value, so there is something to parallelize
+        Benchmarks.define("(defun chan-bench-work (x n) (if (< n 1) x (recur (+ (* x 31) n) (- n 1))))");
+        parse = Benchmarks.define("(defun chan-bench-parse (x) (chan-bench-work x 50))");
+        transform = Benchmarks.define("(defun chan-bench-transform (x) (chan-bench-work x 100))");
+    }
+
+    @Benchmark
+    public Sequence pipeline() {
+        Channel source = Channel.fromSequence(input, buffer);
+        Channel parsed = Channel.pipeline(workers, parse, source, new Channel(buffer));
+        Channel transformed = Channel.pipeline(workers, transform, parsed, new Channel(buffer));
+        return transformed.toSequence();
+    }
+
+    @Benchmark
+    public Object[] sequential() {
+        Object[] results = new Object[SIZE];
+        int i = 0;
+        for(Sequence rest = input; !rest.isEmpty(); rest = rest.rest()) {
+            results[i ++] = transform.invoke1(parse.invoke1(rest.first()));
+        }
+        return results;
+    }
+}
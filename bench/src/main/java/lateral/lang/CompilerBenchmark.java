@@ -0,0 +1,75 @@
+package lateral.lang;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of evaluating a definition and of its individual compilation phases
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompilerBenchmark {
+    static final String DEFUN = "(defun bench-fn (lst acc) "
+            + "(if (empty? lst) acc (recur (rest lst) (cons (* 2 (first lst)) acc))))";
+
+    Object form;
+    Sequence lambda;
+    Sequence[] trees;
+
+    @Setup
+    public void setup() throws IOException {
+        Benchmarks.loadCore();
+        form = LispReader.stringReader(DEFUN).readForm();
+        lambda = (Sequence) Compiler.macroExpand(form);
+
+        Compiler compiler = new Compiler();
+        compiler.compileLambda(lambda, null);
+        trees = new Sequence[compiler.classes.size()];
+        for(int i = 0; i < trees.length; i ++) {
+            trees[i] = compiler.classes.get(i).toTree();
+        }
+    }
+
+    /**
+     * Whatever eval does by default, i.e. interpret the defun
+     */
+    @Benchmark
+    public Object eval() {
+        return Compiler.eval(form);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dlateral.interpreter=false")
+    public Object evalCompiled() {
+        return Compiler.eval(form);
+    }
+
+    /**
+     * Codegen only, up to the Sequence trees of the classes
+     */
+    @Benchmark
+    public Object compileLambda() {
+        Compiler compiler = new Compiler();
+        compiler.compileLambda(lambda, null);
+        Object[] result = new Object[compiler.classes.size()];
+        for(int i = 0; i < result.length; i ++) {
+            result[i] = compiler.classes.get(i).toTree();
+        }
+        return result;
+    }
+
+    @Benchmark
+    public Object buildClass() {
+        byte[][] result = new byte[trees.length][];
+        for(int i = 0; i < trees.length; i ++) {
+            result[i] = Assembler.buildClass(trees[i]);
+        }
+        return result;
+    }
+}
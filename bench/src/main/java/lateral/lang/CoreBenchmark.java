@@ -0,0 +1,76 @@
+package lateral.lang;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Workloads written in lisp, mostly core.lisp functions. Each one is wrapped in a defun
+ * so that it tiers up like a hot function of a real program would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CoreBenchmark {
+    Function range;
+    Function map;
+    Function reverse;
+    Function algae;
+    Function countEven;
+    Function str;
+    Sequence numbers;
+
+    @Setup
+    public void setup() throws IOException {
+        Benchmarks.loadCore();
+        // defines the algae2 L-system
+        Compiler.load(Benchmarks.FRACTAL);
+        range = Benchmarks.define("(defun bench-range (n) (range 0 n))");
+        map = Benchmarks.define("(defun bench-map (lst) (map inc lst))");
+        reverse = Benchmarks.define("(defun bench-reverse (lst) (reverse lst))");
+        algae = Benchmarks.define("(defun bench-algae (n) (length (algae2 (list :a) n)))");
+        // comparisons and predicates in test position compile to conditional jumps
+        countEven = Benchmarks.define("(defun bench-count-even (n acc) " +
+                "(if (< n 1) acc (recur (- n 1) (if (even? n) (+ acc 1) acc))))");
+        // literals fold into the StringConcatFactory recipe, n and x are its arguments
+        str = Benchmarks.define("(defun bench-str (n x) (str \"n=\" n \", x=\" x \" (\" 1 \")\"))");
+        numbers = (Sequence) range.apply(1000);
+    }
+
+    @Benchmark
+    public Object range() {
+        return range.apply(1000);
+    }
+
+    @Benchmark
+    public Object map() {
+        return map.apply(numbers);
+    }
+
+    @Benchmark
+    public Object reverse() {
+        return reverse.apply(numbers);
+    }
+
+    @Benchmark
+    public Object countEven() {
+        return countEven.apply(1000, 0);
+    }
+
+    @Benchmark
+    public Object str() {
+        return str.apply(1000, 2.5);
+    }
+
+    /**
+     * 12 generations, 233 symbols at the end
+     */
+    @Benchmark
+    public Object algae2() {
+        return algae.apply(12);
+    }
+}
@@ -0,0 +1,54 @@
+package lateral.lang;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of starting another isolated program in a JVM that has already loaded core.lisp:
+ * a fresh environment, a few definitions and a call, then the environment is dropped.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EnvironmentBenchmark {
+    static final String PROGRAM = "(defun fib (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))\n" +
+            "(defun square (x) (* x x))\n" +
+            "(square (fib 10))";
+
+    int tenants = 0;
+    Environment previous;
+
+    @Setup
+    public void setup() {
+        Benchmarks.loadCore();
+        previous = Environment.current();
+    }
+
+    @TearDown
+    public void tearDown() {
+        Environment.setCurrent(previous);
+    }
+
+    @Benchmark
+    public Object tenant() throws IOException {
+        String name = "tenant" + tenants ++;
+        Environment.setCurrent(Environment.create(name));
+        try {
+            LispReader reader = LispReader.stringReader(PROGRAM);
+            Object result = null;
+            Object form;
+            while((form = reader.readForm()) != null) {
+                result = Compiler.eval(form);
+            }
+            return result;
+        } finally {
+            Environment.setCurrent(previous);
+            Environment.remove(name);
+        }
+    }
+}
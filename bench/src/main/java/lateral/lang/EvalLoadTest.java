@@ -0,0 +1,93 @@
+package lateral.lang;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test of EvalServer: many concurrent clients, each connecting, evaluating a small program
+ * and disconnecting, over and over. Reports requests per second and latency percentiles.
+ *
+ * Usage: EvalLoadTest [clients] [requests per client] [port]
+ * Without a port, a server is started in this JVM. A warmup round of a fifth of the requests
+ * runs first and isn't measured.
+ */
+public class EvalLoadTest {
+    static final String PROGRAM = "(defun fib (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))\n" +
+            "(fib 10)";
+
+    final int port;
+    final AtomicLong errors = new AtomicLong();
+
+    EvalLoadTest(int port) {
+        this.port = port;
+    }
+
+    /**
+     * @return Latency of every request in nanoseconds, including connecting
+     */
+    long[] run(int clients, int requests) throws Exception {
+        ExecutorService executor = VirtualThreads.newExecutor();
+        List<Future<long[]>> futures = new ArrayList<>();
+        for(int i = 0; i < clients; i ++) {
+            futures.add(executor.submit(() -> {
+                long[] latencies = new long[requests];
+                for(int j = 0; j < requests; j ++) {
+                    long start = System.nanoTime();
+                    try(EvalClient client = new EvalClient(port)) {
+                        client.eval(PROGRAM);
+                    } catch (IOException | RuntimeException e) {
+                        errors.incrementAndGet();
+                    }
+                    latencies[j] = System.nanoTime() - start;
+                }
+                return latencies;
+            }));
+        }
+        long[] all = new long[clients * requests];
+        for(int i = 0; i < clients; i ++) {
+            System.arraycopy(futures.get(i).get(), 0, all, i * requests, requests);
+        }
+        executor.shutdown();
+        return all;
+    }
+
+    static double percentile(long[] sorted, double fraction) {
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(index, 0)] / 1e3;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        EvalServer server = null;
+        int port;
+        if(args.length > 2) {
+            port = Integer.parseInt(args[2]);
+        } else {
+            Benchmarks.loadCore();
+            server = new EvalServer(0, Runtime.getRuntime().availableProcessors() * 2, 10000).start();
+            port = server.getPort();
+        }
+
+        EvalLoadTest test = new EvalLoadTest(port);
+        test.run(clients, Math.max(requests / 5, 1));
+        test.errors.set(0);
+
+        long start = System.nanoTime();
+        long[] latencies = test.run(clients, requests);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Arrays.sort(latencies);
+        System.out.printf("%d clients x %d requests: %d errors, %.2fs, %.0f requests/s%n",
+                clients, requests, test.errors.get(), seconds, latencies.length / seconds);
+        System.out.printf("latency us: p50 %.0f, p90 %.0f, p99 %.0f, p99.9 %.0f, max %.0f%n",
+                percentile(latencies, 0.5), percentile(latencies, 0.9), percentile(latencies, 0.99),
+                percentile(latencies, 0.999), latencies[latencies.length - 1] / 1e3);
+        if(server != null)
+            server.close();
+    }
+}
@@ -0,0 +1,85 @@
+package lateral.lang;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time taken by Environment's bootstrap methods to link call sites.
+ * core.lisp is compiled rather than interpreted, so the functions linked are generated classes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dlateral.interpreter=false")
+public class LinkBenchmark {
+    static final MethodType UNARY = MethodType.methodType(Object.class, Object.class);
+    static final MethodType VARARGS = MethodType.methodType(Object.class, Object.class, Object.class,
+            Object.class, Object.class);
+
+    MethodHandles.Lookup lookup;
+    // a call site for every function defined in core.lisp, with the arity of its first parameter list
+    String[] programNames;
+    MethodType[] programTypes;
+
+    @Setup
+    public void setup() throws IOException {
+        Benchmarks.loadCore();
+        lookup = MethodHandles.lookup();
+
+        ArrayList<String> names = new ArrayList<>();
+        ArrayList<MethodType> types = new ArrayList<>();
+        LispReader reader = LispReader.fileReader(Benchmarks.CORE);
+        Object form;
+        while((form = reader.readForm()) != null) {
+            if(form instanceof Sequence && Compiler.DEFUN.equals(((Sequence) form).first())) {
+                Sequence params = (Sequence) ((Sequence) form).third();
+                int arity = params.length();
+                for(Object param : params) {
+                    if(Compiler.REST.equals(param))
+                        arity = params.length() - 1;
+                }
+                names.add(((Sequence) form).second().toString());
+                types.add(MethodType.genericMethodType(arity));
+            }
+        }
+        programNames = names.toArray(new String[0]);
+        programTypes = types.toArray(new MethodType[0]);
+    }
+
+    /**
+     * Links one call of every function in core.lisp, like loading a program that uses all of them
+     */
+    @Benchmark
+    public void program(Blackhole blackhole) throws ReflectiveOperationException {
+        for(int i = 0; i < programNames.length; i ++) {
+            blackhole.consume(Environment.dynamicFunction(lookup, "function", programTypes[i], programNames[i]));
+        }
+    }
+
+    @Benchmark
+    public CallSite function() throws ReflectiveOperationException {
+        return Environment.dynamicFunction(lookup, "function", UNARY, "inc");
+    }
+
+    /**
+     * list only has a varargs invoke, so the call site also collects arguments into a Sequence
+     */
+    @Benchmark
+    public CallSite varargsFunction() throws ReflectiveOperationException {
+        return Environment.dynamicFunction(lookup, "function", VARARGS, "list");
+    }
+
+    @Benchmark
+    public CallSite object() {
+        return Environment.dynamicObject(lookup, "t", MethodType.methodType(Object.class), null);
+    }
+}
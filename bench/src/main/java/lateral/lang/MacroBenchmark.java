@@ -0,0 +1,69 @@
+package lateral.lang;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Macro expansion with and without MacroCache. The load benchmarks evaluate a file of
+ * cond, case and threading macro heavy functions that tier up after one call, so each
+ * function body is expanded by the interpreter and then again by the compiler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MacroBenchmark {
+    static final String FORM = "(cond (and (< x 0) (< y 0)) (->> x (+ y) (* 2)) "
+            + "(or (> x 10) (> y 10)) (case x 11 :eleven 12 :twelve :other) "
+            + ":else (-> x (+ 1) (* y)))";
+
+    String file;
+    Object form;
+
+    @Setup
+    public void setup() throws IOException {
+        Benchmarks.loadCore();
+        form = LispReader.stringReader(FORM).readForm();
+        file = "";
+        for(int i = 0; i < 20; i ++) {
+            file += "(defun macro-heavy" + i + " (x y) " + FORM + ")\n(macro-heavy" + i + " 1 2)\n";
+        }
+    }
+
+    @Benchmark
+    public Object expand() {
+        return Compiler.macroExpand(form);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dlateral.macroCache=0")
+    public Object expandUncached() {
+        return Compiler.macroExpand(form);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dlateral.tierup=1")
+    public void load(Blackhole blackhole) throws IOException {
+        loadFile(blackhole);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"-Dlateral.tierup=1", "-Dlateral.macroCache=0"})
+    public void loadUncached(Blackhole blackhole) throws IOException {
+        loadFile(blackhole);
+    }
+
+    private void loadFile(Blackhole blackhole) throws IOException {
+        // the reader makes new forms every time, like loading a file would
+        LispReader reader = LispReader.stringReader(file);
+        Object form;
+        while((form = reader.readForm()) != null) {
+            blackhole.consume(Compiler.eval(form));
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package lateral.lang;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How much the peephole pass saves on core.lisp: every defun and defmacro is compiled, and each
+ * of its classes assembled with and without Peephole.optimize. Prints the total bytecode and
+ * instruction counts, the rewrites of each rule and the functions that shrank the most.
+ *
+ * Usage: PeepholeReport [file], core.lisp by default. Other files are loaded after core.lisp.
+ */
+public class PeepholeReport {
+    record Saving(String name, int before, int after) {}
+
+    int classes = 0;
+    long bytesBefore = 0;
+    long bytesAfter = 0;
+    long instructionsBefore = 0;
+    long instructionsAfter = 0;
+    final Map<String, Long> hits = new LinkedHashMap<>();
+    final List<Saving> savings = new ArrayList<>();
+
+    void measure(String file) throws Exception {
+        LispReader reader = LispReader.fileReader(file);
+        Object form;
+        while((form = reader.readForm()) != null) {
+            Object ast = Compiler.macroExpand(form);
+            if(ast instanceof Sequence && (Compiler.DEFUN.equals(((Sequence) ast).first())
+                    || Compiler.DEFMACRO.equals(((Sequence) ast).first()))) {
+                Compiler compiler = new Compiler(reader);
+                compiler.compileLambda((Sequence) ast, null);
+                int before = 0;
+                int after = 0;
+                for(CompClass compClass : compiler.classes) {
+                    Sequence tree = compClass.toTree();
+                    Map<String, Long> hitsBefore = Peephole.getHits();
+                    Sequence optimized = Peephole.optimize(tree);
+                    Peephole.getHits().forEach((rule, count) ->
+                            hits.merge(rule, count - hitsBefore.get(rule), Long::sum));
+                    before += Assembler.buildClass(tree).length;
+                    after += Assembler.buildClass(optimized).length;
+                    instructionsBefore += instructions(tree);
+                    instructionsAfter += instructions(optimized);
+                    classes ++;
+                }
+                bytesBefore += before;
+                bytesAfter += after;
+                savings.add(new Saving(((Sequence) ast).second().toString(), before, after));
+            }
+            Compiler.eval(form, reader);
+        }
+    }
+
+    static int instructions(Sequence classTree) {
+        int count = 0;
+        for(Object member : classTree) {
+            if(member instanceof Sequence && Assembler.DEFMETHOD.equals(((Sequence) member).first())) {
+                // (defmethod name descriptor meta code...)
+                count += ((Sequence) member).length() - 4;
+            }
+        }
+        return count;
+    }
+
+    void print() {
+        System.out.printf("%d functions, %d classes%n", savings.size(), classes);
+        System.out.printf("bytecode:     %8d -> %8d bytes (%.1f%% smaller)%n",
+                bytesBefore, bytesAfter, 100.0 * (bytesBefore - bytesAfter) / bytesBefore);
+        System.out.printf("instructions: %8d -> %8d (%.1f%% fewer)%n",
+                instructionsBefore, instructionsAfter,
+                100.0 * (instructionsBefore - instructionsAfter) / instructionsBefore);
+        System.out.println("rewrites:");
+        hits.forEach((rule, count) -> System.out.printf("  %-16s %8d%n", rule, count));
+        System.out.println("most bytes saved:");
+        savings.stream()
+                .sorted((a, b) -> Integer.compare(b.before - b.after, a.before - a.after))
+                .limit(10)
+                .forEach(saving -> System.out.printf("  %-24s %6d -> %6d%n",
+                        saving.name, saving.before, saving.after));
+    }
+
+    public static void main(String[] args) throws Exception {
+        PeepholeReport report = new PeepholeReport();
+        if(args.length > 0) {
+            Compiler.load(Benchmarks.CORE);
+            report.measure(args[0]);
+        } else {
+            report.measure(Benchmarks.CORE);
+        }
+        report.print();
+    }
+}
@@ -0,0 +1,37 @@
+package lateral.lang;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parse throughput of the lisp source in src/lisp, one operation is a whole file
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReaderBenchmark {
+    @Param({Benchmarks.CORE, Benchmarks.FRACTAL})
+    String file;
+
+    String source;
+
+    @Setup
+    public void setup() throws IOException {
+        source = Benchmarks.readFile(file);
+    }
+
+    @Benchmark
+    public void lispReader(Blackhole blackhole) throws IOException {
+        LispReader reader = LispReader.stringReader(source);
+        Object form;
+        while((form = reader.readForm()) != null) {
+            blackhole.consume(form);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package lateral.lang;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Traversal of each Sequence implementation. One operation visits every element
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SequenceBenchmark {
+    // array: one ArraySequence, linked: conses, chunked: ArraySequences of 32 chained together
+    @Param({"array", "linked", "chunked"})
+    String implementation;
+
+    @Param({"1000"})
+    int size;
+
+    Sequence sequence;
+
+    @Setup
+    public void setup() {
+        Object[] values = new Object[size];
+        for(int i = 0; i < size; i ++) {
+            values[i] = i;
+        }
+        switch(implementation) {
+            case "array":
+                sequence = new ArraySequence(values);
+                break;
+            case "linked":
+                sequence = EmptySequence.EMPTY_SEQUENCE;
+                for(int i = size - 1; i >= 0; i --) {
+                    sequence = new LinkedList(values[i], sequence);
+                }
+                break;
+            case "chunked":
+                sequence = EmptySequence.EMPTY_SEQUENCE;
+                for(int end = size; end > 0; end -= 32) {
+                    int start = Math.max(end - 32, 0);
+                    Object[] chunk = new Object[end - start];
+                    System.arraycopy(values, start, chunk, 0, chunk.length);
+                    sequence = new ArraySequence(chunk, 0, sequence);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException(implementation);
+        }
+    }
+
+    @Benchmark
+    public void firstRest(Blackhole blackhole) {
+        for(Sequence s = sequence; !s.isEmpty(); s = s.rest()) {
+            blackhole.consume(s.first());
+        }
+    }
+
+    @Benchmark
+    public void iterator(Blackhole blackhole) {
+        for(Object value : sequence) {
+            blackhole.consume(value);
+        }
+    }
+
+    @Benchmark
+    public int length() {
+        return sequence.length();
+    }
+
+    @Benchmark
+    public Object nth() {
+        return sequence.nth(size - 1);
+    }
+}
@@ -0,0 +1,76 @@
+package lateral.lang;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Time from process start to the result of the first eval, starting from core.lisp or from an
+ * Image of it. Saves an image of core.lisp, then starts runs new JVMs of each kind and prints
+ * the median and best times. The JVM's own startup is included, it is the same for both.
+ *
+ * Usage: StartupTime [runs], 10 by default
+ */
+public class StartupTime {
+    static final String FORM = "(reverse '(1 2 3))";
+
+    // in the child JVM: StartupTime --child source|image-file
+    static void child(String from) throws Exception {
+        if("source".equals(from))
+            Compiler.load(Benchmarks.CORE);
+        else
+            Image.restore(from);
+        Object result = Compiler.eval(LispReader.stringReader(FORM).readForm());
+        long elapsed = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+        System.out.println(elapsed + " " + result);
+    }
+
+    static long[] run(String from, int runs, List<String> jvmArgs) throws Exception {
+        long[] times = new long[runs];
+        for(int i = 0; i < runs; i ++) {
+            List<String> command = new ArrayList<>();
+            command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+            command.addAll(jvmArgs);
+            command.addAll(List.of("-cp", System.getProperty("java.class.path"),
+                    StartupTime.class.getName(), "--child", from));
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            String line;
+            try(BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                line = reader.readLine();
+            }
+            if(process.waitFor() != 0 || line == null)
+                throw new RuntimeException("run from " + from + " failed: " + line);
+            times[i] = Long.parseLong(line.split(" ")[0]);
+        }
+        Arrays.sort(times);
+        return times;
+    }
+
+    static void print(String name, long[] times) {
+        System.out.printf("%-24s median %5d ms, best %5d ms%n", name, times[times.length / 2], times[0]);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length == 2 && "--child".equals(args[0])) {
+            child(args[1]);
+            return;
+        }
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        File image = File.createTempFile("core", ".image");
+        image.deleteOnExit();
+        Image.record(true);
+        Compiler.load(Benchmarks.CORE);
+        Image.save(image.getPath());
+        System.out.printf("image of core.lisp: %d bytes%n", Files.size(image.toPath()));
+
+        print("core.lisp, interpreter", run("source", runs, List.of()));
+        print("core.lisp, compiler", run("source", runs, List.of("-Dlateral.interpreter=false")));
+        print("image", run(image.getPath(), runs, List.of()));
+    }
+}
@@ -0,0 +1,302 @@
+package lateral.lang;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Map;
+
+/**
+ * Runtime support for the built in numeric operators.
+ * Numbers are boxed Integers, Longs or Doubles. Mixed operands are promoted to the
+ * wider of the two types (int -> long -> double) before the operation is applied.
+ *
+ * The primitive overloads are the fast paths installed by Bootstrapper.arithmetic,
+ * the Object overloads are the generic path used when a call site has seen too many
+ * operand types to specialise.
+ */
+public final class Arithmetic {
+    private Arithmetic() {}
+
+    static final int INT = 0;
+    static final int LONG = 1;
+    static final int DOUBLE = 2;
+
+    // operator symbol -> name of the implementing methods in this class
+    static final Map<Symbol, String> OPERATORS = Map.of(
+            Symbol.makeSymbol("+"), "add",
+            Symbol.makeSymbol("-"), "sub",
+            Symbol.makeSymbol("*"), "mul",
+            Symbol.makeSymbol("/"), "div",
+            Symbol.makeSymbol("<"), "lt",
+            Symbol.makeSymbol(">"), "gt",
+            Symbol.makeSymbol("<="), "le",
+            Symbol.makeSymbol(">="), "ge"
+    );
+
+    static boolean isOperator(Object symbol) {
+        return OPERATORS.containsKey(symbol);
+    }
+
+    static boolean isComparison(String operation) {
+        return operation.equals("lt") || operation.equals("gt")
+                || operation.equals("le") || operation.equals("ge");
+    }
+
+    /**
+     * @return INT, LONG or DOUBLE for boxed numbers, -1 for everything else (including null)
+     */
+    static int kindOf(Class<?> clazz) {
+        if(clazz == Integer.class)
+            return INT;
+        else if(clazz == Long.class)
+            return LONG;
+        else if(clazz == Double.class)
+            return DOUBLE;
+        return -1;
+    }
+
+    private static int kindOf(Object a, Object b) {
+        int left = a == null ? -1 : kindOf(a.getClass());
+        int right = b == null ? -1 : kindOf(b.getClass());
+        if(left == -1)
+            throw new TypeException(a + " is not a number");
+        if(right == -1)
+            throw new TypeException(b + " is not a number");
+        return Math.max(left, right);
+    }
+
+    private static Class<?> primitiveOf(int kind) {
+        switch(kind) {
+            case INT:
+                return int.class;
+            case LONG:
+                return long.class;
+            default:
+                return double.class;
+        }
+    }
+
+    /**
+     * Builds a handle of the given type that applies operation to operands of exactly
+     * the classes left and right, which must both be boxed numbers.
+     */
+    static MethodHandle fastPath(String operation, Class<?> left, Class<?> right, MethodType type)
+            throws NoSuchMethodException, IllegalAccessException {
+        Class<?> primitive = primitiveOf(Math.max(kindOf(left), kindOf(right)));
+        Class<?> returnType = isComparison(operation) ? boolean.class : primitive;
+        MethodHandle handle = MethodHandles.lookup().findStatic(Arithmetic.class, operation,
+                MethodType.methodType(returnType, primitive, primitive));
+        // unbox (and widen) the exact operand classes, then box the result
+        handle = handle.asType(MethodType.methodType(returnType, left, right));
+        return adaptReturn(handle, type);
+    }
+
+    /**
+     * Builds a handle of the given type that applies operation to any pair of numbers.
+     */
+    static MethodHandle genericPath(String operation, MethodType type)
+            throws NoSuchMethodException, IllegalAccessException {
+        Class<?> returnType = isComparison(operation) ? boolean.class : Object.class;
+        MethodHandle handle = MethodHandles.lookup().findStatic(Arithmetic.class, operation,
+                MethodType.methodType(returnType, Object.class, Object.class));
+        return adaptReturn(handle, type);
+    }
+
+    private static MethodHandle adaptReturn(MethodHandle handle, MethodType type)
+            throws NoSuchMethodException, IllegalAccessException {
+        if(handle.type().returnType() == boolean.class && type.returnType() != boolean.class) {
+            // comparisons produce t or nil when their result is used as a value
+            handle = MethodHandles.filterReturnValue(handle, MethodHandles.lookup().findStatic(
+                    Arithmetic.class, "truth", MethodType.methodType(Object.class, boolean.class)));
+        }
+        return handle.asType(type);
+    }
+
+    public static Object truth(boolean value) {
+        return value ? Boolean.TRUE : null;
+    }
+
+    public static int add(int a, int b) {
+        return a + b;
+    }
+
+    public static long add(long a, long b) {
+        return a + b;
+    }
+
+    public static double add(double a, double b) {
+        return a + b;
+    }
+
+    public static int sub(int a, int b) {
+        return a - b;
+    }
+
+    public static long sub(long a, long b) {
+        return a - b;
+    }
+
+    public static double sub(double a, double b) {
+        return a - b;
+    }
+
+    public static int mul(int a, int b) {
+        return a * b;
+    }
+
+    public static long mul(long a, long b) {
+        return a * b;
+    }
+
+    public static double mul(double a, double b) {
+        return a * b;
+    }
+
+    public static int div(int a, int b) {
+        return a / b;
+    }
+
+    public static long div(long a, long b) {
+        return a / b;
+    }
+
+    public static double div(double a, double b) {
+        return a / b;
+    }
+
+    public static boolean lt(int a, int b) {
+        return a < b;
+    }
+
+    public static boolean lt(long a, long b) {
+        return a < b;
+    }
+
+    public static boolean lt(double a, double b) {
+        return a < b;
+    }
+
+    public static boolean gt(int a, int b) {
+        return a > b;
+    }
+
+    public static boolean gt(long a, long b) {
+        return a > b;
+    }
+
+    public static boolean gt(double a, double b) {
+        return a > b;
+    }
+
+    public static boolean le(int a, int b) {
+        return a <= b;
+    }
+
+    public static boolean le(long a, long b) {
+        return a <= b;
+    }
+
+    public static boolean le(double a, double b) {
+        return a <= b;
+    }
+
+    public static boolean ge(int a, int b) {
+        return a >= b;
+    }
+
+    public static boolean ge(long a, long b) {
+        return a >= b;
+    }
+
+    public static boolean ge(double a, double b) {
+        return a >= b;
+    }
+
+    public static Object add(Object a, Object b) {
+        switch(kindOf(a, b)) {
+            case INT:
+                return add(((Number) a).intValue(), ((Number) b).intValue());
+            case LONG:
+                return add(((Number) a).longValue(), ((Number) b).longValue());
+            default:
+                return add(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+    }
+
+    public static Object sub(Object a, Object b) {
+        switch(kindOf(a, b)) {
+            case INT:
+                return sub(((Number) a).intValue(), ((Number) b).intValue());
+            case LONG:
+                return sub(((Number) a).longValue(), ((Number) b).longValue());
+            default:
+                return sub(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+    }
+
+    public static Object mul(Object a, Object b) {
+        switch(kindOf(a, b)) {
+            case INT:
+                return mul(((Number) a).intValue(), ((Number) b).intValue());
+            case LONG:
+                return mul(((Number) a).longValue(), ((Number) b).longValue());
+            default:
+                return mul(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+    }
+
+    public static Object div(Object a, Object b) {
+        switch(kindOf(a, b)) {
+            case INT:
+                return div(((Number) a).intValue(), ((Number) b).intValue());
+            case LONG:
+                return div(((Number) a).longValue(), ((Number) b).longValue());
+            default:
+                return div(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+    }
+
+    public static boolean lt(Object a, Object b) {
+        switch(kindOf(a, b)) {
+            case INT:
+                return lt(((Number) a).intValue(), ((Number) b).intValue());
+            case LONG:
+                return lt(((Number) a).longValue(), ((Number) b).longValue());
+            default:
+                return lt(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+    }
+
+    public static boolean gt(Object a, Object b) {
+        switch(kindOf(a, b)) {
+            case INT:
+                return gt(((Number) a).intValue(), ((Number) b).intValue());
+            case LONG:
+                return gt(((Number) a).longValue(), ((Number) b).longValue());
+            default:
+                return gt(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+    }
+
+    public static boolean le(Object a, Object b) {
+        switch(kindOf(a, b)) {
+            case INT:
+                return le(((Number) a).intValue(), ((Number) b).intValue());
+            case LONG:
+                return le(((Number) a).longValue(), ((Number) b).longValue());
+            default:
+                return le(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+    }
+
+    public static boolean ge(Object a, Object b) {
+        switch(kindOf(a, b)) {
+            case INT:
+                return ge(((Number) a).intValue(), ((Number) b).intValue());
+            case LONG:
+                return ge(((Number) a).longValue(), ((Number) b).longValue());
+            default:
+                return ge(((Number) a).doubleValue(), ((Number) b).doubleValue());
+        }
+    }
+}
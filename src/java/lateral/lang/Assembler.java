@@ -6,9 +6,13 @@ import java.util.HashMap;
 import java.util.Map;
 
 public class Assembler {
-    static final private int JAVA_VERSION = 55; // 55.0 = Java 11
+    static final private int JAVA_VERSION = 61; // 61.0 = Java 17
 
     static Keyword LABEL = Keyword.makeKeyword("label");
+    // (:line n) marks the following instructions as coming from source line n
+    static Keyword LINE = Keyword.makeKeyword("line");
+    // class meta: (:source "file.lisp")
+    static Keyword SOURCE = Keyword.makeKeyword("source");
 
     static Keyword ICONST = Keyword.makeKeyword("iconst");
     static Keyword LDC = Keyword.makeKeyword("ldc");
@@ -17,11 +21,16 @@ public class Assembler {
     static Keyword IRETURN = Keyword.makeKeyword("ireturn");
     static Keyword ALOAD = Keyword.makeKeyword("aload");
     static Keyword ASTORE = Keyword.makeKeyword("astore");
+    static Keyword LLOAD = Keyword.makeKeyword("lload");
+    static Keyword LSTORE = Keyword.makeKeyword("lstore");
     static Keyword AALOAD = Keyword.makeKeyword("aaload");
     static Keyword AASTORE = Keyword.makeKeyword("aastore");
     static Keyword ARRAYLENGTH = Keyword.makeKeyword("arraylength");
+    static Keyword NEWARRAY = Keyword.makeKeyword("newarray");
+    static Keyword DUP_X2 = Keyword.makeKeyword("dup_x2");
     static Keyword ATHROW = Keyword.makeKeyword("athrow");
     static Keyword DUP = Keyword.makeKeyword("dup");
+    static Keyword IAND = Keyword.makeKeyword("iand");
 
     static Keyword CHECKCAST = Keyword.makeKeyword("checkcast");
     static Keyword NEW = Keyword.makeKeyword("new");
@@ -37,6 +46,9 @@ public class Assembler {
     static Keyword IF_ICMPNE = Keyword.makeKeyword("if_icmpne");
     static Keyword IF_ICMPLT = Keyword.makeKeyword("if_icmplt");
     static Keyword IFNULL = Keyword.makeKeyword("ifnull");
+    static Keyword IFNONNULL = Keyword.makeKeyword("ifnonnull");
+    static Keyword IFEQ = Keyword.makeKeyword("ifeq");
+    static Keyword IFNE = Keyword.makeKeyword("ifne");
     static Keyword GOTO = Keyword.makeKeyword("goto");
     static Keyword LOOKUPSWITCH = Keyword.makeKeyword("lookupswitch");
 
@@ -53,6 +65,7 @@ public class Assembler {
     private static Map<Keyword, Integer> simpleOpMap;
     private static Map<Keyword, Integer> jumpOpMap;
     private static Map<Keyword, Integer> opMap;
+    private static Map<Keyword, Integer> arrayTypeMap;
 
     static {
         simpleOpMap = Map.ofEntries(
@@ -67,21 +80,36 @@ public class Assembler {
             Map.entry(Keyword.makeKeyword("aconst_null"), Opcodes.ACONST_NULL),
             Map.entry(Keyword.makeKeyword("dup2"), Opcodes.DUP2),
             Map.entry(Keyword.makeKeyword("dup_x1"), Opcodes.DUP_X1),
-            Map.entry(Keyword.makeKeyword("dup_x2"), Opcodes.DUP_X2),
+            Map.entry(DUP_X2, Opcodes.DUP_X2),
             Map.entry(Keyword.makeKeyword("pop"), Opcodes.POP),
             Map.entry(Keyword.makeKeyword("swap"), Opcodes.SWAP),
             Map.entry(Keyword.makeKeyword("isub"), Opcodes.ISUB),
             Map.entry(Keyword.makeKeyword("iadd"), Opcodes.IADD),
-            Map.entry(Keyword.makeKeyword("iand"), Opcodes.IAND),
+            Map.entry(IAND, Opcodes.IAND),
             Map.entry(Keyword.makeKeyword("lsub"), Opcodes.LSUB),
-            Map.entry(Keyword.makeKeyword("lneg"), Opcodes.LNEG)
+            Map.entry(Keyword.makeKeyword("lneg"), Opcodes.LNEG),
+            Map.entry(Keyword.makeKeyword("f2d"), Opcodes.F2D),
+            Map.entry(Keyword.makeKeyword("iaload"), Opcodes.IALOAD),
+            Map.entry(Keyword.makeKeyword("laload"), Opcodes.LALOAD),
+            Map.entry(Keyword.makeKeyword("faload"), Opcodes.FALOAD),
+            Map.entry(Keyword.makeKeyword("daload"), Opcodes.DALOAD),
+            Map.entry(Keyword.makeKeyword("baload"), Opcodes.BALOAD),
+            Map.entry(Keyword.makeKeyword("caload"), Opcodes.CALOAD),
+            Map.entry(Keyword.makeKeyword("saload"), Opcodes.SALOAD),
+            Map.entry(Keyword.makeKeyword("iastore"), Opcodes.IASTORE),
+            Map.entry(Keyword.makeKeyword("lastore"), Opcodes.LASTORE),
+            Map.entry(Keyword.makeKeyword("fastore"), Opcodes.FASTORE),
+            Map.entry(Keyword.makeKeyword("dastore"), Opcodes.DASTORE),
+            Map.entry(Keyword.makeKeyword("bastore"), Opcodes.BASTORE),
+            Map.entry(Keyword.makeKeyword("castore"), Opcodes.CASTORE),
+            Map.entry(Keyword.makeKeyword("sastore"), Opcodes.SASTORE)
         );
 
         jumpOpMap = Map.ofEntries(
             Map.entry(IFNULL, Opcodes.IFNULL),
-            Map.entry(Keyword.makeKeyword("ifnonnull"), Opcodes.IFNULL),
-            Map.entry(Keyword.makeKeyword("ifne"), Opcodes.IFNE),
-            Map.entry(Keyword.makeKeyword("ifeq"), Opcodes.IFEQ),
+            Map.entry(IFNONNULL, Opcodes.IFNONNULL),
+            Map.entry(IFNE, Opcodes.IFNE),
+            Map.entry(IFEQ, Opcodes.IFEQ),
 
             Map.entry(Keyword.makeKeyword("ifgt"), Opcodes.IFGT),
             Map.entry(Keyword.makeKeyword("ifge"), Opcodes.IFGE),
@@ -111,6 +139,18 @@ public class Assembler {
             Map.entry(NEW, Opcodes.NEW),
             Map.entry(INSTANCEOF, Opcodes.INSTANCEOF)
         );
+
+        // operands of newarray, e.g. (:newarray :double)
+        arrayTypeMap = Map.ofEntries(
+            Map.entry(Keyword.makeKeyword("boolean"), Opcodes.T_BOOLEAN),
+            Map.entry(Keyword.makeKeyword("char"), Opcodes.T_CHAR),
+            Map.entry(Keyword.makeKeyword("float"), Opcodes.T_FLOAT),
+            Map.entry(Keyword.makeKeyword("double"), Opcodes.T_DOUBLE),
+            Map.entry(Keyword.makeKeyword("byte"), Opcodes.T_BYTE),
+            Map.entry(Keyword.makeKeyword("short"), Opcodes.T_SHORT),
+            Map.entry(Keyword.makeKeyword("int"), Opcodes.T_INT),
+            Map.entry(Keyword.makeKeyword("long"), Opcodes.T_LONG)
+        );
     }
 
     static Class<?>[] getParameterClasses(int count) {
@@ -171,6 +211,10 @@ public class Assembler {
                         mv.visitLabel(label);
                         labelMap.put(labelName, label);
                     }
+                } else if(head.equals(LINE)) {
+                    Label label = new Label();
+                    mv.visitLabel(label);
+                    mv.visitLineNumber((Integer) body.first(), label);
                 } else if(head.equals(LDC)) {
                     // TODO: better LDC dynamic syntax
                     if(body.first() instanceof Sequence) {
@@ -186,8 +230,13 @@ public class Assembler {
                                 (String) handleArgs.second(),
                                 (String) handleArgs.third(),
                                 false);
+                        // (name descriptor handle bsma ...)
+                        Object[] bootstrapArgs = new Object[dynamicConstant.length() - 3];
+                        for(int i = 0; i < bootstrapArgs.length; i ++) {
+                            bootstrapArgs[i] = dynamicConstant.nth(i + 3);
+                        }
                         mv.visitLdcInsn(new ConstantDynamic(
-                                name, descriptor, dynamicHandle));
+                                name, descriptor, dynamicHandle, bootstrapArgs));
                     } else {
                         mv.visitLdcInsn(((Sequence) opcode).second());
                     }
@@ -231,6 +280,10 @@ public class Assembler {
                 } else if(head.equals(ASTORE)) {
                     int value = (Integer) body.first();
                     mv.visitVarInsn(Opcodes.ASTORE, value);
+                } else if(head.equals(LLOAD)) {
+                    mv.visitVarInsn(Opcodes.LLOAD, (Integer) body.first());
+                } else if(head.equals(LSTORE)) {
+                    mv.visitVarInsn(Opcodes.LSTORE, (Integer) body.first());
                 } else if(head.equals(ICONST)) {
                     int value = (Integer) body.first();
                     if (-1 <= value && value <= 5) {
@@ -242,6 +295,11 @@ public class Assembler {
                         || head.equals(ANEWARRAY) || head.equals(INSTANCEOF)) {
                     // checkcast, new, anewarray, instanceof
                     mv.visitTypeInsn(opMap.get(head), (String) body.first());
+                } else if(head.equals(NEWARRAY)) {
+                    Integer type = arrayTypeMap.get(body.first());
+                    if(type == null)
+                        throw new SyntaxException("newarray can't make an array of " + body.first());
+                    mv.visitIntInsn(Opcodes.NEWARRAY, type);
                 } else if(head.equals(LOOKUPSWITCH)) {
                     Label defaultLabel = new Label();
                     labelMap.put((lateral.lang.Symbol) body.first(), defaultLabel);
@@ -285,11 +343,17 @@ public class Assembler {
         // TODO: assert first arguments match expected
         // first is defclass
         String name = (String) asmTree.second();
-        // TODO: get meta
         Sequence meta = (Sequence) asmTree.third();
 
         classWriter.visit(JAVA_VERSION, Opcodes.ACC_PUBLIC, name, null,
                 Type.getInternalName(Function.class), null);
+        for(; !meta.isEmpty(); meta = meta.rest().rest()) {
+            if(SOURCE.equals(meta.first())) {
+                classWriter.visitSource((String) meta.second(), null);
+            } else {
+                throw new SyntaxException("unknown class meta " + meta.first());
+            }
+        }
 
         for(int i = 0; i < 3; i ++) {
             asmTree = asmTree.rest();
@@ -0,0 +1,119 @@
+package lateral.lang;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A mutable reference to an immutable value, safe to share between threads without locks.
+ *
+ * swap! applies an update function to the current value and compare-and-sets the result,
+ * retrying if another thread changed the value in between, so the function may run more than
+ * once and shouldn't have side effects. The function is called through the fixed-arity
+ * invoke methods, so compiled functions don't box their arguments in an array.
+ *
+ * compareAndSet compares with equals rather than identity, because equal numbers and keywords
+ * are usually different objects. Watches are called with (key atom old new) after every
+ * change, on the thread that made it.
+ */
+public final class Atom implements Deref {
+    private static final VarHandle VALUE;
+
+    static {
+        try {
+            VALUE = MethodHandles.lookup().findVarHandle(Atom.class, "value", Object.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private volatile Object value;
+    private final ConcurrentHashMap<Object, Function> watches = new ConcurrentHashMap<>();
+
+    public Atom(Object value) {
+        this.value = value;
+    }
+
+    public Object deref() {
+        return value;
+    }
+
+    public Object swap(Function function) {
+        while(true) {
+            Object old = value;
+            Object updated = function.invoke1(old);
+            if(VALUE.compareAndSet(this, old, updated))
+                return changed(old, updated);
+        }
+    }
+
+    public Object swap(Function function, Object arg) {
+        while(true) {
+            Object old = value;
+            Object updated = function.invoke2(old, arg);
+            if(VALUE.compareAndSet(this, old, updated))
+                return changed(old, updated);
+        }
+    }
+
+    public Object swap(Function function, Object arg0, Object arg1) {
+        while(true) {
+            Object old = value;
+            Object updated = function.invoke3(old, arg0, arg1);
+            if(VALUE.compareAndSet(this, old, updated))
+                return changed(old, updated);
+        }
+    }
+
+    /**
+     * @return The new value
+     */
+    public Object reset(Object updated) {
+        Object old = VALUE.getAndSet(this, updated);
+        return changed(old, updated);
+    }
+
+    /**
+     * Sets the value if it equals expected
+     */
+    public boolean compareAndSet(Object expected, Object updated) {
+        while(true) {
+            Object old = value;
+            if(!Objects.equals(old, expected))
+                return false;
+            if(VALUE.compareAndSet(this, old, updated)) {
+                changed(old, updated);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param function Called with key, this atom, the old and the new value after every change.
+     *                 Replaces any watch with the same key
+     */
+    public Atom addWatch(Object key, Function function) {
+        watches.put(key, function);
+        return this;
+    }
+
+    public Atom removeWatch(Object key) {
+        watches.remove(key);
+        return this;
+    }
+
+    private Object changed(Object old, Object updated) {
+        if(!watches.isEmpty()) {
+            for(Map.Entry<Object, Function> watch : watches.entrySet()) {
+                watch.getValue().invoke4(watch.getKey(), this, old, updated);
+            }
+        }
+        return updated;
+    }
+
+    public String toString() {
+        return "#<atom " + value + ">";
+    }
+}
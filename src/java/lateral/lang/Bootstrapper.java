@@ -1,5 +1,6 @@
 package lateral.lang;
 
+import java.lang.constant.ConstantDescs;
 import java.lang.invoke.*;
 
 /**
@@ -30,6 +31,12 @@ public final class Bootstrapper {
         return Symbol.makeSymbol(value);
     }
 
+    // used by CompClass when profiling, see FunctionProfile
+    public static FunctionProfile functionProfile(MethodHandles.Lookup lookup, String name, Class<?> type,
+                                                  String function) {
+        return FunctionProfile.get(function);
+    }
+
     /**
      * InvokeDynamic bootstrap method for creating arbitrary length sequences. Returns a CallSite which
      * packs the number of arguments given in methodType into an ArraySequence
@@ -42,9 +49,121 @@ public final class Bootstrapper {
      */
     public static CallSite sequenceBuilder(MethodHandles.Lookup lookup, String name, MethodType methodType)
             throws IllegalAccessException, NoSuchMethodException {
+        FlightRecorder.LinkEvent event = FlightRecorder.beginLink();
         int params = methodType.parameterCount();
         MethodHandle base = lookup.findStatic(ArraySequence.class, "makeList",
                 MethodType.methodType(Sequence.class, Object[].class));
-        return new ConstantCallSite(base.asCollector(Object[].class, params));
+        CallSite callSite = new ConstantCallSite(base.asCollector(Object[].class, params));
+        FlightRecorder.linked(event, "sequenceBuilder", null, methodType, null);
+        return callSite;
+    }
+
+    /**
+     * InvokeDynamic bootstrap method for creating closures. The arguments of the CallSite are
+     * the captured variables, which are passed to the closure class' constructor.
+     * @param lookup Lookup handle given by the InvokeDynamic instruction
+     * @param name Not used
+     * @param methodType Expected type of the CallSite
+     * @param className Internal name of the closure class, used when classes are defined by a ClassDefiner
+     * @param index Position of the closure class in the class data of hidden classes, see ClassDefiner
+     * @return A CallSite creating a new instance of the closure class
+     */
+    public static CallSite closure(MethodHandles.Lookup lookup, String name, MethodType methodType,
+                                   String className, int index)
+            throws IllegalAccessException, NoSuchMethodException, ClassNotFoundException {
+        FlightRecorder.LinkEvent event = FlightRecorder.beginLink();
+        Class<?> closureClass;
+        if(lookup.lookupClass().isHidden())
+            closureClass = MethodHandles.classData(lookup, ConstantDescs.DEFAULT_NAME, Class[].class)[index];
+        else
+            closureClass = lookup.findClass(className.replace('/', '.'));
+        MethodHandle constructor = lookup.findConstructor(closureClass, methodType.changeReturnType(void.class));
+        CallSite callSite = new ConstantCallSite(constructor.asType(methodType));
+        FlightRecorder.linked(event, "closure", className, methodType, null);
+        return callSite;
+    }
+
+    /**
+     * InvokeDynamic bootstrap method for the built in numeric operators.
+     * The returned CallSite profiles the operand types it is called with: every new pair of
+     * numeric operand classes installs a guarded fast path for exactly those classes
+     * (e.g. Integer x Integer becomes an unboxed iadd). Once a site has seen more than
+     * ArithmeticCallSite.MAX_PROFILED pairs it is relinked to the generic path.
+     * @param lookup Lookup handle given by the InvokeDynamic instruction
+     * @param name Not used
+     * @param methodType Expected type of the CallSite, (Object, Object) returning Object or boolean
+     * @param operator The operator symbol, e.g. "+" or "<="
+     * @return A CallSite applying operator to its two arguments
+     */
+    public static CallSite arithmetic(MethodHandles.Lookup lookup, String name, MethodType methodType,
+                                      String operator) {
+        FlightRecorder.LinkEvent event = FlightRecorder.beginLink();
+        String operation = Arithmetic.OPERATORS.get(Symbol.makeSymbol(operator));
+        if(operation == null)
+            throw new SyntaxException(operator + " is not an arithmetic operator");
+        CallSite callSite = new ArithmeticCallSite(operation, methodType);
+        FlightRecorder.linked(event, "arithmetic", operator, methodType, null);
+        return callSite;
+    }
+
+    private static final class ArithmeticCallSite extends MutableCallSite {
+        static final int MAX_PROFILED = 4;
+        private static final MethodHandle FALLBACK;
+        private static final MethodHandle CLASS_TEST;
+
+        static {
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                FALLBACK = lookup.findVirtual(ArithmeticCallSite.class, "fallback",
+                        MethodType.methodType(Object.class, Object.class, Object.class));
+                CLASS_TEST = lookup.findStatic(ArithmeticCallSite.class, "classTest",
+                        MethodType.methodType(boolean.class, Class.class, Class.class, Object.class, Object.class));
+            } catch (NoSuchMethodException | IllegalAccessException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private final String operation;
+        private int profiled = 0;
+
+        ArithmeticCallSite(String operation, MethodType methodType) {
+            super(methodType);
+            this.operation = operation;
+            setTarget(FALLBACK.bindTo(this).asType(methodType));
+        }
+
+        private static boolean classTest(Class<?> left, Class<?> right, Object a, Object b) {
+            return a != null && b != null && a.getClass() == left && b.getClass() == right;
+        }
+
+        /*
+        Reached whenever none of the installed guards match. Installs a new guard in front of
+        the current chain, or gives up on profiling once the site is megamorphic.
+         */
+        private synchronized Object fallback(Object a, Object b) throws Throwable {
+            MethodHandle target;
+            Class<?> left = a == null ? null : a.getClass();
+            Class<?> right = b == null ? null : b.getClass();
+            if(Arithmetic.kindOf(left) == -1 || Arithmetic.kindOf(right) == -1) {
+                // not numbers, the generic path throws a TypeException
+                target = Arithmetic.genericPath(operation, type());
+            } else if(profiled >= MAX_PROFILED) {
+                FlightRecorder.RelinkEvent event = FlightRecorder.beginRelink();
+                target = Arithmetic.genericPath(operation, type());
+                setTarget(target);
+                FlightRecorder.relinked(event, "arithmetic", operation, "megamorphic, generic path");
+            } else {
+                FlightRecorder.RelinkEvent event = FlightRecorder.beginRelink();
+                target = Arithmetic.fastPath(operation, left, right, type());
+                MethodHandle test = MethodHandles.insertArguments(CLASS_TEST, 0, left, right)
+                        .asType(type().changeReturnType(boolean.class));
+                setTarget(MethodHandles.guardWithTest(test, target, getTarget()));
+                profiled ++;
+                if(event != null)
+                    FlightRecorder.relinked(event, "arithmetic", operation,
+                            "guard " + left.getSimpleName() + " x " + right.getSimpleName());
+            }
+            return target.invokeWithArguments(a, b);
+        }
     }
 }
@@ -0,0 +1,366 @@
+package lateral.lang;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A queue between threads, for building pipelines of go blocks.
+ *
+ * A bounded channel blocks put until there is room, which is what gives a pipeline backpressure:
+ * a slow stage holds up the stages before it instead of piling up values. An unbounded channel
+ * never blocks put. take blocks until there is a value.
+ *
+ * Once closed, put is refused and take returns the values left in the buffer, then nil.
+ * So nil can't be put into a channel, it means closed.
+ *
+ * When the function of a go block or pipeline throws, its output channel is closed with the
+ * exception instead. take, toSequence and alts rethrow it once the buffer is drained, like
+ * Promise.deref does, rather than returning nil as if the function had finished.
+ *
+ * Locks are ReentrantLocks rather than synchronized, because a virtual thread blocked in a
+ * synchronized block keeps its carrier thread on Java 21.
+ */
+public final class Channel {
+    // tells a thread in alts that a channel it waits for has a value or was closed
+    private static final class Waiter {
+        final Semaphore signal = new Semaphore(0);
+    }
+
+    // returned by poll when there is nothing to take yet
+    private static final Object EMPTY = new Object();
+    // most values a pipeline worker takes at once
+    private static final int PIPELINE_BATCH = 16;
+
+    private final int capacity;
+    private final ArrayDeque<Object> buffer = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final LinkedHashSet<Waiter> waiters = new LinkedHashSet<>();
+    private boolean closed = false;
+    // what the producer of a closed channel threw, if anything
+    private Throwable failure;
+
+    /**
+     * @param capacity Number of values put can buffer before it blocks, 0 for unbounded
+     */
+    public Channel(int capacity) {
+        if(capacity < 0)
+            throw new RuntimeException("channel capacity can't be negative: " + capacity);
+        this.capacity = capacity;
+    }
+
+    public Channel() {
+        this(0);
+    }
+
+    /**
+     * Waits until there is room for value
+     * @return false if the channel is closed
+     */
+    public boolean put(Object value) {
+        if(value == null)
+            throw new RuntimeException("can't put nil in a channel");
+        lock.lock();
+        try {
+            while(!closed && capacity > 0 && buffer.size() >= capacity) {
+                notFull.await();
+            }
+            if(closed)
+                return false;
+            buffer.add(value);
+            notEmpty.signal();
+            wakeWaiters();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a value
+     * @return The value, or null once the channel is closed and empty
+     */
+    public Object take() {
+        lock.lock();
+        try {
+            while(buffer.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            checkFailure();
+            return removeFirst();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a value, then takes it and any others already buffered, up to max.
+     * Saves a lock round trip and a wake up per value when the consumer keeps up
+     * @return false once the channel is closed and empty
+     */
+    boolean takeSome(ArrayList<Object> values, int max) {
+        lock.lock();
+        try {
+            while(buffer.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            checkFailure();
+            if(buffer.isEmpty())
+                return false;
+            for(int i = 0; i < max && !buffer.isEmpty(); i ++) {
+                values.add(buffer.poll());
+            }
+            notFull.signalAll();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting values. Blocked puts return false, blocked takes return null
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+            wakeWaiters();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the channel because its producer threw e. Takes rethrow e once the buffer is empty
+     */
+    void fail(Throwable e) {
+        lock.lock();
+        try {
+            if(failure == null && !closed)
+                failure = e;
+        } finally {
+            lock.unlock();
+        }
+        close();
+    }
+
+    // with lock held, rethrows the failure when there is nothing left to take
+    private void checkFailure() {
+        if(buffer.isEmpty() && failure != null)
+            throw Promise.rethrow(failure);
+    }
+
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // with lock held
+    private Object removeFirst() {
+        Object value = buffer.poll();
+        if(value != null)
+            notFull.signal();
+        return value;
+    }
+
+    // with lock held
+    private void wakeWaiters() {
+        for(Waiter waiter : waiters) {
+            waiter.signal.release();
+        }
+        waiters.clear();
+    }
+
+    /**
+     * Takes a value if there is one, otherwise registers waiter to be woken when there is
+     * @return A value, null if closed, or EMPTY
+     */
+    private Object poll(Waiter waiter) {
+        lock.lock();
+        try {
+            if(buffer.isEmpty() && !closed) {
+                waiters.add(waiter);
+                return EMPTY;
+            }
+            checkFailure();
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void forget(Waiter waiter) {
+        lock.lock();
+        try {
+            waiters.remove(waiter);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes from whichever channel has a value first. Channels that are ready at the same time
+     * are picked at random, so no channel starves the others
+     * @param timeoutMillis Longest to wait, negative to wait forever
+     * @return (value channel), with a nil value if the channel was closed, or nil on timeout
+     */
+    public static Sequence alts(Sequence channels, long timeoutMillis) {
+        ArrayList<Channel> list = new ArrayList<>();
+        for(Object channel : channels) {
+            list.add((Channel) channel);
+        }
+        if(list.isEmpty())
+            throw new RuntimeException("alts needs at least one channel");
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        Waiter waiter = new Waiter();
+        try {
+            while(true) {
+                int start = ThreadLocalRandom.current().nextInt(list.size());
+                for(int i = 0; i < list.size(); i ++) {
+                    Channel channel = list.get((start + i) % list.size());
+                    Object value = channel.poll(waiter);
+                    if(value != EMPTY)
+                        return Sequence.makeList(value, channel);
+                }
+                if(timeoutMillis < 0) {
+                    waiter.signal.acquire();
+                } else {
+                    long remaining = deadline - System.nanoTime();
+                    if(remaining <= 0 || !waiter.signal.tryAcquire(remaining, TimeUnit.NANOSECONDS))
+                        return null;
+                }
+                waiter.signal.drainPermits();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            for(Channel channel : list) {
+                channel.forget(waiter);
+            }
+        }
+    }
+
+    /**
+     * Runs function with no arguments on a virtual thread, in the current environment
+     * @return A channel that receives the result, unless it is nil, and then closes.
+     * If the function throws, the channel is failed with the exception instead
+     */
+    public static Channel go(Function function) {
+        Channel result = new Channel(1);
+        Environment environment = Environment.current();
+        VirtualThreads.EXECUTOR.execute(() -> {
+            Environment.setCurrent(environment);
+            try {
+                Object value = function.invoke0();
+                if(value != null)
+                    result.put(value);
+                result.close();
+            } catch (Throwable e) {
+                result.fail(e);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return A channel of capacity that receives the elements of sequence, then closes
+     */
+    public static Channel fromSequence(Sequence sequence, int capacity) {
+        Channel channel = new Channel(capacity);
+        VirtualThreads.EXECUTOR.execute(() -> {
+            try {
+                for(Sequence rest = sequence; !rest.isEmpty(); rest = rest.rest()) {
+                    if(!channel.put(rest.first()))
+                        break;
+                }
+            } finally {
+                channel.close();
+            }
+        });
+        return channel;
+    }
+
+    /**
+     * Takes values until the channel closes
+     * @return The values in the order they were taken
+     */
+    public Sequence toSequence() {
+        ArrayList<Object> values = new ArrayList<>();
+        while(takeSome(values, Integer.MAX_VALUE)) {
+            ;
+        }
+        return Sequence.makeList(values.toArray());
+    }
+
+    /**
+     * Starts workers virtual threads that take from in, put (function value) into out, and close
+     * out when in is closed and drained. Values may be reordered when there is more than one worker.
+     * nil results are dropped. If function throws, out is failed with the exception and in is
+     * closed, so the stages before stop too
+     * @return out
+     */
+    public static Channel pipeline(int workers, Function function, Channel in, Channel out) {
+        if(workers < 1)
+            throw new RuntimeException("pipeline needs at least one worker: " + workers);
+        AtomicInteger running = new AtomicInteger(workers);
+        Environment environment = Environment.current();
+        for(int i = 0; i < workers; i ++) {
+            VirtualThreads.EXECUTOR.execute(() -> {
+                Environment.setCurrent(environment);
+                ArrayList<Object> batch = new ArrayList<>();
+                try {
+                    // small batches, so the other workers get values too
+                    while(in.takeSome(batch, PIPELINE_BATCH)) {
+                        for(Object value : batch) {
+                            Object result = function.invoke1(value);
+                            if(result != null && !out.put(result))
+                                return;
+                        }
+                        batch.clear();
+                    }
+                } catch (Throwable e) {
+                    out.fail(e);
+                    in.close();
+                } finally {
+                    if(running.decrementAndGet() == 0)
+                        out.close();
+                }
+            });
+        }
+        return out;
+    }
+
+    public String toString() {
+        lock.lock();
+        try {
+            return "#<channel " + buffer.size() + (capacity > 0 ? "/" + capacity : "")
+                    + (closed ? " closed>" : ">");
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -1,6 +1,18 @@
 package lateral.lang;
 
+import java.lang.invoke.MethodHandles;
+
 public class ClassDefiner extends ClassLoader {
+    /*
+    -Dlateral.hiddenClasses=true defines every eval's classes as hidden classes instead of
+    giving each eval its own ClassDefiner. Hidden classes can be unloaded one by one, without
+    a loader per eval keeping them alive. They aren't cheaper to define, a 100k eval run took
+    a little longer with them, which is why they are opt in.
+     */
+    static final boolean HIDDEN = Boolean.getBoolean("lateral.hiddenClasses");
+    // hidden classes have to be in the package of the lookup that defines them
+    static final String PACKAGE_PREFIX = HIDDEN ? "lateral/lang/" : "";
+
     private ClassDefiner() { ; }
 
     private Class<?> loadClass(byte[] classBytes) {
@@ -20,11 +32,51 @@ public class ClassDefiner extends ClassLoader {
      * @return The class object created from classBytes
      */
     public static Class<?> hotloadClasses(byte[] ... classBytes) {
-        ClassDefiner classDefiner = new ClassDefiner();
-        Class<?> topLevel = classDefiner.loadClass(classBytes[0]);
-        for(int i = 1; i < classBytes.length; i ++) {
-            classDefiner.loadClass(classBytes[i]);
+        return defineClasses(classBytes)[0];
+    }
+
+    /**
+     * Like hotloadClasses, but returns every class, in the order of classBytes.
+     * While an Image is recording, the bytes are kept so that the classes can be saved
+     */
+    static Class<?>[] defineClasses(byte[][] classBytes) {
+        FlightRecorder.DefineEvent event = FlightRecorder.beginDefine();
+        Class<?>[] classes;
+        if(HIDDEN) {
+            classes = defineHiddenClasses(classBytes);
+        } else {
+            ClassDefiner classDefiner = new ClassDefiner();
+            classes = new Class<?>[classBytes.length];
+            for(int i = 0; i < classBytes.length; i ++) {
+                classes[i] = classDefiner.loadClass(classBytes[i]);
+            }
+        }
+        if(Image.isRecording())
+            Image.classesDefined(classes, classBytes);
+        FlightRecorder.defined(event, classes[0], classBytes, HIDDEN);
+        return classes;
+    }
+
+    /**
+     * Defines the first class as a hidden class and the rest as hidden nestmates of it.
+     * Hidden classes can't be found by name, so every class gets the array of all of them
+     * as its class data, which Bootstrapper.closure uses to create sibling closures.
+     * @param classBytes Classes in the order of Compiler.classes
+     * @return The classes
+     */
+    private static Class<?>[] defineHiddenClasses(byte[][] classBytes) {
+        Class<?>[] classes = new Class<?>[classBytes.length];
+        try {
+            MethodHandles.Lookup topLevel = MethodHandles.lookup()
+                    .defineHiddenClassWithClassData(classBytes[0], classes, true);
+            classes[0] = topLevel.lookupClass();
+            for(int i = 1; i < classBytes.length; i ++) {
+                classes[i] = topLevel.defineHiddenClassWithClassData(classBytes[i], classes, true,
+                        MethodHandles.Lookup.ClassOption.NESTMATE).lookupClass();
+            }
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
         }
-        return topLevel;
+        return classes;
     }
 }
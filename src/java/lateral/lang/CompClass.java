@@ -2,18 +2,33 @@ package lateral.lang;
 
 import org.objectweb.asm.Type;
 
+import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Compilation unit representing a JVM Class
  */
 class CompClass {
-    static int CLASS_NUM = 0;
+    // shared by every thread that compiles, see EvalServer
+    static final AtomicInteger CLASS_NUM = new AtomicInteger();
+    static final Sequence PROFILE_HANDLE = Sequence.makeList(
+            Type.getInternalName(Bootstrapper.class), "functionProfile",
+            MethodType.methodType(FunctionProfile.class, MethodHandles.Lookup.class,
+                    String.class, Class.class, String.class).toMethodDescriptorString());
 
     String name;
+    // position in Compiler.classes, which is also the order the classes are defined in
+    int index;
+    // readable prefix of name, e.g. reverse for the class of (defun reverse ...)
+    String baseName;
     Symbol functionName;
+    // name of the defun this function is or is nested in, or null
+    String rootName;
+    // file the function was read from, or null
+    String sourceFile;
     ArrayList<Object> members;
     private ArrayList<Symbol> captured;
     boolean isMacro = false;
@@ -32,10 +47,68 @@ class CompClass {
     }
 
     CompClass(Symbol functionName) {
+        this(functionName, null);
+    }
+
+    /**
+     * Classes are named after the function they implement so that stack traces and profilers
+     * can attribute them: (defun reverse ...) becomes reverse$12, and a lambda inside of it
+     * becomes reverse$fn13. Other lambdas stay AnonFuncN.
+     * @param functionName Name of the function for defun and defmacro, otherwise null
+     * @param enclosing The class of the function this lambda is nested in, or null
+     */
+    CompClass(Symbol functionName, CompClass enclosing) {
         members = new ArrayList<>();
         captured = new ArrayList<>();
-        this.name = "AnonFunc" + (CLASS_NUM ++);
+        if(functionName != null) {
+            this.baseName = mungeName(functionName.toString());
+            this.name = ClassDefiner.PACKAGE_PREFIX + baseName + "$" + CLASS_NUM.getAndIncrement();
+        } else if(enclosing != null && enclosing.baseName != null) {
+            this.baseName = enclosing.baseName;
+            this.name = ClassDefiner.PACKAGE_PREFIX + baseName + "$fn" + CLASS_NUM.getAndIncrement();
+        } else {
+            this.name = ClassDefiner.PACKAGE_PREFIX + "AnonFunc" + CLASS_NUM.getAndIncrement();
+        }
         this.functionName = functionName;
+        if(functionName != null)
+            this.rootName = functionName.toString();
+        else if(enclosing != null)
+            this.rootName = enclosing.rootName;
+    }
+
+    /**
+     * Turns a symbol into something that reads well as a JVM class name, e.g. nil? -> nil_Q
+     */
+    static String mungeName(String symbol) {
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < symbol.length(); i ++) {
+            char c = symbol.charAt(i);
+            if(Character.isLetterOrDigit(c) || c == '_' || c == '-') {
+                sb.append(c);
+            } else {
+                switch(c) {
+                    case '?': sb.append("_Q"); break;
+                    case '!': sb.append("_BANG"); break;
+                    case '*': sb.append("_STAR"); break;
+                    case '+': sb.append("_PLUS"); break;
+                    case '<': sb.append("_LT"); break;
+                    case '>': sb.append("_GT"); break;
+                    case '=': sb.append("_EQ"); break;
+                    case '/': sb.append("_SLASH"); break;
+                    default: sb.append('_').append(Integer.toHexString(c));
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Key of the FunctionProfile of this class, e.g. reverse, or reverse$fn for its lambdas
+     */
+    String profileName() {
+        if(functionName != null)
+            return rootName;
+        return rootName == null ? "anonymous" : rootName + "$fn";
     }
 
     String getClassName() {
@@ -111,23 +184,64 @@ class CompClass {
         if(isVarargs)
             params[params.length - 1] = Sequence.class;
 
-        /*
-        TODO: use java.util.function interfaces
-        or make my own
-        In compiler, avoid expensive (?) calls through varargs apply
-        0: Supplier                     get()
-        1: Function/UnaryOperator       apply(A)
-        2: BiFunction/BinaryOperator    apply(A, B)
-         */
         Sequence header = Sequence.makeList(
                 Assembler.DEFMETHOD, "invoke",
                 MethodType.methodType(Object.class, params).toMethodDescriptorString(),
                 EmptySequence.EMPTY_SEQUENCE);
 
+        if(FunctionProfile.MODE != FunctionProfile.Mode.OFF)
+            opcodes = profileInvoker(paramCount, opcodes);
         Sequence body = new ArraySequence(opcodes.toArray());
         members.add(Sequence.concat(new ArraySequence(header, body)));
     }
 
+    /**
+     * Wraps an invoke body in calls to its FunctionProfile:
+     * start = profile.enter(); [bytes = allocatedBytes();] ... profile.exit(start[, bytes]); areturn
+     * The prologue goes before the recur label, so loops only enter once.
+     * @return A copy of opcodes with the profiling instructions added
+     */
+    private ArrayList<Object> profileInvoker(int paramCount, ArrayList<Object> opcodes) {
+        boolean alloc = FunctionProfile.MODE == FunctionProfile.Mode.ALLOC;
+        // the longs go after every local slot the body uses
+        int startSlot = paramCount + 1;
+        for(Object opcode : opcodes) {
+            if(opcode instanceof Sequence && !((Sequence) opcode).isEmpty()) {
+                Sequence instruction = (Sequence) opcode;
+                if(Assembler.ALOAD.equals(instruction.first()) || Assembler.ASTORE.equals(instruction.first()))
+                    startSlot = Math.max(startSlot, (Integer) instruction.second() + 1);
+            }
+        }
+        int bytesSlot = startSlot + 2;
+
+        String profileType = Type.getInternalName(FunctionProfile.class);
+        Sequence profile = Sequence.makeList(Assembler.LDC, Sequence.makeList(
+                "profile", Type.getDescriptor(FunctionProfile.class), PROFILE_HANDLE, profileName()));
+
+        ArrayList<Object> profiled = new ArrayList<>(opcodes.size() + 8);
+        profiled.add(profile);
+        profiled.add(Sequence.makeList(Assembler.INVOKEVIRTUAL, profileType, "enter", "()J"));
+        profiled.add(Sequence.makeList(Assembler.LSTORE, startSlot));
+        if(alloc) {
+            profiled.add(Sequence.makeList(Assembler.INVOKESTATIC, profileType, "allocatedBytes", "()J"));
+            profiled.add(Sequence.makeList(Assembler.LSTORE, bytesSlot));
+        }
+        for(Object opcode : opcodes) {
+            if(Assembler.ARETURN.equals(opcode)) {
+                profiled.add(profile);
+                profiled.add(Sequence.makeList(Assembler.LLOAD, startSlot));
+                if(alloc) {
+                    profiled.add(Sequence.makeList(Assembler.LLOAD, bytesSlot));
+                    profiled.add(Sequence.makeList(Assembler.INVOKEVIRTUAL, profileType, "exit", "(JJ)V"));
+                } else {
+                    profiled.add(Sequence.makeList(Assembler.INVOKEVIRTUAL, profileType, "exit", "(J)V"));
+                }
+            }
+            profiled.add(opcode);
+        }
+        return profiled;
+    }
+
     void addInvokerCase(ArrayList<Object> opcodes, int argc) {
         // load function itself
         opcodes.add(Sequence.makeList(Assembler.ALOAD, 0));
@@ -169,8 +283,43 @@ class CompClass {
         opcodes.add(Assembler.ARETURN);
     }
 
+    /**
+     * Overrides Function.invokeN for every N up to Function.MAX_FIXED_ARITY this function accepts.
+     * Each one just calls the matching invoke, packing any extra arguments into the varargs Sequence.
+     */
+    void generateFixedArities() {
+        for(int argc = 0; argc <= Function.MAX_FIXED_ARITY; argc ++) {
+            boolean isFixed = arities.contains(argc);
+            if(!isFixed && (varargsCount == -1 || argc < varargsCount))
+                continue;
+
+            ArrayList<Object> opcodes = new ArrayList<>();
+            opcodes.add(Assembler.DEFMETHOD);
+            opcodes.add("invoke" + argc);
+            opcodes.add(Assembler.getMethodDescriptor(Object.class, argc));
+            opcodes.add(EmptySequence.EMPTY_SEQUENCE);
+            for(int i = 0; i <= argc; i ++) {
+                opcodes.add(Sequence.makeList(Assembler.ALOAD, i));
+            }
+            String descriptor;
+            if(isFixed) {
+                descriptor = Assembler.getMethodDescriptor(Object.class, argc);
+            } else {
+                opcodes.add(Sequence.makeList(Assembler.INVOKEDYNAMIC, Compiler.SEQUENCE_BOOTSTRAP, "makeSequence",
+                        Assembler.getMethodDescriptor(Sequence.class, argc - varargsCount)));
+                Class<?>[] paramTypes = Assembler.getParameterClasses(varargsCount + 1);
+                paramTypes[varargsCount] = Sequence.class;
+                descriptor = MethodType.methodType(Object.class, paramTypes).toMethodDescriptorString();
+            }
+            opcodes.add(Sequence.makeList(Assembler.INVOKEVIRTUAL, this.name, "invoke", descriptor));
+            opcodes.add(Assembler.ARETURN);
+            members.add(Sequence.makeList(opcodes.toArray()));
+        }
+    }
+
     void generateInherits(boolean isMacro) {
         this.isMacro = isMacro;
+        generateFixedArities();
         members.add(Sequence.makeList(
                 Assembler.DEFMETHOD, "isMacro", "()Z", EmptySequence.EMPTY_SEQUENCE,
                 Sequence.makeList(Assembler.ICONST, isMacro ? 1 : 0),
@@ -260,11 +409,12 @@ class CompClass {
     }
 
     Sequence toTree() {
+        Sequence meta = sourceFile == null ? EmptySequence.EMPTY_SEQUENCE
+                : Sequence.makeList(Assembler.SOURCE, sourceFile);
         Sequence header = Sequence.makeList(
                 Assembler.DEFCLASS,
                 getClassName(),
-                // meta?
-                EmptySequence.EMPTY_SEQUENCE);
+                meta);
         Sequence body = new ArraySequence(members.toArray());
         // TODO: better concat
         return Sequence.concat(new ArraySequence(header, body));
@@ -9,6 +9,8 @@ class CompEnvir {
    CompEnvir parent;
    CompClass closure;
    HashMap<Symbol, Integer> bindings = new HashMap<>();
+   // element types of bindings known to hold primitive arrays, e.g. :double
+   HashMap<Symbol, Keyword> arrayTypes = new HashMap<>();
    int bindCount;
 
    CompEnvir(CompEnvir parent) {
@@ -27,6 +29,14 @@ class CompEnvir {
    }
 
    int insert(Symbol symbol) {
+       return insert(symbol, null);
+   }
+
+   int insert(Symbol symbol, Keyword arrayType) {
+       if(arrayType == null)
+           arrayTypes.remove(symbol);
+       else
+           arrayTypes.put(symbol, arrayType);
        bindings.put(symbol, bindCount);
        bindCount ++;
        return bindCount - 1;
@@ -41,4 +51,14 @@ class CompEnvir {
        }
        return false;
    }
+
+   Keyword getArrayType(Symbol symbol) {
+       CompEnvir envir = this;
+       while(envir != null) {
+           if(envir.bindings.containsKey(symbol))
+               return envir.arrayTypes.get(symbol);
+           envir = envir.parent;
+       }
+       return null;
+   }
 }
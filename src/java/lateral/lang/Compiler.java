@@ -6,10 +6,13 @@ import java.io.IOException;
 import java.lang.invoke.CallSite;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
+import java.lang.invoke.StringConcatFactory;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 public class Compiler {
     static Symbol LAMBDA = Symbol.makeSymbol("function");
@@ -23,6 +26,18 @@ public class Compiler {
     static Symbol QUOTE = Symbol.makeSymbol("quote");
     static Symbol LIST = Symbol.makeSymbol("list");
     static Symbol RECUR = Symbol.makeSymbol("recur");
+    static Symbol LOOP = Symbol.makeSymbol("loop");
+    static Symbol MAKE_ARRAY = Symbol.makeSymbol("make-array");
+    static Symbol AGET = Symbol.makeSymbol("aget");
+    static Symbol ASET = Symbol.makeSymbol("aset");
+    static Symbol ALENGTH = Symbol.makeSymbol("alength");
+    static Symbol STR = Symbol.makeSymbol("str");
+    // core predicates that compile to a conditional jump in test position
+    static Symbol EQ = Symbol.makeSymbol("eq?");
+    static Symbol NIL_P = Symbol.makeSymbol("nil?");
+    static Symbol NOT = Symbol.makeSymbol("not");
+    static Symbol EMPTY_P = Symbol.makeSymbol("empty?");
+    static Symbol EVEN_P = Symbol.makeSymbol("even?");
 
     static Keyword REST = Keyword.makeKeyword("rest");
 
@@ -31,6 +46,16 @@ public class Compiler {
             "valueOf", Assembler.getMethodDescriptor(int.class, Integer.class)
     );
 
+    static Sequence PARSE_LONG = new ArraySequence(
+            Assembler.INVOKESTATIC, Type.getInternalName(Long.class),
+            "valueOf", Assembler.getMethodDescriptor(long.class, Long.class)
+    );
+
+    static Sequence PARSE_DOUBLE = new ArraySequence(
+            Assembler.INVOKESTATIC, Type.getInternalName(Double.class),
+            "valueOf", Assembler.getMethodDescriptor(double.class, Double.class)
+    );
+
     // TODO: convert to dynamic LDC
     static Sequence MAKE_SYM = new ArraySequence(
             Assembler.INVOKESTATIC, Type.getInternalName(Symbol.class),
@@ -47,14 +72,14 @@ public class Compiler {
     static Sequence ENVIR_OBJECT = new ArraySequence(
             Type.getInternalName(Environment.class), "dynamicObject",
             MethodType.methodType(CallSite.class, MethodHandles.Lookup.class, String.class,
-                    MethodType.class, String.class).toMethodDescriptorString()
+                    MethodType.class, String.class, String.class).toMethodDescriptorString()
     );
 
     // Environment.dynamicFunction
     static Sequence ENVIR_FUNCTION = new ArraySequence(
             Type.getInternalName(Environment.class), "dynamicFunction",
             MethodType.methodType(CallSite.class, MethodHandles.Lookup.class, String.class,
-                    MethodType.class, String.class).toMethodDescriptorString()
+                    MethodType.class, String.class, String.class).toMethodDescriptorString()
     );
 
     // Bootstrapper.sequenceBuilder
@@ -64,9 +89,165 @@ public class Compiler {
                     MethodType.class).toMethodDescriptorString()
     );
 
+    // Bootstrapper.closure
+    static Sequence CLOSURE_BOOTSTRAP = new ArraySequence(
+            Type.getInternalName(Bootstrapper.class), "closure",
+            MethodType.methodType(CallSite.class, MethodHandles.Lookup.class, String.class,
+                    MethodType.class, String.class, int.class).toMethodDescriptorString()
+    );
+
+    // Bootstrapper.arithmetic
+    static Sequence ARITHMETIC_BOOTSTRAP = new ArraySequence(
+            Type.getInternalName(Bootstrapper.class), "arithmetic",
+            MethodType.methodType(CallSite.class, MethodHandles.Lookup.class, String.class,
+                    MethodType.class, String.class).toMethodDescriptorString()
+    );
+
+    // StringConcatFactory.makeConcatWithConstants, for str
+    static Sequence STRING_CONCAT_BOOTSTRAP = new ArraySequence(
+            Type.getInternalName(StringConcatFactory.class), "makeConcatWithConstants",
+            MethodType.methodType(CallSite.class, MethodHandles.Lookup.class, String.class,
+                    MethodType.class, String.class, Object[].class).toMethodDescriptorString()
+    );
+    // StringConcatFactory takes at most 200 argument slots per call site
+    static final int MAX_CONCAT_ARGS = 199;
+
+    // Interrupts.poll, on the back edge of every loop
+    static Sequence POLL_INTERRUPT = new ArraySequence(
+            Assembler.INVOKESTATIC, Type.getInternalName(Interrupts.class), "poll", "()V"
+    );
+
+    // type of an arithmetic comparison whose result is jumped on, see Arithmetic.adaptReturn
+    static String COMPARISON_DESCRIPTOR = MethodType.methodType(boolean.class, Object.class, Object.class)
+            .toMethodDescriptorString();
+
+    // Objects.equals, which is what eq? does
+    static Sequence EQUALS = new ArraySequence(
+            Assembler.INVOKESTATIC, Type.getInternalName(java.util.Objects.class),
+            "equals", COMPARISON_DESCRIPTOR
+    );
+
+    static Sequence INT_VALUE = Sequence.makeList(
+            Sequence.makeList(Assembler.CHECKCAST, Type.getInternalName(Integer.class)),
+            Sequence.makeList(Assembler.INVOKEVIRTUAL, Type.getInternalName(Integer.class), "intValue", "()I")
+    );
+
+    /**
+     * How compiled code creates, reads and writes one kind of array
+     */
+    static class ArrayType {
+        final String descriptor;
+        final Object create;
+        final Keyword load;
+        final Keyword store;
+        // instructions converting a loaded element to an Object
+        final Sequence box;
+        // instructions converting an Object into a storable element
+        final Sequence unbox;
+
+        ArrayType(String descriptor, Object create, String load, String store, Sequence box, Sequence unbox) {
+            this.descriptor = descriptor;
+            this.create = create;
+            this.load = Keyword.makeKeyword(load);
+            this.store = Keyword.makeKeyword(store);
+            this.box = box;
+            this.unbox = unbox;
+        }
+
+        static Sequence unboxNumber(String method, String descriptor) {
+            return Sequence.makeList(
+                    Sequence.makeList(Assembler.CHECKCAST, Type.getInternalName(Number.class)),
+                    Sequence.makeList(Assembler.INVOKEVIRTUAL, Type.getInternalName(Number.class),
+                            method, descriptor));
+        }
+    }
+
+    static Map<Keyword, ArrayType> ARRAY_TYPES = Map.of(
+            Keyword.makeKeyword("boolean"), new ArrayType("[Z",
+                    Sequence.makeList(Assembler.NEWARRAY, Keyword.makeKeyword("boolean")),
+                    "baload", "bastore",
+                    Sequence.makeList(Sequence.makeList(Assembler.INVOKESTATIC,
+                            Type.getInternalName(Arithmetic.class), "truth", "(Z)Ljava/lang/Object;")),
+                    Sequence.makeList(Sequence.makeList(Assembler.INVOKESTATIC,
+                            Type.getInternalName(PrimitiveArrays.class), "isTrue", "(Ljava/lang/Object;)Z"))),
+            Keyword.makeKeyword("byte"), new ArrayType("[B",
+                    Sequence.makeList(Assembler.NEWARRAY, Keyword.makeKeyword("byte")),
+                    "baload", "bastore",
+                    Sequence.makeList(PARSE_INT),
+                    ArrayType.unboxNumber("intValue", "()I")),
+            Keyword.makeKeyword("char"), new ArrayType("[C",
+                    Sequence.makeList(Assembler.NEWARRAY, Keyword.makeKeyword("char")),
+                    "caload", "castore",
+                    Sequence.makeList(Sequence.makeList(Assembler.INVOKESTATIC,
+                            Type.getInternalName(Character.class), "valueOf", "(C)Ljava/lang/Character;")),
+                    Sequence.makeList(
+                            Sequence.makeList(Assembler.CHECKCAST, Type.getInternalName(Character.class)),
+                            Sequence.makeList(Assembler.INVOKEVIRTUAL, Type.getInternalName(Character.class),
+                                    "charValue", "()C"))),
+            Keyword.makeKeyword("short"), new ArrayType("[S",
+                    Sequence.makeList(Assembler.NEWARRAY, Keyword.makeKeyword("short")),
+                    "saload", "sastore",
+                    Sequence.makeList(PARSE_INT),
+                    ArrayType.unboxNumber("intValue", "()I")),
+            Keyword.makeKeyword("int"), new ArrayType("[I",
+                    Sequence.makeList(Assembler.NEWARRAY, Keyword.makeKeyword("int")),
+                    "iaload", "iastore",
+                    Sequence.makeList(PARSE_INT),
+                    ArrayType.unboxNumber("intValue", "()I")),
+            Keyword.makeKeyword("long"), new ArrayType("[J",
+                    Sequence.makeList(Assembler.NEWARRAY, Keyword.makeKeyword("long")),
+                    "laload", "lastore",
+                    Sequence.makeList(PARSE_LONG),
+                    ArrayType.unboxNumber("longValue", "()J")),
+            Keyword.makeKeyword("float"), new ArrayType("[F",
+                    Sequence.makeList(Assembler.NEWARRAY, Keyword.makeKeyword("float")),
+                    "faload", "fastore",
+                    Sequence.makeList(Keyword.makeKeyword("f2d"), PARSE_DOUBLE),
+                    ArrayType.unboxNumber("floatValue", "()F")),
+            Keyword.makeKeyword("double"), new ArrayType("[D",
+                    Sequence.makeList(Assembler.NEWARRAY, Keyword.makeKeyword("double")),
+                    "daload", "dastore",
+                    Sequence.makeList(PARSE_DOUBLE),
+                    ArrayType.unboxNumber("doubleValue", "()D")),
+            Keyword.makeKeyword("object"), new ArrayType("[Ljava/lang/Object;",
+                    Sequence.makeList(Assembler.ANEWARRAY, Type.getInternalName(Object.class)),
+                    "aaload", "aastore",
+                    EmptySequence.EMPTY_SEQUENCE,
+                    EmptySequence.EMPTY_SEQUENCE)
+    );
+
     ArrayList<CompClass> classes = new ArrayList<>();
+    // size of the classes once defineClasses has run, for the Compile event
+    long definedBytes = 0;
+    // reader the compiled forms came from, used for source positions. May be null
+    LispReader source;
+
+    Compiler() {
+        this(null);
+    }
+
+    Compiler(LispReader source) {
+        this.source = source;
+    }
+
+    CompClass newClass(Symbol functionName, CompEnvir parentEnvir) {
+        CompClass enclosing = null;
+        for(CompEnvir envir = parentEnvir; envir != null && enclosing == null; envir = envir.parent) {
+            enclosing = envir.closure;
+        }
+        CompClass compClass = new CompClass(functionName, enclosing);
+        compClass.index = classes.size();
+        if(source != null)
+            compClass.sourceFile = source.getSourceName();
+        classes.add(compClass);
+        return compClass;
+    }
 
+    /**
+     * Expands expr until its head is no longer a macro. Expansions are cached, see MacroCache
+     */
     public static Object macroExpand(Object expr) {
+        Object form = expr;
         while(true) {
             if(!(expr instanceof Sequence)) {
                 return expr;
@@ -77,6 +258,13 @@ public class Compiler {
             }
             Object resource = Environment.getIfExists((Symbol) head);
             if(resource instanceof Function && ((Function) resource).isMacro()) {
+                LoadedFiles.macroUsed((Symbol) head);
+                if(expr == form) {
+                    Object cached = MacroCache.get(form);
+                    CompilerMetrics.macroCacheLookup(cached != null);
+                    if(cached != null)
+                        return cached;
+                }
                 Function macro = (Function) resource;
                 Object[] args = new Object[((Sequence) expr).rest().length()];
                 // ignore the first arg, which is the macro name
@@ -85,8 +273,14 @@ public class Compiler {
                     args[i] = argSeq.first();
                     argSeq = argSeq.rest();
                 }
+                FlightRecorder.MacroExpandEvent event = FlightRecorder.beginMacroExpand();
+                long start = CompilerMetrics.start();
                 expr = macro.apply(args);
+                CompilerMetrics.macroExpanded((Symbol) head, start);
+                FlightRecorder.macroExpanded(event, (Symbol) head, args.length);
             } else {
+                if(expr != form)
+                    MacroCache.put(form, expr);
                 return expr;
             }
         }
@@ -98,6 +292,13 @@ public class Compiler {
         CompClass compClass;
         boolean isVarargs;
         int paramCount;
+        // last source line marked in bytecode
+        int line = -1;
+        // label and variable slots of the innermost loop, which recur jumps to. Null for the function
+        Symbol loopLabel;
+        int[] loopSlots;
+        // end of the innermost loop that isn't in tail position, its tail positions jump there instead of returning
+        Symbol exitLabel;
 
         CompilationContext(CompEnvir envir, CompClass compClass, int paramCount, boolean isVarargs) {
             bytecode = new ArrayList<>();
@@ -116,6 +317,22 @@ public class Compiler {
                 bytecode.add(new ArraySequence(objects));
             }
         }
+
+        void addAll(Sequence instructions) {
+            for(Object instruction : instructions) {
+                bytecode.add(instruction);
+            }
+        }
+
+        /**
+         * Leaves the value on the stack as the result of the form in tail position
+         */
+        void addReturn() {
+            if(exitLabel == null)
+                add(Assembler.ARETURN);
+            else
+                add(Assembler.GOTO, exitLabel);
+        }
     }
 
     void compileQuote(Object ast, CompilationContext context) {
@@ -128,9 +345,8 @@ public class Compiler {
                             ((Keyword) ast).getValue(),
                             Type.getDescriptor(Keyword.class),
                             KEY_HANDLE));
-        } else if(ast instanceof Integer) {
-            context.add(Assembler.ICONST, ast);
-            context.add(PARSE_INT);
+        } else if(ast instanceof Integer || ast instanceof Long || ast instanceof Double) {
+            compileNumber(ast, context);
         } else if(ast instanceof String) {
             context.add(Assembler.LDC, ast);
         } else if(ast instanceof Sequence) {
@@ -145,6 +361,157 @@ public class Compiler {
         }
     }
 
+    void compileNumber(Object number, CompilationContext context) {
+        if(number instanceof Integer) {
+            context.add(Assembler.ICONST, number);
+            context.add(PARSE_INT);
+        } else if(number instanceof Long) {
+            context.add(Assembler.LDC, number);
+            context.add(PARSE_LONG);
+        } else {
+            context.add(Assembler.LDC, number);
+            context.add(PARSE_DOUBLE);
+        }
+    }
+
+    /**
+     * @return The element type keyword of form if it is known to evaluate to a primitive array, otherwise null
+     */
+    Keyword arrayType(Object form, CompilationContext context) {
+        if(form instanceof Sequence && MAKE_ARRAY.equals(((Sequence) form).first())
+                && ARRAY_TYPES.containsKey(((Sequence) form).second())) {
+            return (Keyword) ((Sequence) form).second();
+        } else if(form instanceof Symbol) {
+            return context.envir.getArrayType((Symbol) form);
+        }
+        return null;
+    }
+
+    /*
+    (make-array :type length)
+    (aget [:type] array index)
+    (aset [:type] array index value)
+    (alength [:type] array)
+    When the element type is known the array instructions are emitted directly,
+    otherwise the operation falls back to the reflective versions in PrimitiveArrays.
+     */
+    void compileArrayOp(Object head, Sequence body, CompilationContext context) {
+        String arrays = Type.getInternalName(PrimitiveArrays.class);
+        if(MAKE_ARRAY.equals(head)) {
+            ArrayType arrayType = ARRAY_TYPES.get(body.first());
+            if(arrayType == null) {
+                compile(body.first(), context, false);
+                compile(body.second(), context, false);
+                context.addAll(INT_VALUE);
+                context.add(Assembler.INVOKESTATIC, arrays, "makeArray", "(Ljava/lang/Object;I)Ljava/lang/Object;");
+            } else {
+                compile(body.second(), context, false);
+                context.addAll(INT_VALUE);
+                context.add(arrayType.create);
+            }
+            return;
+        }
+
+        Keyword hint = null;
+        if(body.first() instanceof Keyword) {
+            hint = (Keyword) body.first();
+            body = body.rest();
+            if(!ARRAY_TYPES.containsKey(hint))
+                throw new SyntaxException(hint + " is not an array type");
+        } else {
+            hint = arrayType(body.first(), context);
+        }
+        ArrayType arrayType = hint == null ? null : ARRAY_TYPES.get(hint);
+
+        compile(body.first(), context, false);
+        if(arrayType != null)
+            context.add(Assembler.CHECKCAST, arrayType.descriptor);
+        if(ALENGTH.equals(head)) {
+            if(arrayType != null)
+                context.add(Assembler.ARRAYLENGTH);
+            else
+                context.add(Assembler.INVOKESTATIC, arrays, "alength", "(Ljava/lang/Object;)I");
+            context.add(PARSE_INT);
+            return;
+        }
+
+        compile(body.second(), context, false);
+        context.addAll(INT_VALUE);
+        if(AGET.equals(head)) {
+            if(arrayType != null) {
+                context.add(arrayType.load);
+                context.addAll(arrayType.box);
+            } else {
+                context.add(Assembler.INVOKESTATIC, arrays, "aget", "(Ljava/lang/Object;I)Ljava/lang/Object;");
+            }
+        } else {
+            compile(body.third(), context, false);
+            // leave a copy of the value under the array and index as the result of aset
+            context.add(Assembler.DUP_X2);
+            if(arrayType != null) {
+                context.addAll(arrayType.unbox);
+                context.add(arrayType.store);
+            } else {
+                context.add(Assembler.INVOKESTATIC, arrays, "aset", "(Ljava/lang/Object;ILjava/lang/Object;)V");
+            }
+        }
+    }
+
+    /*
+    (str args...)
+    Concatenates String.valueOf of each arg, with one StringConcatFactory call site. Literal
+    strings and numbers are folded into the site's recipe, so only the other args are passed.
+     */
+    void compileStr(Sequence body, CompilationContext context) {
+        StringBuilder recipe = new StringBuilder();
+        ArrayList<Object> constants = new ArrayList<>();
+        // the literals alone, in case there is nothing else
+        StringBuilder literals = new StringBuilder();
+        int args = 0;
+        for(Object arg : body) {
+            if(arg instanceof String || arg instanceof Integer || arg instanceof Long || arg instanceof Double) {
+                String literal = arg.toString();
+                literals.append(literal);
+                if(literal.indexOf('\1') >= 0 || literal.indexOf('\2') >= 0) {
+                    // the recipe's tag characters can't be in it, pass the literal as a constant
+                    recipe.append('\2');
+                    constants.add(literal);
+                } else {
+                    recipe.append(literal);
+                }
+                continue;
+            }
+            if(args == MAX_CONCAT_ARGS) {
+                // concatenate what's on the stack so far, and pass that to a new site
+                addConcat(recipe, constants, args, context);
+                recipe.setLength(0);
+                constants.clear();
+                recipe.append('\1');
+                args = 1;
+            }
+            compile(arg, context, false);
+            recipe.append('\1');
+            args ++;
+        }
+        if(args == 0)
+            context.add(Assembler.LDC, literals.toString());
+        else
+            addConcat(recipe, constants, args, context);
+    }
+
+    void addConcat(StringBuilder recipe, List<Object> constants, int args, CompilationContext context) {
+        Object[] instruction = new Object[5 + constants.size()];
+        instruction[0] = Assembler.INVOKEDYNAMIC;
+        instruction[1] = STRING_CONCAT_BOOTSTRAP;
+        instruction[2] = "str";
+        instruction[3] = MethodType.genericMethodType(args).changeReturnType(String.class).toMethodDescriptorString();
+        instruction[4] = recipe.toString();
+        for(int i = 0; i < constants.size(); i ++) {
+            instruction[5 + i] = constants.get(i);
+        }
+        context.add(instruction);
+    }
+
     CompClass compileLambda(Sequence expr, CompEnvir parentEnvir) {
         Object head = expr.first();
         Sequence forms = expr.rest();
@@ -159,8 +526,7 @@ public class Compiler {
             forms = forms.rest();
         }
 
-        CompClass lambdaClass = new CompClass(name);
-        classes.add(lambdaClass);
+        CompClass lambdaClass = newClass(name, parentEnvir);
 
         // TODO: assert that there are a matched number of params / body
         for(;!forms.isEmpty(); forms = forms.rest().rest()) {
@@ -182,6 +548,7 @@ public class Compiler {
                 destruct = destruct.rest();
             }
             CompilationContext context = new CompilationContext(lambdaEnvir, lambdaClass, paramCount, isVarargs);
+            markLine(expr, context);
             // compile invoke method
             compile(forms.second(), context, true);
             lambdaClass.generateInvoker(paramCount, isVarargs, context.bytecode);
@@ -196,7 +563,182 @@ public class Compiler {
         return lambdaClass;
     }
 
+    /**
+     * @return Whether head is a function literal with a single arity of argc fixed parameters,
+     * whose body doesn't use asm-quote
+     */
+    static boolean isInlinable(Object head, int argc) {
+        if(!(head instanceof Sequence))
+            return false;
+        Object lambda = macroExpand(head);
+        if(!(lambda instanceof Sequence) || !LAMBDA.equals(((Sequence) lambda).first())
+                || ((Sequence) lambda).length() != 3 || !(((Sequence) lambda).second() instanceof Sequence))
+            return false;
+        Sequence params = (Sequence) ((Sequence) lambda).second();
+        if(params.length() != argc)
+            return false;
+        for(Object param : params) {
+            if(!(param instanceof Symbol))
+                return false;
+        }
+        // raw bytecode was written for a method of its own: its labels could clash with the
+        // caller's, and :areturn would return from the caller
+        return !usesAsm(((Sequence) lambda).third());
+    }
+
+    /**
+     * @param form A form in evaluated position
+     * @return Whether form contains asm-quote. Only evaluated forms are macroexpanded and searched,
+     * not parameter lists, binding names or quoted data
+     */
+    static boolean usesAsm(Object form) {
+        form = macroExpand(form);
+        if(!(form instanceof Sequence) || ((Sequence) form).isEmpty())
+            return false;
+        Sequence sequence = (Sequence) form;
+        Object head = sequence.first();
+        if(ASM.equals(head))
+            return true;
+        if(QUOTE.equals(head))
+            return false;
+        if(LAMBDA.equals(head) || DEFUN.equals(head) || DEFMACRO.equals(head)) {
+            // (function (params) body (params) body ...), after the name for defun and defmacro
+            Sequence forms = LAMBDA.equals(head) ? sequence.rest() : sequence.rest().rest();
+            for(; !forms.isEmpty(); forms = forms.rest().rest()) {
+                if(usesAsm(forms.second()))
+                    return true;
+            }
+            return false;
+        }
+        if(LET.equals(head) || LOOP.equals(head)) {
+            // (let (name value ...) body)
+            for(Sequence bindings = (Sequence) sequence.second(); !bindings.isEmpty();
+                bindings = bindings.rest().rest()) {
+                if(usesAsm(bindings.second()))
+                    return true;
+            }
+            return usesAsm(sequence.third());
+        }
+        if(DEFINE.equals(head))
+            return usesAsm(sequence.third());
+        for(Object element : sequence) {
+            if(usesAsm(element))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Compiles body as the body of a loop over variables already stored in slots.
+     * When the loop isn't in tail position, its tail positions jump to the end of the loop with
+     * its value instead of returning it. An explicit :areturn in asm-quote in a loop form still
+     * returns from the method, immediately called functions using asm-quote aren't inlined
+     */
+    void compileLoop(int[] slots, Object body, CompilationContext context, boolean isTail) {
+        Symbol outerLabel = context.loopLabel;
+        int[] outerSlots = context.loopSlots;
+        Symbol outerExit = context.exitLabel;
+        context.loopLabel = Symbol.gensym("loop");
+        context.loopSlots = slots;
+        if(!isTail)
+            context.exitLabel = Symbol.gensym("exit");
+        context.add(Assembler.LABEL, context.loopLabel);
+        compile(body, context, true);
+        if(!isTail)
+            context.add(Assembler.LABEL, context.exitLabel);
+        context.loopLabel = outerLabel;
+        context.loopSlots = outerSlots;
+        context.exitLabel = outerExit;
+    }
+
+    void markLine(Object form, CompilationContext context) {
+        if(source == null)
+            return;
+        int line = source.getLine(form);
+        if(line != -1 && line != context.line) {
+            context.add(Assembler.LINE, line);
+            context.line = line;
+        }
+    }
+
+    /**
+     * Compiles the test of an if, which jumps to falseLabel if test is nil and otherwise falls through.
+     * Comparisons, eq?, nil?, not, empty? and even? jump on their primitive result instead of
+     * producing t or nil to be tested, and the nested ifs that and and or expand to become jumps.
+     * Like the arithmetic operators, the predicates can be shadowed by locals but not by
+     * redefining them globally.
+     */
+    void compileTest(Object test, Symbol falseLabel, CompilationContext context) {
+        markLine(test, context);
+        test = macroExpand(test);
+        if(!(test instanceof Sequence) || !(((Sequence) test).first() instanceof Symbol)) {
+            compile(test, context, false);
+            context.add(Assembler.IFNULL, falseLabel);
+            return;
+        }
+        Symbol head = (Symbol) ((Sequence) test).first();
+        Sequence body = ((Sequence) test).rest();
+        int argc = body.length();
+        boolean global = !context.envir.contains(head);
+        if(IF.equals(head) && argc == 3) {
+            // (if a b c) is true if a and b are, or if c is
+            Symbol elseLabel = Symbol.gensym("if");
+            Symbol trueLabel = Symbol.gensym("then");
+            compileTest(body.first(), elseLabel, context);
+            compileTest(body.second(), falseLabel, context);
+            context.add(Assembler.GOTO, trueLabel);
+            context.add(Assembler.LABEL, elseLabel);
+            compileTest(body.third(), falseLabel, context);
+            context.add(Assembler.LABEL, trueLabel);
+        } else if(global && Arithmetic.isOperator(head) && Arithmetic.isComparison(Arithmetic.OPERATORS.get(head))
+                && argc == 2) {
+            compile(body.first(), context, false);
+            compile(body.second(), context, false);
+            context.add(Assembler.INVOKEDYNAMIC, ARITHMETIC_BOOTSTRAP, "arithmetic",
+                    COMPARISON_DESCRIPTOR, head.toString());
+            context.add(Assembler.IFEQ, falseLabel);
+        } else if(global && (NIL_P.equals(head) || NOT.equals(head)) && argc == 1) {
+            compile(body.first(), context, false);
+            context.add(Assembler.IFNONNULL, falseLabel);
+        } else if(global && EQ.equals(head) && argc == 2) {
+            compile(body.first(), context, false);
+            compile(body.second(), context, false);
+            context.add(EQUALS);
+            context.add(Assembler.IFEQ, falseLabel);
+        } else if(global && EVEN_P.equals(head) && argc == 1) {
+            compile(body.first(), context, false);
+            context.addAll(INT_VALUE);
+            context.add(Assembler.ICONST, 1);
+            context.add(Assembler.IAND);
+            context.add(Assembler.IFNE, falseLabel);
+        } else if(global && EMPTY_P.equals(head) && argc == 1) {
+            // x is tested twice. A symbol can simply be loaded again, anything else is kept in a
+            // local for the duration of the test
+            Object x = body.first();
+            CompEnvir parentEnvir = context.envir;
+            if(!(x instanceof Symbol)) {
+                context.envir = new CompEnvir(parentEnvir);
+                Symbol temp = Symbol.gensym("test");
+                compile(x, context, false);
+                context.add(Assembler.ASTORE, context.envir.insert(temp));
+                x = temp;
+            }
+            compile(x, context, false);
+            context.add(Assembler.INSTANCEOF, Type.getInternalName(Sequence.class));
+            context.add(Assembler.IFEQ, falseLabel);
+            compile(x, context, false);
+            context.add(Assembler.CHECKCAST, Type.getInternalName(Sequence.class));
+            context.add(Assembler.INVOKEVIRTUAL, Type.getInternalName(Sequence.class), "isEmpty", "()Z");
+            context.add(Assembler.IFEQ, falseLabel);
+            context.envir = parentEnvir;
+        } else {
+            compile(test, context, false);
+            context.add(Assembler.IFNULL, falseLabel);
+        }
+    }
+
     void compile(Object ast, CompilationContext context, boolean isTail) {
+        markLine(ast, context);
         ast = macroExpand(ast);
         if(ast instanceof Sequence) {
             Sequence astSequence = (Sequence) ast;
@@ -207,60 +749,80 @@ public class Compiler {
                 // need: constructor args
                 // need: constructor
                 CompClass lambdaClass = compileLambda((Sequence) ast, context.envir);
-                context.add(Assembler.NEW, lambdaClass.getClassName());
-                context.add(Assembler.DUP);
                 for(Symbol sym : lambdaClass.getCaptured()) {
                     compile(sym, context, false);
                 }
-                context.add(Assembler.INVOKESPECIAL, lambdaClass.getClassName(), "<init>",
-                        lambdaClass.getConstructor());
+                // hidden classes can't be named in bytecode, so the class is looked up by the bootstrap
+                context.add(Assembler.INVOKEDYNAMIC, CLOSURE_BOOTSTRAP, "closure",
+                        Assembler.getMethodDescriptor(Object.class, lambdaClass.getCaptured().size()),
+                        lambdaClass.getClassName(), lambdaClass.index);
             } else if (LET.equals(head)) {
                 CompEnvir parentEnvir = context.envir;
                 context.envir = new CompEnvir(context.envir);
                 Sequence bindings = (Sequence) body.first();
                 while (!bindings.isEmpty()) {
+                    Keyword arrayType = arrayType(bindings.second(), context);
                     compile(bindings.second(), context, false);
-                    int index = context.envir.insert((Symbol) bindings.first());
+                    int index = context.envir.insert((Symbol) bindings.first(), arrayType);
                     context.add(Sequence.makeList(Assembler.ASTORE, index));
                     bindings = bindings.rest().rest();
                 }
                 compile(body.second(), context, isTail);
                 context.envir = parentEnvir;
                 return;
+            } else if (LOOP.equals(head)) {
+                // (loop (var init ...) body), the bindings work like let's
+                CompEnvir parentEnvir = context.envir;
+                context.envir = new CompEnvir(context.envir);
+                Sequence bindings = (Sequence) body.first();
+                int[] slots = new int[(bindings.length() + 1) / 2];
+                for(int i = 0; i < slots.length; i ++) {
+                    compile(bindings.second(), context, false);
+                    slots[i] = context.envir.insert((Symbol) bindings.first());
+                    context.add(Assembler.ASTORE, slots[i]);
+                    bindings = bindings.rest().rest();
+                }
+                compileLoop(slots, body.second(), context, isTail);
+                context.envir = parentEnvir;
+                return;
             } else if (RECUR.equals(head)) {
                 /*
-                assert that
-                - in tail position
-                - args applicable to current function
-                - inside function construct
-                pseudocode:
+                recur jumps back to the innermost loop, or to the start of the function
                 if first of bytecodes is not label:
                     gensym label
                 compile and store each argument
                 goto label
                  */
-                if(!isTail || (context.isVarargs && body.length() < context.paramCount - 1)
-                    || (!context.isVarargs && body.length() != context.paramCount)) {
-                    throw new RuntimeException("wrong arity for recur");
-                }
                 Symbol label;
-                Object firstBytecode = context.bytecode.get(0);
-                if(firstBytecode instanceof Sequence &&
-                        Assembler.LABEL.equals(((Sequence) firstBytecode).first())) {
-                    label = (Symbol) ((Sequence) firstBytecode).second();
+                if(context.loopSlots != null) {
+                    if(!isTail || body.length() != context.loopSlots.length)
+                        throw new RuntimeException("wrong arity for recur");
+                    label = context.loopLabel;
                 } else {
-                    label = Symbol.gensym("start");
-                    context.bytecode.add(0, Sequence.makeList(Assembler.LABEL, label));
+                    if(!isTail || (context.isVarargs && body.length() < context.paramCount - 1)
+                        || (!context.isVarargs && body.length() != context.paramCount)) {
+                        throw new RuntimeException("wrong arity for recur");
+                    }
+                    Object firstBytecode = context.bytecode.get(0);
+                    if(firstBytecode instanceof Sequence &&
+                            Assembler.LABEL.equals(((Sequence) firstBytecode).first())) {
+                        label = (Symbol) ((Sequence) firstBytecode).second();
+                    } else {
+                        label = Symbol.gensym("start");
+                        context.bytecode.add(0, Sequence.makeList(Assembler.LABEL, label));
+                    }
                 }
 
                 for(Object obj : body) {
                     compile(obj, context, false);
                 }
-                // first slot is 'this', locals begin at 1
+                // first slot is 'this', function locals begin at 1
                 for(int i = body.length(); i > 0; i --) {
-                    context.add(Assembler.ASTORE, i);
+                    context.add(Assembler.ASTORE, context.loopSlots != null ? context.loopSlots[i - 1] : i);
                 }
                 // TODO: repack rest arguments if function is varargs
+                // lets a runaway loop on an interrupted thread stop, see Interrupts
+                context.add(POLL_INTERRUPT);
                 context.add(Assembler.GOTO, label);
                 return;
             } else if (QUOTE.equals(head)) {
@@ -277,8 +839,7 @@ public class Compiler {
                 Symbol endLabel = null;
 
                 // test clause
-                compile(body.first(), context, false);
-                context.add(Assembler.IFNULL, targetLabel);
+                compileTest(body.first(), targetLabel, context);
                 // then clause
                 compile(body.second(), context, isTail);
                 if (!isTail) {
@@ -300,6 +861,18 @@ public class Compiler {
                     else
                         context.add(obj);
                 }
+            } else if ((MAKE_ARRAY.equals(head) || AGET.equals(head) || ASET.equals(head) || ALENGTH.equals(head))
+                    && !context.envir.contains((Symbol) head)) {
+                compileArrayOp(head, body, context);
+            } else if (STR.equals(head) && !context.envir.contains((Symbol) head)) {
+                compileStr(body, context);
+            } else if (Arithmetic.isOperator(head) && body.length() == 2
+                    && !context.envir.contains((Symbol) head)) {
+                // binary numeric operators get their own type profiling call site
+                compile(body.first(), context, false);
+                compile(body.second(), context, false);
+                context.add(Assembler.INVOKEDYNAMIC, ARITHMETIC_BOOTSTRAP, "arithmetic",
+                        Assembler.getMethodDescriptor(Object.class, 2), head.toString());
             } else if (head instanceof Symbol && !context.envir.contains((Symbol) head)) {
                 if(head.equals(context.compClass.getFunctionName())) {
                     /*
@@ -318,28 +891,61 @@ public class Compiler {
                     for (Object arg : body) {
                         compile(arg, context, false);
                     }
+                    LoadedFiles.globalUsed((Symbol) head);
                     context.add(Assembler.INVOKEDYNAMIC, ENVIR_FUNCTION, "futureUse",
                             Assembler.getMethodDescriptor(Object.class, body.length()),
-                            head.toString());
+                            head.toString(), Environment.current().getName());
+                }
+            } else if (isInlinable(head, body.length())) {
+                /*
+                ((function (params) body) args) runs body once with params bound to args, i.e. it
+                is a loop, and recur in body jumps back into it. Compile it as one instead of
+                making a class and an instance of it and calling it through apply
+                 */
+                Sequence lambda = (Sequence) macroExpand(head);
+                for(Object arg : body) {
+                    compile(arg, context, false);
                 }
+                CompEnvir parentEnvir = context.envir;
+                context.envir = new CompEnvir(context.envir);
+                int[] slots = new int[body.length()];
+                Sequence params = (Sequence) lambda.second();
+                for(int i = 0; i < slots.length; i ++, params = params.rest()) {
+                    slots[i] = context.envir.insert((Symbol) params.first());
+                }
+                for(int i = slots.length - 1; i >= 0; i --) {
+                    context.add(Assembler.ASTORE, slots[i]);
+                }
+                compileLoop(slots, lambda.third(), context, isTail);
+                context.envir = parentEnvir;
+                return;
             } else {
                 // dynamically load function object and call Function.apply
                 compile(head, context, false);
-                // pack arguments into array
                 int argc = body.length();
                 context.add(Assembler.CHECKCAST, Type.getInternalName(Function.class));
-                context.add(Assembler.ICONST, argc);
-                context.add(Assembler.ANEWARRAY, Type.getInternalName(Object.class));
-                for (int i = 0; i < argc; i++) {
-                    context.add(Assembler.DUP);
-                    context.add(Assembler.ICONST, i);
-                    compile(body.first(), context, false);
-                    context.add(Assembler.AASTORE);
-                    body = body.rest();
+                if(argc <= Function.MAX_FIXED_ARITY) {
+                    // call invokeN, which doesn't need an array
+                    for(Object arg : body) {
+                        compile(arg, context, false);
+                    }
+                    context.add(Assembler.INVOKEVIRTUAL, Type.getInternalName(Function.class),
+                            "invoke" + argc, Assembler.getMethodDescriptor(Object.class, argc));
+                } else {
+                    // pack arguments into array
+                    context.add(Assembler.ICONST, argc);
+                    context.add(Assembler.ANEWARRAY, Type.getInternalName(Object.class));
+                    for (int i = 0; i < argc; i++) {
+                        context.add(Assembler.DUP);
+                        context.add(Assembler.ICONST, i);
+                        compile(body.first(), context, false);
+                        context.add(Assembler.AASTORE);
+                        body = body.rest();
+                    }
+                    // call apply
+                    context.add(Assembler.INVOKEVIRTUAL, Type.getInternalName(Function.class),
+                            "apply", "([Ljava/lang/Object;)Ljava/lang/Object;");
                 }
-                // call apply
-                context.add(Assembler.INVOKEVIRTUAL, Type.getInternalName(Function.class),
-                        "apply", "([Ljava/lang/Object;)Ljava/lang/Object;");
             }
         } else if(ast instanceof Symbol) {
             /*
@@ -368,8 +974,10 @@ public class Compiler {
             // searched through all parent envirs and did not find symbol
             if (compEnvir == null) {
                 // if not in parents, invokedynamic to bind to global
-                context.add(Assembler.INVOKEDYNAMIC, ENVIR_OBJECT, ast.toString(),
-                        Assembler.getMethodDescriptor(Object.class, 0), "test");
+                LoadedFiles.globalUsed(symAst);
+                context.add(Assembler.INVOKEDYNAMIC, ENVIR_OBJECT, "global",
+                        Assembler.getMethodDescriptor(Object.class, 0),
+                        ast.toString(), Environment.current().getName());
             } else {
                 CompEnvir top = envirChain.pop();
                 if (closedVariable) {
@@ -393,9 +1001,8 @@ public class Compiler {
                     context.add(Assembler.ALOAD, localSlot);
                 }
             }
-        } else if (ast instanceof Integer) {
-            context.add(Assembler.ICONST, ast);
-            context.add(PARSE_INT);
+        } else if (ast instanceof Integer || ast instanceof Long || ast instanceof Double) {
+            compileNumber(ast, context);
         } else if (ast instanceof String) {
             context.add(Assembler.LDC, ast);
         } else if (ast instanceof Keyword) {
@@ -408,27 +1015,50 @@ public class Compiler {
             throw new RuntimeException(ast.toString());
         }
         if(isTail)
-            context.add(Assembler.ARETURN);
+            context.addReturn();
     }
 
     static Object eval(Object ast) {
+        return eval(ast, null);
+    }
+
+    /**
+     * Runs a top level form, with the interpreter if possible, otherwise by compiling it
+     * @param ast The form to evaluate
+     * @param source The reader ast was read from, or null
+     * @return The value of the form
+     */
+    static Object eval(Object ast, LispReader source) {
+        Compiler compiler = new Compiler(source);
+        Object form = ast;
         ast = macroExpand(ast);
-        Compiler compiler = new Compiler();
         if(ast instanceof Sequence) {
             Object head = ((Sequence) ast).first();
             if(DEFINE.equals(head)) {
                 Symbol name = (Symbol) ((Sequence) ast).second();
-                Object value = eval(((Sequence) ast).third());
+                LoadedFiles.defining(name, true);
+                Object value = eval(((Sequence) ast).third(), source);
                 return Environment.insert(name, value);
             } else if(DEFMACRO.equals(head) || DEFUN.equals(head)) {
                 Symbol name = (Symbol) ((Sequence) ast).second();
-                compiler.compileLambda((Sequence) ast, null);
-                byte[][] classBytes = new byte[compiler.classes.size()][];
-                for(int i = 0; i < compiler.classes.size(); i ++) {
-                    classBytes[i] = Assembler.buildClass(compiler.classes.get(i).toTree());
+                LoadedFiles.defining(name, false);
+                if(Interpreter.ENABLED) {
+                    long start = CompilerMetrics.start();
+                    InterpretedFunction interpreted = Interpreter.function((Sequence) ast);
+                    CompilerMetrics.end(CompilerMetrics.Phase.ANALYZE, start);
+                    CompilerMetrics.formEvaluated(interpreted != null);
+                    if(interpreted != null)
+                        return Environment.insert(name, interpreted);
+                } else {
+                    CompilerMetrics.formEvaluated(false);
                 }
+                FlightRecorder.CompileEvent event = FlightRecorder.beginCompile();
+                long start = CompilerMetrics.start();
+                compiler.compileLambda((Sequence) ast, null);
+                CompilerMetrics.end(CompilerMetrics.Phase.CODEGEN, start);
                 try {
-                    Class<?> mainClass = ClassDefiner.hotloadClasses(classBytes);
+                    Class<?> mainClass = compiler.defineClasses();
+                    compiler.compiled(event, name, (Sequence) ast, false);
                     Constructor<?> constructor = mainClass.getConstructor();
                     return Environment.insert(name, constructor.newInstance());
                 } catch (NoSuchMethodException | InstantiationException |
@@ -439,20 +1069,32 @@ public class Compiler {
             }
         }
 
-        CompClass main = new CompClass();
-        compiler.classes.add(main);
+        if(Interpreter.ENABLED) {
+            // most top level forms only ever run once, don't generate a class for them
+            long start = CompilerMetrics.start();
+            InterpretedFunction interpreted = Interpreter.topLevel(ast);
+            CompilerMetrics.end(CompilerMetrics.Phase.ANALYZE, start);
+            CompilerMetrics.formEvaluated(interpreted != null);
+            if(interpreted != null)
+                return interpreted.apply();
+        } else {
+            CompilerMetrics.formEvaluated(false);
+        }
+
+        FlightRecorder.CompileEvent event = FlightRecorder.beginCompile();
+        long start = CompilerMetrics.start();
+        CompClass main = compiler.newClass(null, null);
         CompilationContext context = new CompilationContext(new CompEnvir(null), main, 0, false);
+        compiler.markLine(form, context);
         compiler.compile(ast, context, true);
         main.generateInvoker(0, false, context.bytecode);
         main.generateInherits(false);
         main.generateConstructor();
+        CompilerMetrics.end(CompilerMetrics.Phase.CODEGEN, start);
 
-        byte[][] classBytes = new byte[compiler.classes.size()][];
-        for(int i = 0; i < compiler.classes.size(); i ++) {
-            classBytes[i] = Assembler.buildClass(compiler.classes.get(i).toTree());
-        }
         try {
-            Class<?> mainClass = ClassDefiner.hotloadClasses(classBytes);
+            Class<?> mainClass = compiler.defineClasses();
+            compiler.compiled(event, null, null, false);
             Constructor<?> constructor = mainClass.getConstructor();
             Object object = constructor.newInstance();
             return ((Function) object).apply();
@@ -464,13 +1106,56 @@ public class Compiler {
         return null;
     }
 
+    /**
+     * Assembles every class generated by this compiler and loads them together
+     * @return The first class, i.e. the top level function
+     */
+    Class<?> defineClasses() {
+        long start = CompilerMetrics.start();
+        byte[][] classBytes = new byte[classes.size()][];
+        long size = 0;
+        for(int i = 0; i < classes.size(); i ++) {
+            Sequence tree = classes.get(i).toTree();
+            long peepholeStart = CompilerMetrics.start();
+            tree = Peephole.optimize(tree);
+            CompilerMetrics.end(CompilerMetrics.Phase.PEEPHOLE, peepholeStart);
+            classBytes[i] = Assembler.buildClass(tree);
+            size += classBytes[i].length;
+        }
+        CompilerMetrics.end(CompilerMetrics.Phase.ASSEMBLE, start);
+        CompilerMetrics.classesDefined(classBytes.length, size);
+
+        start = CompilerMetrics.start();
+        Class<?> mainClass = ClassDefiner.hotloadClasses(classBytes);
+        CompilerMetrics.end(CompilerMetrics.Phase.DEFINE, start);
+        definedBytes = size;
+        return mainClass;
+    }
+
+    /**
+     * Commits a Compile event once defineClasses has run, see FlightRecorder.compiled
+     */
+    void compiled(FlightRecorder.CompileEvent event, Symbol name, Sequence lambda, boolean tierUp) {
+        FlightRecorder.compiled(event, name, lambda, tierUp, classes.size(), definedBytes);
+    }
+
     public static Object load(String filename) {
         try {
-            LispReader lispReader = LispReader.fileReader(filename);
-            Object form;
-            while((form = lispReader.readForm()) != null) {
-                eval(form);
-            }
+            LoadedFiles.load(filename);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Evaluates only the forms of a loaded file that changed, and the forms that use macros
+     * affected by them, see LoadedFiles
+     * @return The globals that were defined
+     */
+    public static Sequence reload(String filename) {
+        try {
+            return LoadedFiles.reload(filename);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -484,7 +1169,7 @@ public class Compiler {
         Object form;
         while((form = lispReader.readForm()) != null) {
             try {
-                System.out.println("=> " + eval(form));
+                System.out.println("=> " + eval(form, lispReader));
             } catch (Exception e) {
                 e.printStackTrace();
             }
@@ -0,0 +1,299 @@
+package lateral.lang;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms for where eval and load spend their time.
+ *
+ * Every phase is timed separately: reading, macro expansion, interpreter analysis, codegen,
+ * the peephole pass, Assembler.buildClass, class definition and Environment's bootstrap methods. Timings are
+ * inclusive, e.g. codegen includes the macro expansions it triggers.
+ * Everything is recorded into LongAdders, so recording is a couple of nanoTime calls and
+ * uncontended adds. -Dlateral.metrics=false turns recording off entirely.
+ *
+ * The same numbers are available as an MXBean, see registerMBean. The MBean is only
+ * registered with -Dlateral.jmx=true or on request, because starting JMX is slow.
+ */
+public final class CompilerMetrics implements CompilerMetricsMXBean {
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("lateral.metrics", "true"));
+
+    public enum Phase {
+        READ, MACROEXPAND, ANALYZE, CODEGEN, PEEPHOLE, ASSEMBLE, DEFINE, LINK;
+
+        String displayName() {
+            return name().toLowerCase();
+        }
+    }
+
+    /**
+     * Count, sum and power of two buckets of a series of non-negative values
+     */
+    public static final class Histogram {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAdder[] buckets = new LongAdder[64];
+
+        Histogram() {
+            for(int i = 0; i < buckets.length; i ++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long value) {
+            count.increment();
+            sum.add(value);
+            // 0 and 1 both go in the first bucket
+            buckets[63 - Long.numberOfLeadingZeros(value | 1)].increment();
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getSum() {
+            return sum.sum();
+        }
+
+        public long[] getBuckets() {
+            long[] values = new long[buckets.length];
+            for(int i = 0; i < values.length; i ++) {
+                values[i] = buckets[i].sum();
+            }
+            return values;
+        }
+
+        /**
+         * @param fraction e.g. 0.99
+         * @return Upper bound of the bucket containing that fraction of the values
+         */
+        public long percentile(double fraction) {
+            long[] values = getBuckets();
+            long total = 0;
+            for(long value : values) {
+                total += value;
+            }
+            long seen = 0;
+            for(int i = 0; i < values.length; i ++) {
+                seen += values[i];
+                if(seen > 0 && seen >= fraction * total)
+                    return i == 63 ? Long.MAX_VALUE : (2L << i) - 1;
+            }
+            return 0;
+        }
+
+        void reset() {
+            count.reset();
+            sum.reset();
+            for(LongAdder bucket : buckets) {
+                bucket.reset();
+            }
+        }
+    }
+
+    private static final CompilerMetrics INSTANCE = new CompilerMetrics();
+
+    private static final Histogram[] PHASES = new Histogram[Phase.values().length];
+    private static final Histogram BYTES_PER_DEFINITION = new Histogram();
+    private static final LongAdder CLASSES = new LongAdder();
+    private static final LongAdder FORMS_INTERPRETED = new LongAdder();
+    private static final LongAdder FORMS_COMPILED = new LongAdder();
+    private static final ConcurrentHashMap<Symbol, LongAdder> MACROS = new ConcurrentHashMap<>();
+    private static final LongAdder MACRO_CACHE_HITS = new LongAdder();
+    private static final LongAdder MACRO_CACHE_MISSES = new LongAdder();
+    private static boolean registered = false;
+
+    static {
+        for(int i = 0; i < PHASES.length; i ++) {
+            PHASES[i] = new Histogram();
+        }
+        if(Boolean.getBoolean("lateral.jmx"))
+            registerMBean();
+    }
+
+    private CompilerMetrics() {}
+
+    public static CompilerMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers the metrics with the platform MBeanServer, if they aren't already
+     */
+    public static synchronized void registerMBean() {
+        if(registered)
+            return;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE,
+                    new ObjectName("lateral.lang:type=CompilerMetrics"));
+            registered = true;
+        } catch (JMException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return A start time for end, or 0 when metrics are off
+     */
+    static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    static void end(Phase phase, long start) {
+        if(ENABLED)
+            PHASES[phase.ordinal()].record(System.nanoTime() - start);
+    }
+
+    static void macroExpanded(Symbol macro, long start) {
+        if(ENABLED) {
+            end(Phase.MACROEXPAND, start);
+            MACROS.computeIfAbsent(macro, key -> new LongAdder()).increment();
+        }
+    }
+
+    static void macroCacheLookup(boolean hit) {
+        if(ENABLED)
+            (hit ? MACRO_CACHE_HITS : MACRO_CACHE_MISSES).increment();
+    }
+
+    static void formEvaluated(boolean interpreted) {
+        if(ENABLED)
+            (interpreted ? FORMS_INTERPRETED : FORMS_COMPILED).increment();
+    }
+
+    /**
+     * Records one batch of classes defined together, i.e. one compiled form or tier up
+     */
+    static void classesDefined(int classes, long bytes) {
+        if(ENABLED) {
+            CLASSES.add(classes);
+            BYTES_PER_DEFINITION.record(bytes);
+        }
+    }
+
+    public static Histogram getHistogram(Phase phase) {
+        return PHASES[phase.ordinal()];
+    }
+
+    public static Histogram getBytesPerDefinition() {
+        return BYTES_PER_DEFINITION;
+    }
+
+    public long getFormsInterpreted() {
+        return FORMS_INTERPRETED.sum();
+    }
+
+    public long getFormsCompiled() {
+        return FORMS_COMPILED.sum();
+    }
+
+    public long getClassesGenerated() {
+        return CLASSES.sum();
+    }
+
+    public long getBytesGenerated() {
+        return BYTES_PER_DEFINITION.getSum();
+    }
+
+    public long getMacroCacheHits() {
+        return MACRO_CACHE_HITS.sum();
+    }
+
+    public long getMacroCacheMisses() {
+        return MACRO_CACHE_MISSES.sum();
+    }
+
+    public Map<String, Long> getPhaseCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        for(Phase phase : Phase.values()) {
+            counts.put(phase.displayName(), getHistogram(phase).getCount());
+        }
+        return counts;
+    }
+
+    public Map<String, Long> getPhaseNanos() {
+        Map<String, Long> nanos = new TreeMap<>();
+        for(Phase phase : Phase.values()) {
+            nanos.put(phase.displayName(), getHistogram(phase).getSum());
+        }
+        return nanos;
+    }
+
+    public Map<String, Long> getMacroExpansions() {
+        Map<String, Long> counts = new TreeMap<>();
+        MACROS.forEach((macro, count) -> counts.put(macro.toString(), count.sum()));
+        return counts;
+    }
+
+    public Map<String, Long> getPeepholeRewrites() {
+        return Peephole.getHits();
+    }
+
+    public Map<String, Long> getPeepholeInstructionsRemoved() {
+        return Peephole.getRemoved();
+    }
+
+    public long[] getPhaseHistogram(String phase) {
+        return getHistogram(Phase.valueOf(phase.toUpperCase())).getBuckets();
+    }
+
+    public long[] getBytesPerDefinitionHistogram() {
+        return BYTES_PER_DEFINITION.getBuckets();
+    }
+
+    public String getReport() {
+        return report();
+    }
+
+    public void reset() {
+        for(Histogram histogram : PHASES) {
+            histogram.reset();
+        }
+        BYTES_PER_DEFINITION.reset();
+        CLASSES.reset();
+        FORMS_INTERPRETED.reset();
+        FORMS_COMPILED.reset();
+        MACROS.clear();
+        MACRO_CACHE_HITS.reset();
+        MACRO_CACHE_MISSES.reset();
+        Peephole.reset();
+    }
+
+    /**
+     * @return A human readable summary of every metric
+     */
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("forms: %d interpreted, %d compiled%n",
+                FORMS_INTERPRETED.sum(), FORMS_COMPILED.sum()));
+        sb.append(String.format("generated: %d classes, %d bytes, p50 %d / p99 %d bytes per definition%n",
+                CLASSES.sum(), BYTES_PER_DEFINITION.getSum(),
+                BYTES_PER_DEFINITION.percentile(0.5), BYTES_PER_DEFINITION.percentile(0.99)));
+        sb.append(String.format("%-12s %10s %12s %10s %10s%n", "phase", "count", "total ms", "p50 us", "p99 us"));
+        for(Phase phase : Phase.values()) {
+            Histogram histogram = getHistogram(phase);
+            sb.append(String.format("%-12s %10d %12.1f %10.1f %10.1f%n", phase.displayName(),
+                    histogram.getCount(), histogram.getSum() / 1e6,
+                    histogram.percentile(0.5) / 1e3, histogram.percentile(0.99) / 1e3));
+        }
+        sb.append(String.format("macro cache: %d hits, %d misses, %d entries%n",
+                MACRO_CACHE_HITS.sum(), MACRO_CACHE_MISSES.sum(), MacroCache.size()));
+        sb.append("peephole rewrites (instructions removed):");
+        Map<String, Long> removed = Peephole.getRemoved();
+        Peephole.getHits().forEach((rule, hits) -> {
+            if(hits > 0)
+                sb.append(' ').append(rule).append('=').append(hits).append(" (").append(removed.get(rule)).append(')');
+        });
+        sb.append(System.lineSeparator());
+        sb.append("macro expansions:");
+        INSTANCE.getMacroExpansions().entrySet().stream()
+                .sorted((a, b) -> Long.compare(b.getValue(), a.getValue()))
+                .forEach(entry -> sb.append(' ').append(entry.getKey()).append('=').append(entry.getValue()));
+        return sb.append(System.lineSeparator()).toString();
+    }
+}
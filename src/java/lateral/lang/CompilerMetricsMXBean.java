@@ -0,0 +1,55 @@
+package lateral.lang;
+
+import java.util.Map;
+
+/**
+ * JMX view of CompilerMetrics, registered as lateral.lang:type=CompilerMetrics
+ */
+public interface CompilerMetricsMXBean {
+    long getFormsInterpreted();
+    long getFormsCompiled();
+    long getClassesGenerated();
+    long getBytesGenerated();
+    long getMacroCacheHits();
+    long getMacroCacheMisses();
+
+    /**
+     * @return Number of times each phase ran, keyed by phase name
+     */
+    Map<String, Long> getPhaseCounts();
+
+    /**
+     * @return Total nanoseconds spent in each phase, keyed by phase name
+     */
+    Map<String, Long> getPhaseNanos();
+
+    /**
+     * @return Number of expansions of each macro, keyed by macro name
+     */
+    Map<String, Long> getMacroExpansions();
+
+    /**
+     * @return Number of rewrites by each peephole rule, keyed by rule name
+     */
+    Map<String, Long> getPeepholeRewrites();
+
+    /**
+     * @return Number of instructions each peephole rule removed, keyed by rule name
+     */
+    Map<String, Long> getPeepholeInstructionsRemoved();
+
+    /**
+     * @param phase A phase name, e.g. codegen
+     * @return Element i is the number of runs that took between 2^i and 2^(i+1) nanoseconds
+     */
+    long[] getPhaseHistogram(String phase);
+
+    /**
+     * @return Element i is the number of definitions that generated between 2^i and 2^(i+1) bytes
+     */
+    long[] getBytesPerDefinitionHistogram();
+
+    String getReport();
+
+    void reset();
+}
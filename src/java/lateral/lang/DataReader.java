@@ -0,0 +1,482 @@
+package lateral.lang;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reader for files of plain data: lists, strings, numbers, keywords and symbols.
+ * Unlike LispReader nothing is ever compiled or expanded, there is no quasiquote or
+ * unquote, and no source positions are recorded. In exchange it is a lot faster:
+ * - lists are built without recursion, straight into ArraySequences of the right size
+ * - numbers are parsed from the buffer without making a String first
+ * - strings only go through a StringBuilder if they contain escapes
+ *
+ * 'x is still read as (quote x). Strings support the escapes \n \t \r \f \b \0 \" \\ and \\uXXXX.
+ */
+public class DataReader {
+    private static final int BUFFER_SIZE = 1 << 16;
+    // no point handing out chunks smaller than this to other threads
+    private static final long MIN_CHUNK = 1 << 20;
+    // mapped regions have to stay below 2GB
+    private static final long MAX_CHUNK = 1 << 28;
+
+    private static final byte LIST = 0;
+    private static final byte QUOTE = 1;
+
+    private final Reader stream;
+    // same buffering scheme as LispReader: buffer[mark, position) survives a refill
+    private char[] buffer;
+    private int position;
+    private int limit;
+    private int mark = -1;
+
+    // elements of every list that is still open, innermost last
+    private Object[] elements = new Object[256];
+    private int elementCount = 0;
+    // one frame per open list or pending quote
+    private int[] frameStarts = new int[64];
+    private byte[] frameKinds = new byte[64];
+    private int frameCount = 0;
+
+    private final StringBuilder escaped = new StringBuilder();
+
+    public DataReader(Reader reader) {
+        this.stream = reader;
+        this.buffer = new char[BUFFER_SIZE];
+    }
+
+    /**
+     * Reads from chars[offset, offset + length) without copying
+     */
+    public DataReader(char[] chars, int offset, int length) {
+        this.stream = null;
+        this.buffer = chars;
+        this.position = offset;
+        this.limit = offset + length;
+    }
+
+    public static DataReader fileReader(String path) throws IOException {
+        return new DataReader(new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8));
+    }
+
+    public static DataReader stringReader(String value) {
+        char[] chars = value.toCharArray();
+        return new DataReader(chars, 0, chars.length);
+    }
+
+    private boolean fill() throws IOException {
+        if(position < limit)
+            return true;
+        if(stream == null)
+            return false;
+        int keep = 0;
+        if(mark != -1) {
+            keep = limit - mark;
+            char[] next = keep == buffer.length ? new char[buffer.length * 2] : buffer;
+            System.arraycopy(buffer, mark, next, 0, keep);
+            buffer = next;
+            mark = 0;
+        }
+        int count;
+        do {
+            count = stream.read(buffer, keep, buffer.length - keep);
+        } while(count == 0);
+        position = keep;
+        limit = count == -1 ? keep : keep + count;
+        return count != -1;
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r' || c == '\f';
+    }
+
+    private static boolean isDelimiter(char c) {
+        return c == '(' || c == ')' || isWhitespace(c);
+    }
+
+    private void pushFrame(byte kind) {
+        if(frameCount == frameStarts.length) {
+            frameStarts = java.util.Arrays.copyOf(frameStarts, frameCount * 2);
+            frameKinds = java.util.Arrays.copyOf(frameKinds, frameCount * 2);
+        }
+        frameStarts[frameCount] = elementCount;
+        frameKinds[frameCount] = kind;
+        frameCount ++;
+    }
+
+    private void pushElement(Object element) {
+        if(elementCount == elements.length)
+            elements = java.util.Arrays.copyOf(elements, elementCount * 2);
+        elements[elementCount ++] = element;
+    }
+
+    /**
+     * @return The next top level datum, or null at the end of the input
+     */
+    public Object read() throws IOException {
+        while(fill()) {
+            char c = buffer[position];
+            Object datum;
+            if(isWhitespace(c)) {
+                position ++;
+                continue;
+            } else if(c == ';') {
+                while(fill() && buffer[position] != '\n')
+                    position ++;
+                continue;
+            } else if(c == '(') {
+                position ++;
+                pushFrame(LIST);
+                continue;
+            } else if(c == '\'') {
+                position ++;
+                pushFrame(QUOTE);
+                continue;
+            } else if(c == ')') {
+                position ++;
+                if(frameCount == 0 || frameKinds[frameCount - 1] != LIST)
+                    throw new SyntaxException("unexpected ) in data");
+                frameCount --;
+                int start = frameStarts[frameCount];
+                int length = elementCount - start;
+                if(length == 0) {
+                    datum = EmptySequence.EMPTY_SEQUENCE;
+                } else {
+                    Object[] values = new Object[length];
+                    System.arraycopy(elements, start, values, 0, length);
+                    java.util.Arrays.fill(elements, start, elementCount, null);
+                    datum = new ArraySequence(values);
+                }
+                elementCount = start;
+            } else if(c == '"') {
+                position ++;
+                datum = readString();
+            } else if(c == '`' || c == ',') {
+                throw new SyntaxException(c + " is not allowed in data");
+            } else {
+                datum = readAtom();
+            }
+
+            // a datum is finished, wrap pending quotes and either add it to its list or return it
+            while(frameCount > 0 && frameKinds[frameCount - 1] == QUOTE) {
+                frameCount --;
+                datum = new ArraySequence(LispReader.QUOTE, datum);
+            }
+            if(frameCount == 0)
+                return datum;
+            pushElement(datum);
+        }
+        if(frameCount > 0)
+            throw new SyntaxException("got EOF while reading data");
+        return null;
+    }
+
+    /**
+     * @return Every remaining top level datum
+     */
+    public Sequence readAll() throws IOException {
+        ArrayList<Object> forms = new ArrayList<>();
+        Object form;
+        while((form = read()) != null) {
+            forms.add(form);
+        }
+        return Sequence.makeList(forms.toArray());
+    }
+
+    private String readString() throws IOException {
+        mark = position;
+        while(fill()) {
+            char c = buffer[position];
+            if(c == '"') {
+                String value = new String(buffer, mark, position - mark);
+                position ++;
+                mark = -1;
+                return value;
+            } else if(c == '\\') {
+                escaped.setLength(0);
+                escaped.append(buffer, mark, position - mark);
+                mark = -1;
+                return readEscapedString();
+            }
+            position ++;
+        }
+        throw new SyntaxException("got EOF while reading string");
+    }
+
+    private String readEscapedString() throws IOException {
+        while(fill()) {
+            char c = buffer[position ++];
+            if(c == '"') {
+                return escaped.toString();
+            } else if(c != '\\') {
+                escaped.append(c);
+                continue;
+            }
+            if(!fill())
+                break;
+            c = buffer[position ++];
+            switch(c) {
+                case 'n': escaped.append('\n'); break;
+                case 't': escaped.append('\t'); break;
+                case 'r': escaped.append('\r'); break;
+                case 'f': escaped.append('\f'); break;
+                case 'b': escaped.append('\b'); break;
+                case '0': escaped.append('\0'); break;
+                case '"': escaped.append('"'); break;
+                case '\\': escaped.append('\\'); break;
+                case 'u': {
+                    int value = 0;
+                    for(int i = 0; i < 4; i ++) {
+                        if(!fill())
+                            throw new SyntaxException("got EOF in unicode escape");
+                        int digit = Character.digit(buffer[position ++], 16);
+                        if(digit == -1)
+                            throw new SyntaxException("bad unicode escape");
+                        value = value * 16 + digit;
+                    }
+                    escaped.append((char) value);
+                    break;
+                }
+                default:
+                    throw new SyntaxException("unknown escape \\" + c);
+            }
+        }
+        throw new SyntaxException("got EOF while reading string");
+    }
+
+    private Object readAtom() throws IOException {
+        mark = position;
+        read: while(fill()) {
+            while(position < limit) {
+                if(isDelimiter(buffer[position]))
+                    break read;
+                position ++;
+            }
+        }
+        int start = mark;
+        int length = position - mark;
+        mark = -1;
+
+        char first = buffer[start];
+        if(first == ':') {
+            return Keyword.makeKeyword(new String(buffer, start + 1, length - 1));
+        } else if(('0' <= first && first <= '9') ||
+                (first == '-' && length > 1 && '0' <= buffer[start + 1] && buffer[start + 1] <= '9')) {
+            return readNumber(start, length);
+        }
+        return Symbol.makeSymbol(new String(buffer, start, length));
+    }
+
+    /*
+    Integers are accumulated straight from the buffer, same types as LispReader.readNumber:
+    Integer if it fits, otherwise Long. Decimals go through Double.parseDouble.
+     */
+    private Number readNumber(int start, int length) {
+        int i = start;
+        int end = start + length;
+        boolean negative = buffer[i] == '-';
+        if(negative)
+            i ++;
+        long value = 0;
+        for(; i < end; i ++) {
+            char c = buffer[i];
+            if(c < '0' || c > '9') {
+                if(c == '.' || c == 'e' || c == 'E')
+                    return readDouble(start, length);
+                throw new SyntaxException("bad number " + new String(buffer, start, length));
+            }
+            // accumulate negatively so Long.MIN_VALUE can be represented
+            if(value < (Long.MIN_VALUE + (c - '0')) / 10)
+                throw new SyntaxException("number out of range " + new String(buffer, start, length));
+            value = value * 10 - (c - '0');
+        }
+        if(!negative) {
+            if(value == Long.MIN_VALUE)
+                throw new SyntaxException("number out of range " + new String(buffer, start, length));
+            value = -value;
+        }
+        if(Integer.MIN_VALUE <= value && value <= Integer.MAX_VALUE)
+            return (int) value;
+        return value;
+    }
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /*
+    Plain decimals with at most 15 digits are exactly digits / 10^k, both of which are exact
+    doubles, so the one division is correctly rounded. Anything else goes to Double.parseDouble.
+     */
+    private double readDouble(int start, int length) {
+        int end = start + length;
+        int i = start;
+        boolean negative = buffer[i] == '-';
+        if(negative)
+            i ++;
+        long digits = 0;
+        int digitCount = 0;
+        int scale = -1;
+        for(; i < end; i ++) {
+            char c = buffer[i];
+            if('0' <= c && c <= '9') {
+                digits = digits * 10 + (c - '0');
+                digitCount ++;
+                if(scale != -1)
+                    scale ++;
+            } else if(c == '.' && scale == -1) {
+                scale = 0;
+            } else {
+                break;
+            }
+        }
+        if(i != end || digitCount > 15 || scale <= 0) {
+            try {
+                return Double.parseDouble(new String(buffer, start, length));
+            } catch (NumberFormatException e) {
+                throw new SyntaxException("bad number " + new String(buffer, start, length));
+            }
+        }
+        double value = digits / POWERS_OF_TEN[scale];
+        return negative ? -value : value;
+    }
+
+    public static Sequence readFile(String path) throws IOException {
+        return readFile(path, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Reads a UTF-8 file of independent top level data.
+     * Large files are cut into chunks between top level forms and the chunks are
+     * decoded and parsed concurrently, then joined back together in order.
+     * @param path The file to read
+     * @param threads The number of threads to parse with
+     * @return Every top level datum in the file
+     */
+    public static Sequence readFile(String path, int threads) throws IOException {
+        Path file = Paths.get(path);
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long chunkCount = (size + MAX_CHUNK - 1) / MAX_CHUNK;
+            if(threads > 1)
+                chunkCount = Math.max(chunkCount, Math.min(threads * 4L, size / MIN_CHUNK));
+            long[] splits = chunkCount > 1 ? findSplits(channel, size, (int) chunkCount) : new long[] {0, size};
+            if(threads <= 1 || splits.length == 2) {
+                // chunks are still worth it on one thread, bulk decoding beats going through a Reader
+                ArrayList<Object> forms = new ArrayList<>();
+                for(int i = 0; i + 1 < splits.length; i ++) {
+                    for(Object form : readChunk(channel, splits[i], splits[i + 1])) {
+                        forms.add(form);
+                    }
+                }
+                return Sequence.makeList(forms.toArray());
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                ArrayList<Future<Sequence>> chunks = new ArrayList<>();
+                for(int i = 0; i + 1 < splits.length; i ++) {
+                    long start = splits[i];
+                    long end = splits[i + 1];
+                    chunks.add(executor.submit(() -> readChunk(channel, start, end)));
+                }
+                ArrayList<Object> forms = new ArrayList<>();
+                for(Future<Sequence> chunk : chunks) {
+                    for(Object form : chunk.get()) {
+                        forms.add(form);
+                    }
+                }
+                return Sequence.makeList(forms.toArray());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException e) {
+                if(e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                if(e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException) e.getCause();
+                throw new RuntimeException(e.getCause());
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+
+    private static Sequence readChunk(FileChannel channel, long start, long end) throws IOException {
+        MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        CharBuffer chars = StandardCharsets.UTF_8.newDecoder().decode(bytes);
+        return new DataReader(chars.array(), chars.arrayOffset() + chars.position(), chars.remaining()).readAll();
+    }
+
+    /**
+     * Finds byte offsets that are safe to split the file at: whitespace outside of any
+     * list, string or comment, and not right after a quote. Splitting at ASCII whitespace
+     * never cuts a UTF-8 sequence in half.
+     * @return Offsets starting with 0 and ending with size
+     */
+    private static long[] findSplits(FileChannel channel, long size, int chunkCount) throws IOException {
+        ArrayList<Long> splits = new ArrayList<>();
+        splits.add(0L);
+        long target = size / chunkCount;
+        ByteBuffer block = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        int depth = 0;
+        boolean inString = false;
+        boolean inComment = false;
+        boolean escape = false;
+        byte last = ' ';
+        long offset = 0;
+        while(offset < size) {
+            block.clear();
+            int count = channel.read(block, offset);
+            if(count <= 0)
+                break;
+            for(int i = 0; i < count; i ++) {
+                byte b = block.get(i);
+                if(inComment) {
+                    if(b == '\n')
+                        inComment = false;
+                } else if(inString) {
+                    if(escape)
+                        escape = false;
+                    else if(b == '\\')
+                        escape = true;
+                    else if(b == '"')
+                        inString = false;
+                } else if(b == '"') {
+                    inString = true;
+                } else if(b == ';') {
+                    inComment = true;
+                } else if(b == '(') {
+                    depth ++;
+                } else if(b == ')') {
+                    depth --;
+                } else if(depth == 0 && (b == '\n' || b == ' ') && last != '\'' && offset + i >= target) {
+                    splits.add(offset + i);
+                    target = offset + i + size / chunkCount;
+                }
+                if(b != ' ' && b != '\n' && b != '\t' && b != '\r')
+                    last = b;
+            }
+            offset += count;
+        }
+        splits.add(size);
+        long[] result = new long[splits.size()];
+        for(int i = 0; i < result.length; i ++) {
+            result[i] = splits.get(i);
+        }
+        return result;
+    }
+}
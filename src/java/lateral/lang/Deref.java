@@ -0,0 +1,8 @@
+package lateral.lang;
+
+/**
+ * A reference whose current value is read with deref, e.g. Promise or Atom
+ */
+public interface Deref {
+    Object deref();
+}
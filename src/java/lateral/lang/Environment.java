@@ -1,9 +1,18 @@
 package lateral.lang;
 
 import java.lang.invoke.*;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Environment {
     private static class ValueAndCall {
@@ -125,35 +134,401 @@ public class Environment {
         }
     }
 
-    private static HashMap<Symbol, Object> symMap = new HashMap<>();
+    /**
+     * The invoke methods of one Function class, and the handles call sites of each arity link to.
+     * Linking a call only has to bind the right handle to the function object, instead of
+     * searching the class with reflection every time.
+     */
+    private static final class LinkTable {
+        private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+        // invoke methods with fixed arities, indexed by parameter count
+        private final MethodHandle[] fixed;
+        // invoke method taking a trailing Sequence, or null
+        private final MethodHandle varargs;
+        // call site arity -> unbound handle, with the arguments past varargs collected into a Sequence
+        private final ConcurrentHashMap<Integer, MethodHandle> adapters = new ConcurrentHashMap<>();
+
+        LinkTable(Class<?> type) {
+            MethodHandle[] fixed = new MethodHandle[0];
+            MethodHandle varargs = null;
+            try {
+                for(Method m : type.getMethods()) {
+                    if(!"invoke".equals(m.getName()))
+                        continue;
+                    Class<?>[] params = m.getParameterTypes();
+                    if(params.length > 0 && params[params.length - 1] == Sequence.class) {
+                        varargs = LOOKUP.unreflect(m);
+                    } else {
+                        if(params.length >= fixed.length)
+                            fixed = Arrays.copyOf(fixed, params.length + 1);
+                        fixed[params.length] = LOOKUP.unreflect(m);
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+            this.fixed = fixed;
+            this.varargs = varargs;
+        }
+
+        /**
+         * @return A handle of type (function class, Object * argc)Object, or null if no invoke accepts argc arguments
+         */
+        MethodHandle forArity(int argc) {
+            if(argc < fixed.length && fixed[argc] != null)
+                return fixed[argc];
+            // varargs invoke includes the receiver and the Sequence
+            if(varargs == null || varargs.type().parameterCount() - 2 > argc)
+                return null;
+            return adapters.computeIfAbsent(argc, this::collectVarargs);
+        }
+
+        private MethodHandle collectVarargs(int argc) {
+            int sequenceIndex = varargs.type().parameterCount() - 1;
+            /*
+            asCollector collects the arguments past the fixed ones into an Array,
+            the array is fed into ArraySequence.makeList, which returns the varargs as a single Sequence.
+            Then collectArguments feeds makelist's result to the Sequence parameter of invoke
+             */
+            MethodHandle makelist = MAKE_LIST.asCollector(Object[].class, argc - (sequenceIndex - 1));
+            return MethodHandles.collectArguments(varargs, sequenceIndex, makelist);
+        }
+    }
+
+    private static final MethodHandle MAKE_LIST;
+
+    static {
+        try {
+            MAKE_LIST = MethodHandles.lookup().findStatic(ArraySequence.class, "makeList",
+                    MethodType.methodType(Sequence.class, Object[].class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static final ClassValue<LinkTable> LINK_TABLES = new ClassValue<>() {
+        protected LinkTable computeValue(Class<?> type) {
+            return new LinkTable(type);
+        }
+    };
+
+    // name of the environment core.lisp is loaded into, which every other environment imports
+    public static final String CORE = "core";
+
+    // ConcurrentHashMap can't hold null, which is the value of nil
+    private static final Object NIL = new Object();
+    private static final ConcurrentHashMap<String, Environment> ENVIRONMENTS = new ConcurrentHashMap<>();
+    private static final Environment ROOT = new Environment(CORE);
+    private static final InheritableThreadLocal<Environment> CURRENT = new InheritableThreadLocal<>() {
+        protected Environment initialValue() {
+            return ROOT;
+        }
+    };
+
     private static HashMap<Symbol, ValueAndCall> callSiteMap = new HashMap<>();
+    private static final AtomicInteger macroVersion = new AtomicInteger();
 
-    public static Object insert(Symbol symbol, Object obj) {
-        symMap.put(symbol, obj);
+    static {
+        ENVIRONMENTS.put(CORE, ROOT);
+    }
+
+    private final String name;
+    private final ConcurrentHashMap<Symbol, Object> symMap = new ConcurrentHashMap<>();
+    // searched in order after symMap, only their own definitions are visible
+    private final CopyOnWriteArrayList<Environment> imports = new CopyOnWriteArrayList<>();
+    // prefixes of qualified symbols, e.g. str in str/join
+    private final ConcurrentHashMap<String, Environment> aliases = new ConcurrentHashMap<>();
+
+    private Environment(String name) {
+        this.name = name;
+    }
+
+    /*
+    Environments are independent namespaces of global definitions. Several programs can run
+    in one JVM, each in its own environment, sharing the compiled core.lisp in the core
+    environment.
+
+    Code is compiled in the environment that is current at the time, and the environment's name
+    is part of every global reference in the generated bytecode, so call sites are bound to
+    their environment when they link and stay constant.
+     */
+
+    /**
+     * Creates a new, registered environment that imports core
+     * @throws RuntimeException If an environment with that name already exists
+     */
+    public static Environment create(String name) {
+        Environment environment = new Environment(name);
+        environment.addImport(ROOT);
+        if(ENVIRONMENTS.putIfAbsent(name, environment) != null)
+            throw new RuntimeException("environment " + name + " already exists");
+        return environment;
+    }
+
+    /**
+     * @return The registered environment called name, or null
+     */
+    public static Environment forName(String name) {
+        return ENVIRONMENTS.get(name);
+    }
+
+    /**
+     * Unregisters an environment, so that it can be garbage collected with the code compiled in it
+     */
+    public static void remove(String name) {
+        if(CORE.equals(name))
+            throw new RuntimeException("can't remove the core environment");
+        ENVIRONMENTS.remove(name);
+    }
+
+    /**
+     * @return The environment eval and load work in on this thread. Threads inherit it from their parent
+     */
+    public static Environment current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * @return The previously current environment
+     */
+    public static Environment setCurrent(Environment environment) {
+        Environment previous = CURRENT.get();
+        CURRENT.set(environment);
+        return previous;
+    }
+
+    // used by (in-environment name) in core.lisp
+    public static Environment inEnvironment(String name) {
+        Environment environment = forName(name);
+        if(environment == null)
+            environment = create(name);
+        setCurrent(environment);
+        return environment;
+    }
+
+    // used by (import-environment name) in core.lisp
+    public static Environment importEnvironment(String name) {
+        Environment environment = require(name);
+        current().addImport(environment);
+        return environment;
+    }
+
+    // used by (alias-environment alias name) in core.lisp
+    public static Environment aliasEnvironment(String alias, String name) {
+        Environment environment = require(name);
+        current().addAlias(alias, environment);
+        return environment;
+    }
+
+    private static Environment require(String name) {
+        Environment environment = forName(name);
+        if(environment == null)
+            throw new RuntimeException("environment " + name + " does not exist");
+        return environment;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String toString() {
+        return "#<environment " + name + ">";
+    }
+
+    // the contents of environments, for saving them in an Image
+
+    static Collection<Environment> all() {
+        return ENVIRONMENTS.values();
+    }
+
+    List<Environment> getImports() {
+        return imports;
+    }
+
+    Map<String, Environment> getAliases() {
+        return aliases;
+    }
+
+    /**
+     * @return A copy of this environment's own definitions, without the imported ones. nil is null
+     */
+    Map<Symbol, Object> definitions() {
+        LinkedHashMap<Symbol, Object> definitions = new LinkedHashMap<>();
+        symMap.forEach((symbol, value) -> definitions.put(symbol, unwrap(value)));
+        return definitions;
+    }
+
+    public void addImport(Environment environment) {
+        if(environment != this && !imports.contains(environment))
+            imports.add(environment);
+    }
+
+    public void addAlias(String alias, Environment environment) {
+        aliases.put(alias, environment);
+    }
+
+    public Object define(Symbol symbol, Object obj) {
+        Object previous = unwrap(symMap.put(symbol, obj == null ? NIL : obj));
+        // an interpreted macro replacing itself with its compiled version doesn't change any expansion
+        boolean tieredUp = previous instanceof InterpretedFunction
+                && ((InterpretedFunction) previous).getCompiled() == obj;
+        if((isMacro(previous) || isMacro(obj)) && !tieredUp)
+            macroVersion.incrementAndGet();
+        GlobalSites sites = SITES.get(unqualified(symbol.toString()));
+        if(sites != null)
+            sites.relink(symbol);
         return obj;
     }
 
-    public static Object get(Symbol symbol) {
-        Object ret = symMap.get(symbol);
+    /**
+     * Finds a symbol in this environment, then as alias/name or import/name, then in the imports.
+     * Other environments are only visible through the aliases and imports this one declared
+     * @return The stored value, NIL for nil, or null if the symbol isn't defined
+     */
+    private Object find(Symbol symbol) {
+        Object value = symMap.get(symbol);
+        if(value != null)
+            return value;
+        String qualified = symbol.toString();
+        int slash = qualified.indexOf('/');
+        if(slash > 0 && slash < qualified.length() - 1) {
+            Environment environment = qualifier(qualified.substring(0, slash));
+            if(environment != null) {
+                value = environment.symMap.get(Symbol.makeSymbol(qualified.substring(slash + 1)));
+                if(value != null)
+                    return value;
+            }
+        }
+        for(Environment environment : imports) {
+            value = environment.symMap.get(symbol);
+            if(value != null)
+                return value;
+        }
+        return null;
+    }
+
+    /**
+     * @return The environment prefix refers to in this one: an alias, an import or this environment
+     * by name, or null
+     */
+    private Environment qualifier(String prefix) {
+        Environment environment = aliases.get(prefix);
+        if(environment != null)
+            return environment;
+        if(prefix.equals(name))
+            return this;
+        for(Environment imported : imports) {
+            if(prefix.equals(imported.name))
+                return imported;
+        }
+        return null;
+    }
+
+    private static Object unwrap(Object value) {
+        return value == NIL ? null : value;
+    }
+
+    /**
+     * @return The value of symbol, or null if it is nil or undefined
+     */
+    public Object valueOf(Symbol symbol) {
+        return unwrap(find(symbol));
+    }
+
+    public boolean defines(Symbol symbol) {
+        return find(symbol) != null;
+    }
+
+    public Object lookup(Symbol symbol) {
+        Object ret = find(symbol);
         if(ret == null)
-            throw new RuntimeException("Can't find symbol in environment: " + symbol);
-        return ret;
+            throw new RuntimeException("Can't find symbol in environment " + name + ": " + symbol);
+        return unwrap(ret);
+    }
+
+    // the static versions work on the current environment
+
+    public static Object insert(Symbol symbol, Object obj) {
+        return current().define(symbol, obj);
+    }
+
+    private static boolean isMacro(Object obj) {
+        return obj instanceof Function && ((Function) obj).isMacro();
+    }
+
+    /**
+     * @return A number that changes whenever a macro is defined or redefined in any environment, see MacroCache
+     */
+    static int getMacroVersion() {
+        return macroVersion.get();
+    }
+
+    public static Object get(Symbol symbol) {
+        return current().lookup(symbol);
     }
 
     public static Object getIfExists(Symbol symbol) {
-        return symMap.get(symbol);
+        return current().valueOf(symbol);
     }
 
+    public static boolean contains(Symbol symbol) {
+        return current().defines(symbol);
+    }
+
+    /**
+     * @param namespace Name of the environment the code was compiled in
+     */
     public static CallSite dynamicObject(
             MethodHandles.Lookup lookup, String dynamicName, MethodType dynamicType,
             String namespace) {
-        Symbol key = Symbol.makeSymbol(dynamicName);
-        if(symMap.containsKey(key)) {
-            Object object = symMap.get(Symbol.makeSymbol(dynamicName));
-            MethodHandle mh = MethodHandles.constant(Object.class, object).asType(dynamicType);
-            return new ConstantCallSite(mh);
+        return dynamicObject(lookup, null, dynamicType, dynamicName, namespace);
+    }
+
+    /**
+     * Like dynamicFunction the name is an extra argument, so it can be qualified, e.g. str/join
+     * @param environment Name of the environment the code was compiled in
+     */
+    public static CallSite dynamicObject(
+            MethodHandles.Lookup lookup, String unused, MethodType dynamicType,
+            String dynamicName, String environment) {
+        FlightRecorder.LinkEvent event = FlightRecorder.beginLink();
+        long start = CompilerMetrics.start();
+        try {
+            return linkObject(environmentOf(environment), dynamicName, dynamicType);
+        } finally {
+            CompilerMetrics.end(CompilerMetrics.Phase.LINK, start);
+            FlightRecorder.linked(event, "dynamicObject", dynamicName, dynamicType, environment);
         }
-        throw new RuntimeException(dynamicName + " does not exist in global environment");
+    }
+
+    /**
+     * @return The environment a call site was compiled in. Unknown names link to the current environment
+     */
+    private static Environment environmentOf(String namespace) {
+        Environment environment = namespace == null ? null : forName(namespace);
+        return environment == null ? current() : environment;
+    }
+
+    private static CallSite linkObject(Environment environment, String dynamicName, MethodType dynamicType) {
+        Symbol key = Symbol.makeSymbol(dynamicName);
+        Object found = environment.find(key);
+        if(found != null)
+            return GlobalCallSite.link(environment, key, dynamicType, false, found);
+        throw new RuntimeException(dynamicName + " does not exist in environment " + environment.name);
+    }
+
+    /**
+     * @param found What the name resolves to, see find
+     */
+    private static MethodHandle objectTarget(Environment environment, MethodType dynamicType, String dynamicName,
+                                             Object found) {
+        if(found != null)
+            return MethodHandles.constant(Object.class, unwrap(found)).asType(dynamicType);
+        return MethodHandles.dropArguments(
+                MethodHandles.throwException(Object.class, RuntimeException.class)
+                        .bindTo(new RuntimeException(dynamicName + " does not exist in environment " + environment.name)),
+                0, dynamicType.parameterList());
     }
 
     /**
@@ -163,7 +538,8 @@ public class Environment {
      * @param lookup The lookup handle from the invokedynamic instruction
      * @param dynamicName The string name of the function to be called
      * @param dynamicType The expected method type of the function
-     * @param unused To be implemented: the name of the environment that contains the function
+     * @param unused Not used
+     * @param environment Name of the environment the call was compiled in
      * @return A CallSite representing the function invocation
      *
      * The CallSite returned may throw an exception if the function request can't be fulfilled.
@@ -176,9 +552,37 @@ public class Environment {
      * Occurs when the function invocation cannot be accessed by the requesting instruction.
      * e.g. the method is private or owned by the wrong ClassLoader
      */
+    public static CallSite dynamicFunction(
+            MethodHandles.Lookup lookup, String unused, MethodType dynamicType,
+            String dynamicName, String environment) throws NoSuchMethodException, IllegalAccessException {
+        FlightRecorder.LinkEvent event = FlightRecorder.beginLink();
+        long start = CompilerMetrics.start();
+        try {
+            return linkFunction(environmentOf(environment), dynamicType, dynamicName);
+        } finally {
+            CompilerMetrics.end(CompilerMetrics.Phase.LINK, start);
+            FlightRecorder.linked(event, "dynamicFunction", dynamicName, dynamicType, environment);
+        }
+    }
+
+    /**
+     * dynamicFunction in the current environment
+     */
     public static CallSite dynamicFunction(
             MethodHandles.Lookup lookup, String unused, MethodType dynamicType,
             String dynamicName) throws NoSuchMethodException, IllegalAccessException {
+        return dynamicFunction(lookup, unused, dynamicType, dynamicName, null);
+    }
+
+    private static CallSite linkFunction(Environment environment, MethodType dynamicType, String dynamicName) {
+        Symbol key = Symbol.makeSymbol(dynamicName);
+        return GlobalCallSite.link(environment, key, dynamicType, true, environment.find(key));
+    }
+
+    /**
+     * @param found What the name resolves to, see find
+     */
+    private static MethodHandle functionTarget(MethodType dynamicType, String dynamicName, Object found) {
         /*
          dynamicName is stored in extra arguments because second arg must be valid unqualified name:
          https://docs.oracle.com/javase/specs/jvms/se11/html/jvms-4.html#jvms-4.2.2
@@ -187,60 +591,127 @@ public class Environment {
          If the second arg is going to be namespace information, namespaces will also have to follow these
          rules. Maybe just leave it unused?
          */
-        // TODO: look up specific environment with envirName
-        Symbol name = Symbol.makeSymbol(dynamicName);
-        // TODO: store MutableCallSite even if function lookup fails, because it might change in the future
         MethodHandle result;
-        if(!symMap.containsKey(name)) {
+        Object value = unwrap(found);
+        if(found == null) {
             result = MethodHandles.dropArguments(
                     MethodHandles.throwException(Object.class, NoSuchMethodException.class)
                     .bindTo(new NoSuchMethodException("function " + dynamicName + " does not exist")),
                     0, dynamicType.parameterList());
-        } else if(!(symMap.get(name) instanceof Function)) {
+        } else if(!(value instanceof Function)) {
             result = MethodHandles.dropArguments(
                     MethodHandles.throwException(Object.class, TypeException.class)
-                            .bindTo(new TypeException(symMap.get(name) + " can't be used as a function")),
+                            .bindTo(new TypeException(value + " can't be used as a function")),
                     0, dynamicType.parameterList());
         } else {
-            // TODO: function fallbacks: invoke (static) -> invoke (virtual) -> apply -> NoSuchMethod
             // TODO: assert that function is not macro
-            Function function = (Function) symMap.get(Symbol.makeSymbol(dynamicName));
-            Method[] methods = function.getClass().getMethods();
-            result = null;
-            for(Method m : methods) {
-                // System.out.println(m.getName());
-                if("invoke".equals(m.getName())) {
-                    Class<?>[] params = m.getParameterTypes();
-                    if(params.length > 0 && params[params.length - 1] == Sequence.class
-                            && params.length - 1 <= dynamicType.parameterCount()) {
-                        // the actual method to be called
-                        MethodHandle base = lookup.unreflect(m).bindTo(function);
-                        /*
-                        asCollector collects (given - expected + 1) arguments into an Array
-                        the array is fed into ArraySequence.makeList, which returns the varargs as a single Sequence
-                         */
-                        MethodHandle makelist = lookup.findStatic(ArraySequence.class, "makeList",
-                                MethodType.methodType(Sequence.class, Object[].class)
-                        ).asCollector(Object[].class, dynamicType.parameterCount() - m.getParameterCount() + 1);
-                        /*
-                         all but the first expected - 1 arguments are fed into the makelist described above
-                         This effectively combines the two MethodHandles into one with automatic varargs to Sequence collection
-                         */
-                        result = MethodHandles.collectArguments(base, m.getParameterCount() - 1, makelist);
-                    } else if(m.getParameterCount() == dynamicType.parameterCount()) {
-                        result = lookup.unreflect(m).bindTo(function);
-                    }
-                }
-            }
+            Function function = (Function) value;
+            MethodHandle handle = LINK_TABLES.get(function.getClass()).forArity(dynamicType.parameterCount());
+            result = handle == null ? null : handle.bindTo(function);
             if(result == null) {
                 result = MethodHandles.dropArguments(
                         MethodHandles.throwException(Object.class, SyntaxException.class)
-                                .bindTo(new SyntaxException(symMap.get(name) + " can't be applied to " + dynamicType.toString())),
+                                .bindTo(new SyntaxException(value + " can't be applied to " + dynamicType.toString())),
                         0, dynamicType.parameterList());
             }
         }
-        // TODO: convert to MutableCallSite to allow for redefinition
-        // TODO: bind MutableCallSite to object? Can one object have multiple callsites?
-        return new ConstantCallSite(result);
+        return result;
+    }
+
+    /*
+    Call sites of globals are relinked in place when the global is defined again, e.g. by a
+    reload, instead of staying bound to the old value. Each is registered under the unqualified
+    name of its global, and define relinks the sites registered under the name it defines.
+    Relinking resolves the name again from the site's environment, so a definition that doesn't
+    change what a site sees leaves it alone.
+
+    The target of a MutableCallSite is just as constant to the JIT as that of a ConstantCallSite,
+    until it changes and the code depending on it is deoptimized. Sites are only referenced weakly,
+    so that they are collected with their classes.
+     */
+
+    private static final class GlobalCallSite extends MutableCallSite {
+        private final Environment environment;
+        private final Symbol name;
+        private final boolean isFunction;
+        // what name resolved to when the target was made, see find
+        private Object found;
+
+        private GlobalCallSite(Environment environment, Symbol name, MethodType type, boolean isFunction,
+                               Object found) {
+            // setting the target in the constructor is a lot cheaper than setTarget
+            super(target(environment, type, name, isFunction, found));
+            this.environment = environment;
+            this.name = name;
+            this.isFunction = isFunction;
+            this.found = found;
+        }
+
+        private static MethodHandle target(Environment environment, MethodType type, Symbol name,
+                                           boolean isFunction, Object found) {
+            return isFunction ? functionTarget(type, name.toString(), found)
+                    : objectTarget(environment, type, name.toString(), found);
+        }
+
+        static GlobalCallSite link(Environment environment, Symbol name, MethodType type, boolean isFunction,
+                                   Object found) {
+            GlobalCallSite callSite = new GlobalCallSite(environment, name, type, isFunction, found);
+            SITES.computeIfAbsent(unqualified(name.toString()), key -> new GlobalSites()).add(callSite);
+            // in case name was defined again since it was looked up
+            callSite.relink();
+            return callSite;
+        }
+
+        /**
+         * @return false if the global still resolves to the value the site is linked to
+         */
+        synchronized boolean relink() {
+            Object current = environment.find(name);
+            if(current == found)
+                return false;
+            found = current;
+            setTarget(target(environment, type(), name, isFunction, found));
+            return true;
+        }
+    }
+
+    private static final class GlobalSites {
+        private final ArrayList<WeakReference<GlobalCallSite>> sites = new ArrayList<>();
+        // size at which collected sites are cleared out of the list
+        private int purgeAt = 8;
+
+        synchronized void add(GlobalCallSite callSite) {
+            if(sites.size() >= purgeAt) {
+                sites.removeIf(site -> site.get() == null);
+                purgeAt = Math.max(8, sites.size() * 2);
+            }
+            sites.add(new WeakReference<>(callSite));
+        }
+
+        synchronized void relink(Symbol symbol) {
+            FlightRecorder.RelinkEvent event = FlightRecorder.beginRelink();
+            ArrayList<MutableCallSite> relinked = new ArrayList<>();
+            for(WeakReference<GlobalCallSite> site : sites) {
+                GlobalCallSite callSite = site.get();
+                if(callSite != null && callSite.relink())
+                    relinked.add(callSite);
+            }
+            if(!relinked.isEmpty()) {
+                MutableCallSite.syncAll(relinked.toArray(new MutableCallSite[0]));
+                FlightRecorder.relinked(event, "global", symbol.toString(), "redefined, " + relinked.size() + " call sites");
+            }
+        }
+    }
+
+    private static final ConcurrentHashMap<String, GlobalSites> SITES = new ConcurrentHashMap<>();
+
+    /**
+     * @return The name without the prefix of a qualified name, e.g. join for str/join
+     */
+    private static String unqualified(String name) {
+        int slash = name.indexOf('/');
+        if(slash > 0 && slash < name.length() - 1)
+            return name.substring(slash + 1);
+        return name;
     }
 }
@@ -0,0 +1,75 @@
+package lateral.lang;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A session with an EvalServer
+ */
+public final class EvalClient implements Closeable {
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    public EvalClient(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    public EvalClient(int port) throws IOException {
+        this(InetAddress.getLoopbackAddress().getHostAddress(), port);
+    }
+
+    /**
+     * @param source Any number of forms
+     * @return The printed value of each form
+     * @throws RuntimeException With the server's message if a form failed, timed out or the server was busy
+     */
+    public List<String> eval(String source) throws IOException {
+        new EvalServer.Frame(EvalServer.EVAL, source).write(out);
+        out.flush();
+        ArrayList<String> results = new ArrayList<>();
+        String error = null;
+        while(true) {
+            EvalServer.Frame frame = EvalServer.Frame.read(in);
+            if(frame == null)
+                throw new EOFException("server closed the connection");
+            if(frame.type == EvalServer.DONE)
+                break;
+            if(frame.type == EvalServer.ERROR)
+                error = frame.payload;
+            else
+                results.add(frame.payload);
+        }
+        if(error != null)
+            throw new RuntimeException(error);
+        return results;
+    }
+
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    /**
+     * Sends each argument to a server on localhost and prints the results
+     * @param args A port followed by sources to evaluate
+     */
+    public static void main(String[] args) throws IOException {
+        try(EvalClient client = new EvalClient(Integer.parseInt(args[0]))) {
+            for(int i = 1; i < args.length; i ++) {
+                try {
+                    for(String result : client.eval(args[i])) {
+                        System.out.println("=> " + result);
+                    }
+                } catch (RuntimeException e) {
+                    System.out.println("!! " + e.getMessage());
+                }
+            }
+        }
+    }
+}
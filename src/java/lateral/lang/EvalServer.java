@@ -0,0 +1,267 @@
+package lateral.lang;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Evaluates forms sent over a local socket, so that many short lived clients share one JVM
+ * that has already loaded core.lisp and warmed up.
+ *
+ * Every message in either direction is a frame: a type byte, a 4 byte big endian length and
+ * that many bytes of UTF-8. A client sends EVAL frames holding any number of forms. The server
+ * answers every form with a RESULT frame holding the printed value, or an ERROR frame, which
+ * ends the request. Then it sends a DONE frame.
+ *
+ * Each connection is a session with its own Environment, which imports core and is removed when
+ * the connection closes. Sessions mostly wait on the socket, so they run on virtual threads when
+ * the JVM has them. Evaluations run on platform threads instead: virtual threads aren't
+ * preempted, so a long evaluation would keep the sessions sharing its carrier from timing it out.
+ * At most lateral.server.permits evaluations run at once. A request that can't get a permit
+ * within lateral.server.timeout milliseconds gets a "server busy" error. A request that takes
+ * longer than that to evaluate gets a "timed out" error and its evaluation is interrupted, which
+ * stops it at its next loop iteration, see Interrupts. It keeps its permit until it has really
+ * stopped. A session evaluates one request at a time, so until then the session's next request
+ * waits for it, and gets an error if it doesn't stop within the timeout either.
+ */
+public final class EvalServer implements Closeable {
+    public static final byte EVAL = 'e';
+    public static final byte RESULT = 'r';
+    public static final byte ERROR = 'x';
+    public static final byte DONE = 'd';
+    public static final int DEFAULT_PORT = 5557;
+    static final int MAX_FRAME = 16 * 1024 * 1024;
+
+    private static final AtomicInteger SESSIONS = new AtomicInteger();
+
+    /**
+     * One message, see the class comment
+     */
+    static final class Frame {
+        final byte type;
+        final String payload;
+
+        Frame(byte type, String payload) {
+            this.type = type;
+            this.payload = payload;
+        }
+
+        /**
+         * @return The next frame, or null if the stream ended between frames
+         */
+        static Frame read(DataInputStream in) throws IOException {
+            int type = in.read();
+            if(type < 0)
+                return null;
+            int length = in.readInt();
+            if(length < 0 || length > MAX_FRAME)
+                throw new IOException("bad frame length " + length);
+            byte[] bytes = in.readNBytes(length);
+            if(bytes.length < length)
+                throw new EOFException();
+            return new Frame((byte) type, new String(bytes, StandardCharsets.UTF_8));
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+            out.writeByte(type);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor = VirtualThreads.newExecutor();
+    // evaluations, bounded by permits
+    private final ExecutorService evaluator = Executors.newCachedThreadPool(VirtualThreads::daemon);
+    private final Semaphore permits;
+    private final long timeoutMillis;
+    private volatile boolean closed = false;
+
+    /**
+     * @param port Port on the loopback address, 0 for any free port
+     * @param maxEvaluations Number of evaluations that may run at once
+     * @param timeoutMillis Longest a request may wait for a permit, and then to be evaluated
+     */
+    public EvalServer(int port, int maxEvaluations, long timeoutMillis) throws IOException {
+        this.serverSocket = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+        this.permits = new Semaphore(maxEvaluations);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accepts connections on a background thread
+     */
+    public EvalServer start() {
+        Thread acceptor = new Thread(this::accept, "lateral-eval-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return this;
+    }
+
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        executor.shutdownNow();
+        evaluator.shutdownNow();
+    }
+
+    private void accept() {
+        while(!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                executor.execute(() -> session(socket));
+            } catch (IOException | RejectedExecutionException e) {
+                if(!closed)
+                    e.printStackTrace();
+            }
+        }
+    }
+
+    private void session(Socket socket) {
+        Environment environment = Environment.create("session" + SESSIONS.incrementAndGet());
+        try(socket;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            socket.setTcpNoDelay(true);
+            Frame request;
+            // completes when the session's last evaluation has ended, even if it timed out
+            CompletableFuture<?> previous = CompletableFuture.completedFuture(null);
+            while((request = Frame.read(in)) != null) {
+                if(request.type == EVAL)
+                    previous = evaluate(environment, request.payload, out, previous);
+                else
+                    new Frame(ERROR, "unknown frame type " + (char) request.type).write(out);
+                new Frame(DONE, "").write(out);
+                out.flush();
+            }
+        } catch (SocketException | EOFException e) {
+            // the client went away
+        } catch (IOException e) {
+            if(!closed)
+                e.printStackTrace();
+        } finally {
+            Environment.remove(environment.getName());
+        }
+    }
+
+    /**
+     * Evaluates the forms in source on another thread, writing the results as they arrive
+     * @param previous The session's previous evaluation, which has to end first
+     * @return The evaluation, which completes when it has ended
+     */
+    private CompletableFuture<?> evaluate(Environment environment, String source, DataOutputStream out,
+                                          CompletableFuture<?> previous) throws IOException {
+        try {
+            previous.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            new Frame(ERROR, "previous evaluation is still running").write(out);
+            return previous;
+        } catch (ExecutionException e) {
+            // the evaluation reports its own errors
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        try {
+            if(!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                new Frame(ERROR, "server busy").write(out);
+                return previous;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        // the last frame of every evaluation is DONE
+        BlockingQueue<Frame> frames = new LinkedBlockingQueue<>();
+        CompletableFuture<Void> ended = new CompletableFuture<>();
+        // whoever sets it releases the permit: the evaluation, or stop if it never started
+        AtomicBoolean started = new AtomicBoolean();
+        Future<?> evaluation;
+        try {
+            evaluation = evaluator.submit(() -> {
+                if(!started.compareAndSet(false, true))
+                    return;
+                Environment.setCurrent(environment);
+                try {
+                    LispReader reader = LispReader.stringReader(source);
+                    Object form;
+                    while(!Thread.currentThread().isInterrupted() && (form = reader.readForm()) != null) {
+                        frames.add(new Frame(RESULT, String.valueOf(Compiler.eval(form, reader))));
+                    }
+                } catch (Exception | StackOverflowError e) {
+                    frames.add(new Frame(ERROR, e.toString()));
+                } finally {
+                    permits.release();
+                    frames.add(new Frame(DONE, ""));
+                    ended.complete(null);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            throw new IOException(e);
+        }
+
+        try {
+            while(true) {
+                Frame frame = frames.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if(frame == null) {
+                    stop(evaluation, started, ended);
+                    new Frame(ERROR, "timed out after " + timeoutMillis + "ms").write(out);
+                    return ended;
+                }
+                if(frame.type == DONE)
+                    return ended;
+                frame.write(out);
+                out.flush();
+            }
+        } catch (InterruptedException e) {
+            stop(evaluation, started, ended);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * Interrupts an evaluation, which releases its permit once it stops
+     */
+    private void stop(Future<?> evaluation, AtomicBoolean started, CompletableFuture<Void> ended) {
+        evaluation.cancel(true);
+        if(started.compareAndSet(false, true)) {
+            permits.release();
+            ended.complete(null);
+        }
+    }
+
+    /**
+     * Loads core.lisp and serves until the JVM is killed
+     * @param args Optional port, default 5557
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int maxEvaluations = Integer.getInteger("lateral.server.permits",
+                Runtime.getRuntime().availableProcessors() * 2);
+        long timeout = Long.getLong("lateral.server.timeout", 10000);
+        // -Dlateral.image=file starts from an image instead of compiling core.lisp, see Image
+        String image = System.getProperty("lateral.image");
+        if(image != null)
+            Image.restore(image);
+        else
+            Compiler.load("./src/lisp/core.lisp");
+        EvalServer server = new EvalServer(port, maxEvaluations, timeout).start();
+        System.out.println("lateral eval server listening on port " + server.getPort());
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,240 @@
+package lateral.lang;
+
+import jdk.jfr.*;
+
+import java.lang.invoke.MethodType;
+
+/**
+ * JDK Flight Recorder events for the work the runtime does besides running Lisp code:
+ * compiling forms, defining classes, linking invokedynamic call sites, expanding macros and
+ * relinking call sites. Together with the JVM's own events they show compile storms and
+ * linkage costs next to GC and JIT activity.
+ *
+ * The events are in the Lateral category and named lateral.*, e.g.
+ *     java -XX:StartFlightRecording=filename=lateral.jfr ...
+ *     jfr print --events 'lateral.*' lateral.jfr
+ * None of them record stack traces.
+ *
+ * Initializing the first event class starts up most of JFR, which takes about half a second.
+ * So the begin methods only create an event once JFR is running, from -XX:StartFlightRecording
+ * or a later jcmd JFR.start, and return null otherwise. The other methods accept null, so
+ * without JFR the cost is a volatile read per compile or link.
+ */
+final class FlightRecorder {
+    private FlightRecorder() {}
+
+    @Name("lateral.Compile")
+    @Label("Compile")
+    @Category("Lateral")
+    @Description("Compilation of a top level form, defun or tier up, from codegen to class definition")
+    @StackTrace(false)
+    static final class CompileEvent extends Event {
+        @Label("Name")
+        @Description("Name of the function, null for top level forms")
+        String name;
+
+        @Label("Arities")
+        @Description("Parameter counts of the function, + for a rest parameter")
+        String arities;
+
+        @Label("Tier Up")
+        @Description("Whether an interpreted function was compiled because it got hot")
+        boolean tierUp;
+
+        @Label("Classes")
+        int classes;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("lateral.DefineClasses")
+    @Label("Define Classes")
+    @Category("Lateral")
+    @Description("Classes of one compilation defined together by ClassDefiner")
+    @StackTrace(false)
+    static final class DefineEvent extends Event {
+        @Label("Class")
+        @Description("Name of the first class, i.e. the compiled function")
+        String className;
+
+        @Label("Classes")
+        int classes;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Hidden")
+        boolean hidden;
+    }
+
+    @Name("lateral.Link")
+    @Label("Link")
+    @Category("Lateral")
+    @Description("An invokedynamic bootstrap method linking a call site")
+    @StackTrace(false)
+    static final class LinkEvent extends Event {
+        @Label("Bootstrap")
+        @Description("Name of the bootstrap method, e.g. dynamicFunction")
+        String bootstrap;
+
+        @Label("Name")
+        @Description("Symbol, operator or class the call site refers to")
+        String name;
+
+        @Label("Arity")
+        @Description("Number of arguments of the call site")
+        int arity;
+
+        @Label("Environment")
+        String environment;
+    }
+
+    @Name("lateral.MacroExpand")
+    @Label("Macro Expand")
+    @Category("Lateral")
+    @Description("One application of a macro, cache misses only")
+    @StackTrace(false)
+    static final class MacroExpandEvent extends Event {
+        @Label("Macro")
+        String macro;
+
+        @Label("Arity")
+        int arity;
+    }
+
+    @Name("lateral.Relink")
+    @Label("Relink")
+    @Category("Lateral")
+    @Description("A call site getting a new target, e.g. an arithmetic site seeing new operand types")
+    @StackTrace(false)
+    static final class RelinkEvent extends Event {
+        @Label("Call Site")
+        @Description("Kind of call site")
+        String callSite;
+
+        @Label("Name")
+        String name;
+
+        @Label("Reason")
+        String reason;
+    }
+
+    static boolean isRunning() {
+        return jdk.jfr.FlightRecorder.isInitialized();
+    }
+
+    private static <T extends Event> T begin(T event) {
+        event.begin();
+        return event;
+    }
+
+    static CompileEvent beginCompile() {
+        return isRunning() ? begin(new CompileEvent()) : null;
+    }
+
+    static DefineEvent beginDefine() {
+        return isRunning() ? begin(new DefineEvent()) : null;
+    }
+
+    static LinkEvent beginLink() {
+        return isRunning() ? begin(new LinkEvent()) : null;
+    }
+
+    static MacroExpandEvent beginMacroExpand() {
+        return isRunning() ? begin(new MacroExpandEvent()) : null;
+    }
+
+    static RelinkEvent beginRelink() {
+        return isRunning() ? begin(new RelinkEvent()) : null;
+    }
+
+    /**
+     * Commits a Compile event begun before code generation, once the classes are defined
+     * @param name The function's name, or null for a top level form
+     * @param lambda The function's form, or null for a top level form
+     */
+    static void compiled(CompileEvent event, Symbol name, Sequence lambda, boolean tierUp, int classes, long bytes) {
+        if(event != null && event.shouldCommit()) {
+            event.name = name == null ? null : name.toString();
+            event.arities = lambda == null ? null : arities(lambda);
+            event.tierUp = tierUp;
+            event.classes = classes;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    static void defined(DefineEvent event, Class<?> topLevel, byte[][] classBytes, boolean hidden) {
+        if(event != null && event.shouldCommit()) {
+            event.className = topLevel.getName();
+            event.classes = classBytes.length;
+            for(byte[] bytes : classBytes) {
+                event.bytes += bytes.length;
+            }
+            event.hidden = hidden;
+            event.commit();
+        }
+    }
+
+    /**
+     * Commits a Link event begun before the bootstrap method did its work
+     * @param environment Name of the environment the call site was compiled in, may be null
+     */
+    static void linked(LinkEvent event, String bootstrap, String name, MethodType type, String environment) {
+        if(event != null && event.shouldCommit()) {
+            event.bootstrap = bootstrap;
+            event.name = name;
+            event.arity = type.parameterCount();
+            event.environment = environment;
+            event.commit();
+        }
+    }
+
+    static void macroExpanded(MacroExpandEvent event, Symbol macro, int arity) {
+        if(event != null && event.shouldCommit()) {
+            event.macro = macro.toString();
+            event.arity = arity;
+            event.commit();
+        }
+    }
+
+    static void relinked(RelinkEvent event, String callSite, String name, String reason) {
+        if(event != null && event.shouldCommit()) {
+            event.callSite = callSite;
+            event.name = name;
+            event.reason = reason;
+            event.commit();
+        }
+    }
+
+    /**
+     * @param lambda A macroexpanded (function ...), (defun ...) or (defmacro ...) form
+     * @return The parameter counts of its arities, e.g. "1 2+"
+     */
+    static String arities(Sequence lambda) {
+        Sequence forms = lambda.rest();
+        if(!Compiler.LAMBDA.equals(lambda.first()))
+            forms = forms.rest();
+        StringBuilder sb = new StringBuilder();
+        for(; !forms.isEmpty() && forms.first() instanceof Sequence; forms = forms.rest().rest()) {
+            Sequence params = (Sequence) forms.first();
+            if(sb.length() > 0)
+                sb.append(' ');
+            int count = 0;
+            boolean rest = false;
+            for(Object param : params) {
+                if(Compiler.REST.equals(param))
+                    rest = true;
+                else
+                    count ++;
+            }
+            sb.append(rest ? count - 1 : count);
+            if(rest)
+                sb.append('+');
+        }
+        return sb.toString();
+    }
+}
@@ -1,13 +1,21 @@
 package lateral.lang;
 
-import java.util.ArrayList;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 
 /**
  * Parent class of all Lateral functions.
  * TODO: convert to interface?
+ *
+ * Functions can be passed to Java as a Supplier or UnaryOperator, which call invoke0 and
+ * invoke1 respectively. They aren't BiFunctions too, since its andThen clashes with
+ * UnaryOperator's, use function::invoke2 instead.
  */
 
-abstract public class Function {
+abstract public class Function implements Supplier<Object>, UnaryOperator<Object> {
+    // highest N with an invokeN method
+    static final int MAX_FIXED_ARITY = 4;
+
     abstract public boolean isMacro();
     public String toString() {
         return "#<function>";
@@ -30,11 +38,60 @@ abstract public class Function {
      */
     abstract public Object apply(Object ... args);
 
+    /*
+    invoke0 to invokeN call the function with a fixed number of arguments, for callers that
+    don't know the class of the function. Generated classes override the ones their arities
+    accept (see CompClass.generateFixedArities), everything else falls back to apply.
+     */
+    public Object invoke0() {
+        return apply(new Object[0]);
+    }
+
+    public Object invoke1(Object arg0) {
+        return apply(new Object[]{arg0});
+    }
+
+    public Object invoke2(Object arg0, Object arg1) {
+        return apply(new Object[]{arg0, arg1});
+    }
+
+    public Object invoke3(Object arg0, Object arg1, Object arg2) {
+        return apply(new Object[]{arg0, arg1, arg2});
+    }
+
+    public Object invoke4(Object arg0, Object arg1, Object arg2, Object arg3) {
+        return apply(new Object[]{arg0, arg1, arg2, arg3});
+    }
+
+    public Object get() {
+        return invoke0();
+    }
+
+    public Object apply(Object arg) {
+        return invoke1(arg);
+    }
+
+    public Object apply(Object arg0, Object arg1) {
+        return invoke2(arg0, arg1);
+    }
+
     public static Object apply(Function function, Sequence arglist) {
-        ArrayList<Object> args = new ArrayList<>();
-        for(; !arglist.isEmpty(); arglist = arglist.rest()) {
-            args.add(arglist.first());
+        switch(arglist.length()) {
+            case 0:
+                return function.invoke0();
+            case 1:
+                return function.invoke1(arglist.first());
+            case 2:
+                return function.invoke2(arglist.first(), arglist.second());
+            case 3:
+                return function.invoke3(arglist.first(), arglist.second(), arglist.third());
+            case 4:
+                return function.invoke4(arglist.first(), arglist.second(), arglist.third(), arglist.fourth());
+        }
+        Object[] args = new Object[arglist.length()];
+        for(int i = 0; !arglist.isEmpty(); arglist = arglist.rest(), i ++) {
+            args[i] = arglist.first();
         }
-        return function.apply(args.toArray());
+        return function.apply(args);
     }
 }
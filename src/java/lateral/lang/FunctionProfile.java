@@ -0,0 +1,138 @@
+package lateral.lang;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Call count, time and allocation of one function, recorded by its compiled invoke methods.
+ *
+ * Profiling is chosen once at startup with -Dlateral.profile=off|time|alloc, default off.
+ * When it is off the compiler generates exactly the same bytecode as without this class.
+ * Otherwise CompClass wraps every invoke body with enter and exit calls on the profile of the
+ * function, which is a dynamic constant, so the overhead is a nanoTime call and a LongAdder
+ * add on each side. alloc also reads the allocation counter of the current thread.
+ *
+ * Times are inclusive, so the callees of a function and its own recursive calls are counted too.
+ * Calls that throw are counted but their time isn't. Functions that are still interpreted
+ * aren't profiled until they are compiled, see Interpreter.
+ */
+public final class FunctionProfile {
+    enum Mode {
+        OFF, TIME, ALLOC
+    }
+
+    static final Mode MODE = Mode.valueOf(System.getProperty("lateral.profile", "off").toUpperCase());
+
+    private static final ConcurrentHashMap<String, FunctionProfile> PROFILES = new ConcurrentHashMap<>();
+
+    // only loaded in alloc mode, java.management takes a while to start up
+    private static final class Threads {
+        static final com.sun.management.ThreadMXBean MX_BEAN =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    }
+
+    private final String name;
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    private FunctionProfile(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Every class compiled for the same function shares a profile, e.g. after it is redefined
+     * @param name See CompClass.profileName
+     */
+    public static FunctionProfile get(String name) {
+        return PROFILES.computeIfAbsent(name, FunctionProfile::new);
+    }
+
+    /**
+     * @return Start time for exit
+     */
+    public long enter() {
+        calls.increment();
+        return System.nanoTime();
+    }
+
+    public void exit(long start) {
+        nanos.add(System.nanoTime() - start);
+    }
+
+    public void exit(long start, long startBytes) {
+        nanos.add(System.nanoTime() - start);
+        bytes.add(allocatedBytes() - startBytes);
+    }
+
+    /**
+     * @return Bytes allocated by the current thread so far
+     */
+    public static long allocatedBytes() {
+        return Threads.MX_BEAN.getCurrentThreadAllocatedBytes();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    public long getNanos() {
+        return nanos.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * Zeroes every profile in place, compiled classes keep the profile their dynamic constant resolved to
+     */
+    public static void reset() {
+        for(FunctionProfile profile : PROFILES.values()) {
+            profile.calls.reset();
+            profile.nanos.reset();
+            profile.bytes.reset();
+        }
+    }
+
+    /**
+     * @param limit Maximum number of functions to list
+     * @return A table of the profiled functions, the ones that took the most time first
+     */
+    public static String report(int limit) {
+        if(MODE == Mode.OFF)
+            return "profiling is off, run with -Dlateral.profile=time or -Dlateral.profile=alloc"
+                    + System.lineSeparator();
+        ArrayList<FunctionProfile> profiles = new ArrayList<>();
+        for(FunctionProfile profile : PROFILES.values()) {
+            // not called since the last reset
+            if(profile.getCalls() > 0)
+                profiles.add(profile);
+        }
+        profiles.sort(Comparator.comparingLong(FunctionProfile::getNanos).reversed()
+                .thenComparing(FunctionProfile::getName));
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-32s %12s %12s %10s", "function", "calls", "total ms", "avg us"));
+        if(MODE == Mode.ALLOC)
+            sb.append(String.format(" %12s %10s", "alloc MB", "avg bytes"));
+        sb.append(System.lineSeparator());
+        for(int i = 0; i < profiles.size() && i < limit; i ++) {
+            FunctionProfile profile = profiles.get(i);
+            long calls = Math.max(profile.getCalls(), 1);
+            sb.append(String.format("%-32s %12d %12.1f %10.2f", profile.name, profile.getCalls(),
+                    profile.getNanos() / 1e6, profile.getNanos() / 1e3 / calls));
+            if(MODE == Mode.ALLOC)
+                sb.append(String.format(" %12.1f %10d", profile.getBytes() / 1e6, profile.getBytes() / calls));
+            sb.append(System.lineSeparator());
+        }
+        return sb.toString();
+    }
+}
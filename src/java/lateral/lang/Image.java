@@ -0,0 +1,398 @@
+package lateral.lang;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A snapshot of every environment, so that a process can start from it instead of reading and
+ * compiling core.lisp and the rest of its source again. An image holds
+ * - the bytes of the classes of every function bound to a global
+ * - the globals of each environment, with its imports and aliases
+ * Restoring defines the classes again and binds the globals. Nothing is read, expanded or
+ * compiled, and no top level form runs. Macros come back as macros, the flag is part of their class.
+ *
+ * Class bytes are thrown away once a class is defined, unless recording was turned on before,
+ * with Image.record or -Dlateral.image.record=true. The usual way to make an image is
+ *     java lateral.lang.Image core.image [files...]
+ * which records while loading core.lisp and the files, then saves. A process then starts with
+ * Image.restore("core.image") instead of Compiler.load, or -Dlateral.image=core.image for EvalServer.
+ *
+ * Globals can be nil, booleans, numbers, strings, symbols, keywords, sequences and HashMaps of
+ * those, environments, and functions that don't capture anything. Interpreted functions are
+ * compiled when saved. Anything else, e.g. a closure, an atom or a channel, can't be saved.
+ *
+ * An image only works with the build of the compiler that saved it, and with the same
+ * -Dlateral.hiddenClasses setting, since hidden classes are named differently.
+ */
+public final class Image {
+    private static final int MAGIC = 0x4c415449; // LATI
+    private static final int VERSION = 1;
+
+    private static final byte NIL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte INTEGER = 3;
+    private static final byte LONG = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte STRING = 6;
+    private static final byte SYMBOL = 7;
+    private static final byte KEYWORD = 8;
+    private static final byte SEQUENCE = 9;
+    private static final byte MAP = 10;
+    private static final byte FUNCTION = 11;
+    private static final byte ENVIRONMENT = 12;
+
+    // the classes defined together by one ClassDefiner.defineClasses, and which of them a class is
+    private static final class Unit {
+        final byte[][] classBytes;
+        final int index;
+
+        Unit(byte[][] classBytes, int index) {
+            this.classBytes = classBytes;
+            this.index = index;
+        }
+    }
+
+    private static volatile boolean recording = Boolean.getBoolean("lateral.image.record");
+    // weak, so that recording doesn't keep classes alive. Units don't refer to their classes
+    private static final Map<Class<?>, Unit> RECORDED = Collections.synchronizedMap(new WeakHashMap<>());
+
+    private Image() {}
+
+    /**
+     * Turns keeping the bytes of newly defined classes on or off. Only functions defined while
+     * recording can be saved
+     */
+    public static void record(boolean on) {
+        recording = on;
+    }
+
+    public static boolean isRecording() {
+        return recording;
+    }
+
+    // called by ClassDefiner while recording
+    static void classesDefined(Class<?>[] classes, byte[][] classBytes) {
+        for(int i = 0; i < classes.length; i ++) {
+            RECORDED.put(classes[i], new Unit(classBytes, i));
+        }
+    }
+
+    /*
+    Layout, big endian:
+        int magic, int version, boolean hidden classes
+        int units, each: int classes, each: int length, bytes
+        int environments, each: string name
+        then for each environment:
+            int imports, each: string name
+            int aliases, each: string alias, string name
+            int globals, each: string symbol, value
+    Strings are an int length and UTF-8 bytes. Values are a tag byte followed by
+    nothing for NIL TRUE FALSE, an int, long or double for numbers, a string for STRING SYMBOL
+    KEYWORD and ENVIRONMENT, an int length and values for SEQUENCE, an int size and keys and
+    values for MAP, an int unit and int class for FUNCTION.
+     */
+
+    private static final class Writer {
+        final ByteArrayOutputStream globalBytes = new ByteArrayOutputStream();
+        final DataOutputStream globals = new DataOutputStream(globalBytes);
+        final IdentityHashMap<byte[][], Integer> unitIndexes = new IdentityHashMap<>();
+        final ArrayList<byte[][]> units = new ArrayList<>();
+        // the global being written, for error messages
+        Symbol symbol;
+
+        void writeEnvironments() throws IOException {
+            ArrayList<Environment> environments = new ArrayList<>(Environment.all());
+            globals.writeInt(environments.size());
+            for(Environment environment : environments) {
+                writeString(globals, environment.getName());
+            }
+            for(Environment environment : environments) {
+                globals.writeInt(environment.getImports().size());
+                for(Environment imported : environment.getImports()) {
+                    writeString(globals, imported.getName());
+                }
+                Map<String, Environment> aliases = new HashMap<>(environment.getAliases());
+                globals.writeInt(aliases.size());
+                for(Map.Entry<String, Environment> alias : aliases.entrySet()) {
+                    writeString(globals, alias.getKey());
+                    writeString(globals, alias.getValue().getName());
+                }
+                Map<Symbol, Object> definitions = environment.definitions();
+                globals.writeInt(definitions.size());
+                for(Map.Entry<Symbol, Object> definition : definitions.entrySet()) {
+                    symbol = definition.getKey();
+                    writeString(globals, symbol.toString());
+                    writeValue(definition.getValue());
+                }
+            }
+        }
+
+        void writeValue(Object value) throws IOException {
+            if(value == null) {
+                globals.writeByte(NIL);
+            } else if(value instanceof Boolean) {
+                globals.writeByte((Boolean) value ? TRUE : FALSE);
+            } else if(value instanceof Integer) {
+                globals.writeByte(INTEGER);
+                globals.writeInt((Integer) value);
+            } else if(value instanceof Long) {
+                globals.writeByte(LONG);
+                globals.writeLong((Long) value);
+            } else if(value instanceof Double) {
+                globals.writeByte(DOUBLE);
+                globals.writeDouble((Double) value);
+            } else if(value instanceof String) {
+                globals.writeByte(STRING);
+                writeString(globals, (String) value);
+            } else if(value instanceof Symbol) {
+                globals.writeByte(SYMBOL);
+                writeString(globals, value.toString());
+            } else if(value instanceof Keyword) {
+                globals.writeByte(KEYWORD);
+                writeString(globals, ((Keyword) value).getValue());
+            } else if(value instanceof Sequence) {
+                Sequence sequence = (Sequence) value;
+                globals.writeByte(SEQUENCE);
+                globals.writeInt(sequence.length());
+                for(Object element : sequence) {
+                    writeValue(element);
+                }
+            } else if(value instanceof HashMap) {
+                Map<?, ?> map = (Map<?, ?>) value;
+                globals.writeByte(MAP);
+                globals.writeInt(map.size());
+                for(Map.Entry<?, ?> entry : map.entrySet()) {
+                    writeValue(entry.getKey());
+                    writeValue(entry.getValue());
+                }
+            } else if(value instanceof Environment) {
+                globals.writeByte(ENVIRONMENT);
+                writeString(globals, ((Environment) value).getName());
+            } else if(value instanceof Function) {
+                writeFunction((Function) value);
+            } else {
+                throw new RuntimeException("can't save " + symbol + " in an image: " + value);
+            }
+        }
+
+        void writeFunction(Function function) throws IOException {
+            if(function instanceof InterpretedFunction) {
+                Function compiled = ((InterpretedFunction) function).compile();
+                if(compiled == null)
+                    throw new RuntimeException("can't save " + symbol + " in an image, it doesn't compile");
+                function = compiled;
+            }
+            Unit unit = RECORDED.get(function.getClass());
+            if(unit == null)
+                throw new RuntimeException("can't save " + symbol + " in an image, its class wasn't recorded");
+            try {
+                function.getClass().getConstructor();
+            } catch (NoSuchMethodException e) {
+                throw new RuntimeException("can't save " + symbol + " in an image, it is a closure");
+            }
+            Integer index = unitIndexes.get(unit.classBytes);
+            if(index == null) {
+                index = units.size();
+                unitIndexes.put(unit.classBytes, index);
+                units.add(unit.classBytes);
+            }
+            globals.writeByte(FUNCTION);
+            globals.writeInt(index);
+            globals.writeInt(unit.index);
+        }
+
+        void writeTo(Path path) throws IOException {
+            writeEnvironments();
+            globals.flush();
+            try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeBoolean(ClassDefiner.HIDDEN);
+                out.writeInt(units.size());
+                for(byte[][] unit : units) {
+                    out.writeInt(unit.length);
+                    for(byte[] classBytes : unit) {
+                        out.writeInt(classBytes.length);
+                        out.write(classBytes);
+                    }
+                }
+                globalBytes.writeTo(out);
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Saves every environment to path. Has to be called while recording
+     * @throws RuntimeException If a global can't be saved, see Image
+     */
+    public static void save(String path) throws IOException {
+        if(!recording)
+            throw new RuntimeException("can't save an image without recording, see Image.record");
+        new Writer().writeTo(Path.of(path));
+    }
+
+    private static final class Reader {
+        final ByteBuffer buffer;
+        Class<?>[][] units;
+        Function[][] functions;
+
+        Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        void read() {
+            if(buffer.getInt() != MAGIC)
+                throw new RuntimeException("not an image");
+            int version = buffer.getInt();
+            if(version != VERSION)
+                throw new RuntimeException("can't restore an image of version " + version + ", expected " + VERSION);
+            boolean hidden = buffer.get() != 0;
+            if(hidden != ClassDefiner.HIDDEN)
+                throw new RuntimeException("the image was saved with -Dlateral.hiddenClasses=" + hidden);
+
+            units = new Class<?>[buffer.getInt()][];
+            functions = new Function[units.length][];
+            for(int i = 0; i < units.length; i ++) {
+                byte[][] classBytes = new byte[buffer.getInt()][];
+                for(int j = 0; j < classBytes.length; j ++) {
+                    classBytes[j] = new byte[buffer.getInt()];
+                    buffer.get(classBytes[j]);
+                }
+                units[i] = ClassDefiner.defineClasses(classBytes);
+                functions[i] = new Function[classBytes.length];
+            }
+
+            Environment[] environments = new Environment[buffer.getInt()];
+            for(int i = 0; i < environments.length; i ++) {
+                String name = readString();
+                Environment environment = Environment.forName(name);
+                environments[i] = environment == null ? Environment.create(name) : environment;
+            }
+            for(Environment environment : environments) {
+                for(int i = buffer.getInt(); i > 0; i --) {
+                    environment.addImport(Environment.forName(readString()));
+                }
+                for(int i = buffer.getInt(); i > 0; i --) {
+                    String alias = readString();
+                    environment.addAlias(alias, Environment.forName(readString()));
+                }
+                for(int i = buffer.getInt(); i > 0; i --) {
+                    Symbol symbol = Symbol.makeSymbol(readString());
+                    environment.define(symbol, readValue());
+                }
+            }
+        }
+
+        Object readValue() {
+            byte tag = buffer.get();
+            switch(tag) {
+                case NIL:
+                    return null;
+                case TRUE:
+                    return Boolean.TRUE;
+                case FALSE:
+                    return Boolean.FALSE;
+                case INTEGER:
+                    return buffer.getInt();
+                case LONG:
+                    return buffer.getLong();
+                case DOUBLE:
+                    return buffer.getDouble();
+                case STRING:
+                    return readString();
+                case SYMBOL:
+                    return Symbol.makeSymbol(readString());
+                case KEYWORD:
+                    return Keyword.makeKeyword(readString());
+                case SEQUENCE: {
+                    Object[] values = new Object[buffer.getInt()];
+                    for(int i = 0; i < values.length; i ++) {
+                        values[i] = readValue();
+                    }
+                    return Sequence.makeList(values);
+                }
+                case MAP: {
+                    int size = buffer.getInt();
+                    HashMap<Object, Object> map = new HashMap<>();
+                    for(int i = 0; i < size; i ++) {
+                        Object key = readValue();
+                        map.put(key, readValue());
+                    }
+                    return map;
+                }
+                case ENVIRONMENT:
+                    return Environment.forName(readString());
+                case FUNCTION:
+                    return function(buffer.getInt(), buffer.getInt());
+                default:
+                    throw new RuntimeException("corrupt image, unknown value tag " + tag);
+            }
+        }
+
+        // one instance per class, so a function bound to several globals stays the same object
+        Function function(int unit, int index) {
+            if(functions[unit][index] == null) {
+                try {
+                    functions[unit][index] = (Function) units[unit][index].getConstructor().newInstance();
+                } catch (ReflectiveOperationException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return functions[unit][index];
+        }
+
+        String readString() {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Defines the classes of an image saved by save and binds its globals, creating the
+     * environments that don't exist yet. Globals already defined are replaced
+     */
+    public static void restore(String path) throws IOException {
+        try(FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            new Reader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())).read();
+        }
+    }
+
+    /**
+     * Usage: Image image-file [files...]
+     * Loads ./src/lisp/core.lisp and the files, and saves the image
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length < 1) {
+            System.err.println("usage: Image image-file [files...]");
+            System.exit(1);
+        }
+        record(true);
+        Compiler.load("./src/lisp/core.lisp");
+        for(int i = 1; i < args.length; i ++) {
+            Compiler.load(args[i]);
+        }
+        save(args[0]);
+    }
+}
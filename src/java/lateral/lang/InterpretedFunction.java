@@ -0,0 +1,109 @@
+package lateral.lang;
+
+import java.lang.reflect.Constructor;
+
+/**
+ * A function created by interpreted code, see Interpreter.
+ * Runs its body with the interpreter until its lambda gets hot, then forwards every call
+ * to an instance of the compiled class instead.
+ */
+public final class InterpretedFunction extends Function {
+    private final Interpreter.Lambda lambda;
+    private final Interpreter.Frame closure;
+    private Function compiled;
+
+    InterpretedFunction(Interpreter.Lambda lambda, Interpreter.Frame closure) {
+        this.lambda = lambda;
+        this.closure = closure;
+    }
+
+    public boolean isMacro() {
+        return lambda.isMacro;
+    }
+
+    public String toString() {
+        if(lambda.name == null)
+            return super.toString();
+        return String.format("#<%s %s>", lambda.isMacro ? "macro" : "function", lambda.name);
+    }
+
+    /**
+     * Found by Environment.dynamicFunction, which collects the arguments of any call into a Sequence
+     */
+    public Object invoke(Sequence args) {
+        Object[] values = new Object[args.length()];
+        for(int i = 0; i < values.length; i ++) {
+            values[i] = args.first();
+            args = args.rest();
+        }
+        return apply(values);
+    }
+
+    /**
+     * @return The compiled version of this function, or null if it is (still) interpreted
+     */
+    Function getCompiled() {
+        if(compiled == null && lambda.getCompiled() != null) {
+            compiled = lambda.newInstance(closure);
+            // defun'd functions also replace themselves in the environment
+            if(lambda.name != null && closure == null && lambda.environment.valueOf(lambda.name) == this)
+                lambda.environment.define(lambda.name, compiled);
+        }
+        return compiled;
+    }
+
+    private Function tierUp() {
+        lambda.compile();
+        return getCompiled();
+    }
+
+    /**
+     * Compiles the lambda now, however cold it is. Used when saving an Image
+     * @return The compiled version of this function, or null if it can't be compiled
+     */
+    Function compile() {
+        return tierUp();
+    }
+
+    /**
+     * Counts one iteration of a loop in the body, compiling the lambda once it is hot.
+     * The loop keeps running interpreted, later calls run compiled
+     */
+    void profileLoop() {
+        if(lambda.profile())
+            tierUp();
+    }
+
+    public Object apply(Object ... args) {
+        Function target = getCompiled();
+        if(target != null)
+            return target.apply(args);
+        if(lambda.profile() && (target = tierUp()) != null)
+            return target.apply(args);
+
+        Interpreter.Arity arity = lambda.arityFor(args.length);
+        if(arity == null)
+            throw new RuntimeException(this + " can't be applied to " + args.length + " arguments");
+        Object[] slots = new Object[arity.slotCount];
+        if(arity.isVarargs) {
+            int fixed = arity.paramCount - 1;
+            System.arraycopy(args, 0, slots, 0, fixed);
+            slots[fixed] = Sequence.makeList(args, fixed);
+        } else {
+            System.arraycopy(args, 0, slots, 0, args.length);
+        }
+
+        Interpreter.Frame frame = new Interpreter.Frame(slots, closure, this);
+        while(true) {
+            Object result = arity.body.eval(frame);
+            if(result != Interpreter.RECUR)
+                return result;
+            Interrupts.poll();
+            Object[] next = frame.recurArgs;
+            // recur is a tail call to this function, so a hot loop can finish in compiled code
+            if(lambda.profile() && !arity.isVarargs && (target = tierUp()) != null)
+                return target.apply(next);
+            System.arraycopy(next, 0, slots, 0, next.length);
+        }
+    }
+}
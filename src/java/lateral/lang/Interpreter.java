@@ -0,0 +1,743 @@
+package lateral.lang;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Tree walking interpreter for code that runs too rarely to be worth a class.
+ *
+ * Compiler.eval hands every top level form to the interpreter first. The macroexpanded
+ * form is analysed into a tree of Nodes, with locals resolved to frame slots up front,
+ * and then run directly. Forms the interpreter doesn't understand (asm-quote, or anything
+ * the compiler would reject) make the analysis give up, and the form is compiled instead.
+ *
+ * Functions defined by interpreted code are InterpretedFunctions. Each lambda counts its
+ * calls and recur iterations, and once it passes lateral.tierup (default 1000) it is
+ * recompiled with the bytecode compiler and every instance of it switches over.
+ *
+ * Set lateral.interpreter=false to compile everything like before.
+ */
+final class Interpreter {
+    private Interpreter() {}
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("lateral.interpreter", "true"));
+    // calls + recur iterations before a lambda is compiled, 0 or less to never compile
+    static final int TIER_UP_THRESHOLD = Integer.getInteger("lateral.tierup", 1000);
+
+    /**
+     * Thrown during analysis for anything the interpreter can't (or shouldn't) run.
+     * The caller falls back to the compiler, which also produces the same errors as before.
+     */
+    private static final class Unsupported extends RuntimeException {
+        static final Unsupported INSTANCE = new Unsupported();
+
+        private Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+
+    // returned by a recur node, the new arguments are in Frame.recurArgs
+    static final Object RECUR = new Object();
+
+    /**
+     * Locals of one function activation. Closures keep a copy of the frame they were created in,
+     * since let, loop and recur overwrite its slots.
+     */
+    static final class Frame {
+        final Object[] slots;
+        final Frame parent;
+        final InterpretedFunction self;
+        Object[] recurArgs;
+
+        Frame(Object[] slots, Frame parent, InterpretedFunction self) {
+            this.slots = slots;
+            this.parent = parent;
+            this.self = self;
+        }
+    }
+
+    // analysis time view of the function being analysed
+    private static final class FunctionContext {
+        final Symbol name;
+        int paramCount;
+        boolean isVarargs;
+        int slotCount = 0;
+
+        FunctionContext(Symbol name) {
+            this.name = name;
+        }
+    }
+
+    // analysis time lexical scope, one per function arity and let
+    private static final class Scope {
+        final Scope parent;
+        final FunctionContext function;
+        final HashMap<Symbol, Integer> bindings = new HashMap<>();
+        // number of variables if this is the scope of a loop, which recur in it jumps back to
+        int loopArity = -1;
+
+        Scope(Scope parent, FunctionContext function) {
+            this.parent = parent;
+            this.function = function;
+        }
+
+        /**
+         * @return The scope of the innermost loop in this function, or null
+         */
+        Scope loop() {
+            for(Scope scope = this; scope != null && scope.function == function; scope = scope.parent) {
+                if(scope.loopArity >= 0)
+                    return scope;
+            }
+            return null;
+        }
+
+        boolean contains(Symbol symbol) {
+            for(Scope scope = this; scope != null; scope = scope.parent) {
+                if(scope.bindings.containsKey(symbol))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    abstract static class Node {
+        abstract Object eval(Frame frame);
+    }
+
+    /**
+     * One parameter list and body of a lambda
+     */
+    static final class Arity {
+        // slots taken by parameters, including the :rest parameter
+        final int paramCount;
+        final boolean isVarargs;
+        final int slotCount;
+        final Node body;
+
+        Arity(int paramCount, boolean isVarargs, int slotCount, Node body) {
+            this.paramCount = paramCount;
+            this.isVarargs = isVarargs;
+            this.slotCount = slotCount;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Everything shared by the instances of one (function ...), (defun ...) or (defmacro ...) form,
+     * including the profile and the compiled class once it tiers up.
+     */
+    static final class Lambda extends Node {
+        final Symbol name;
+        final boolean isMacro;
+        // the original form, compiled on tier up. Null for top level forms, which only run once
+        final Sequence expr;
+        // scope the lambda was written in, used to find its captured variables when compiling
+        final Scope scope;
+        // environment the lambda was written in, its globals resolve there even when it is called elsewhere
+        final Environment environment = Environment.current();
+        // fixed arities indexed by argument count, may contain nulls
+        Arity[] arities = new Arity[0];
+        Arity varargs;
+
+        int calls = 0;
+        private boolean compileFailed = false;
+        private volatile Constructor<?> compiled;
+        // where each constructor argument of the compiled class lives, relative to the closure frame
+        private int[] capturedDepths;
+        private int[] capturedSlots;
+
+        Lambda(Symbol name, boolean isMacro, Sequence expr, Scope scope) {
+            this.name = name;
+            this.isMacro = isMacro;
+            this.expr = expr;
+            this.scope = scope;
+        }
+
+        Object eval(Frame frame) {
+            // capture the values of the locals now, like a compiled closure's constructor does
+            Frame closure = frame == null ? null : new Frame(frame.slots.clone(), frame.parent, frame.self);
+            return new InterpretedFunction(this, closure);
+        }
+
+        Arity arityFor(int argc) {
+            if(argc < arities.length && arities[argc] != null)
+                return arities[argc];
+            if(varargs != null && argc >= varargs.paramCount - 1)
+                return varargs;
+            return null;
+        }
+
+        /**
+         * Counts one call or recur iteration
+         * @return true when the lambda has just become hot enough to compile
+         */
+        boolean profile() {
+            return ++ calls == TIER_UP_THRESHOLD && expr != null;
+        }
+
+        Constructor<?> getCompiled() {
+            return compiled;
+        }
+
+        /**
+         * Compiles the original form with the bytecode compiler. Captured variables become
+         * constructor arguments of the compiled class, see newInstance.
+         * @return The constructor of the compiled class, or null if it couldn't be compiled
+         */
+        synchronized Constructor<?> compile() {
+            if(compiled != null || compileFailed)
+                return compiled;
+            Environment previous = Environment.setCurrent(environment);
+            try {
+                // every local visible to the lambda, innermost first
+                CompEnvir visible = new CompEnvir(null);
+                for(Scope s = scope; s != null; s = s.parent) {
+                    for(Symbol symbol : s.bindings.keySet()) {
+                        if(!visible.bindings.containsKey(symbol))
+                            visible.insert(symbol);
+                    }
+                }
+                FlightRecorder.CompileEvent event = FlightRecorder.beginCompile();
+                long start = CompilerMetrics.start();
+                Compiler compiler = new Compiler();
+                CompClass lambdaClass = compiler.compileLambda(expr, visible);
+                CompilerMetrics.end(CompilerMetrics.Phase.CODEGEN, start);
+                ArrayList<Symbol> captured = lambdaClass.getCaptured();
+                capturedDepths = new int[captured.size()];
+                capturedSlots = new int[captured.size()];
+                for(int i = 0; i < captured.size(); i ++) {
+                    int depth = 0;
+                    Scope s = scope;
+                    while(!s.bindings.containsKey(captured.get(i))) {
+                        if(s.parent != null && s.parent.function != s.function)
+                            depth ++;
+                        s = s.parent;
+                    }
+                    capturedDepths[i] = depth;
+                    capturedSlots[i] = s.bindings.get(captured.get(i));
+                }
+                compiled = compiler.defineClasses().getConstructors()[0];
+                compiler.compiled(event, name, expr, true);
+            } catch (RuntimeException e) {
+                // keep interpreting, the interpreter accepted this code so it still works
+                compileFailed = true;
+            } finally {
+                Environment.setCurrent(previous);
+            }
+            return compiled;
+        }
+
+        Function newInstance(Frame closure) {
+            Object[] args = new Object[capturedSlots.length];
+            for(int i = 0; i < args.length; i ++) {
+                Frame frame = closure;
+                for(int depth = capturedDepths[i]; depth > 0; depth --) {
+                    frame = frame.parent;
+                }
+                args[i] = frame.slots[capturedSlots[i]];
+            }
+            try {
+                return (Function) compiled.newInstance(args);
+            } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * @param expr A macroexpanded (defun ...) or (defmacro ...) form
+     * @return The function it defines, or null if it has to be compiled instead
+     */
+    static InterpretedFunction function(Sequence expr) {
+        try {
+            Lambda lambda = analyzeLambda(expr, null);
+            return new InterpretedFunction(lambda, null);
+        } catch (Unsupported e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param ast A macroexpanded top level form
+     * @return A function of no arguments that evaluates ast, or null if it has to be compiled instead
+     */
+    static InterpretedFunction topLevel(Object ast) {
+        try {
+            Lambda lambda = new Lambda(null, false, null, null);
+            FunctionContext function = new FunctionContext(null);
+            Node body = analyze(ast, new Scope(null, function), true);
+            lambda.arities = new Arity[] {new Arity(0, false, function.slotCount, body)};
+            return new InterpretedFunction(lambda, null);
+        } catch (Unsupported e) {
+            return null;
+        }
+    }
+
+    private static Node[] analyzeAll(Sequence forms, Scope scope) {
+        Node[] nodes = new Node[forms.length()];
+        for(int i = 0; i < nodes.length; i ++) {
+            nodes[i] = analyze(forms.first(), scope, false);
+            forms = forms.rest();
+        }
+        return nodes;
+    }
+
+    private static Object[] evalAll(Node[] nodes, Frame frame) {
+        Object[] values = new Object[nodes.length];
+        for(int i = 0; i < values.length; i ++) {
+            values[i] = nodes[i].eval(frame);
+        }
+        return values;
+    }
+
+    private static boolean isBound(Object head, Scope scope) {
+        return head instanceof Symbol && scope.contains((Symbol) head);
+    }
+
+    // mirrors Compiler.compileLambda
+    private static Lambda analyzeLambda(Sequence expr, Scope parent) {
+        Object head = expr.first();
+        Sequence forms = expr.rest();
+        Symbol name = null;
+        boolean isMacro = Compiler.DEFMACRO.equals(head);
+        if(Compiler.DEFUN.equals(head) || isMacro) {
+            if(!(expr.second() instanceof Symbol))
+                throw Unsupported.INSTANCE;
+            name = (Symbol) expr.second();
+            forms = forms.rest();
+        }
+
+        Lambda lambda = new Lambda(name, isMacro, expr, parent);
+        for(; !forms.isEmpty(); forms = forms.rest().rest()) {
+            if(!(forms.first() instanceof Sequence) || forms.rest().isEmpty())
+                throw Unsupported.INSTANCE;
+            FunctionContext function = new FunctionContext(name);
+            Scope scope = new Scope(parent, function);
+            for(Sequence params = (Sequence) forms.first(); !params.isEmpty(); params = params.rest()) {
+                Object param = params.first();
+                if(Compiler.REST.equals(param) && params.rest().rest().isEmpty()) {
+                    param = params.second();
+                    function.isVarargs = true;
+                    params = params.rest();
+                }
+                if(!(param instanceof Symbol))
+                    throw Unsupported.INSTANCE;
+                scope.bindings.put((Symbol) param, function.slotCount ++);
+            }
+            function.paramCount = function.slotCount;
+            Node body = analyze(forms.second(), scope, true);
+            Arity arity = new Arity(function.paramCount, function.isVarargs, function.slotCount, body);
+
+            if(arity.isVarargs) {
+                if(lambda.varargs != null)
+                    throw Unsupported.INSTANCE;
+                lambda.varargs = arity;
+            } else {
+                if(arity.paramCount >= lambda.arities.length)
+                    lambda.arities = java.util.Arrays.copyOf(lambda.arities, arity.paramCount + 1);
+                if(lambda.arities[arity.paramCount] != null)
+                    throw Unsupported.INSTANCE;
+                lambda.arities[arity.paramCount] = arity;
+            }
+        }
+        if(lambda.arities.length == 0 && lambda.varargs == null)
+            throw Unsupported.INSTANCE;
+        return lambda;
+    }
+
+    // mirrors Compiler.compile
+    private static Node analyze(Object ast, Scope scope, boolean isTail) {
+        ast = Compiler.macroExpand(ast);
+        if(ast instanceof Sequence) {
+            Sequence astSequence = (Sequence) ast;
+            if(astSequence.isEmpty())
+                throw Unsupported.INSTANCE;
+            Object head = astSequence.first();
+            Sequence body = astSequence.rest();
+            if(Compiler.LAMBDA.equals(head)) {
+                return analyzeLambda(astSequence, scope);
+            } else if(Compiler.LET.equals(head)) {
+                if(!(body.first() instanceof Sequence))
+                    throw Unsupported.INSTANCE;
+                Sequence bindings = (Sequence) body.first();
+                Scope letScope = new Scope(scope, scope.function);
+                int count = (bindings.length() + 1) / 2;
+                int[] slots = new int[count];
+                Node[] values = new Node[count];
+                for(int i = 0; i < count; i ++) {
+                    if(!(bindings.first() instanceof Symbol))
+                        throw Unsupported.INSTANCE;
+                    values[i] = analyze(bindings.second(), letScope, false);
+                    slots[i] = scope.function.slotCount ++;
+                    letScope.bindings.put((Symbol) bindings.first(), slots[i]);
+                    bindings = bindings.rest().rest();
+                }
+                return new Let(slots, values, analyze(body.second(), letScope, isTail));
+            } else if(Compiler.LOOP.equals(head)) {
+                if(!(body.first() instanceof Sequence))
+                    throw Unsupported.INSTANCE;
+                Sequence bindings = (Sequence) body.first();
+                Scope loopScope = new Scope(scope, scope.function);
+                int count = (bindings.length() + 1) / 2;
+                int[] slots = new int[count];
+                Node[] values = new Node[count];
+                for(int i = 0; i < count; i ++) {
+                    if(!(bindings.first() instanceof Symbol))
+                        throw Unsupported.INSTANCE;
+                    values[i] = analyze(bindings.second(), loopScope, false);
+                    slots[i] = scope.function.slotCount ++;
+                    loopScope.bindings.put((Symbol) bindings.first(), slots[i]);
+                    bindings = bindings.rest().rest();
+                }
+                loopScope.loopArity = count;
+                return new Loop(slots, values, analyze(body.second(), loopScope, true));
+            } else if(Compiler.RECUR.equals(head)) {
+                FunctionContext function = scope.function;
+                Scope loop = scope.loop();
+                if(!isTail || (loop != null && body.length() != loop.loopArity))
+                    throw Unsupported.INSTANCE;
+                if(loop == null && ((function.isVarargs && body.length() < function.paramCount - 1)
+                        || (!function.isVarargs && body.length() != function.paramCount)))
+                    throw Unsupported.INSTANCE;
+                return new Recur(analyzeAll(body, scope));
+            } else if(Compiler.QUOTE.equals(head)) {
+                checkQuotable(body.first());
+                return new Constant(body.first());
+            } else if(Compiler.LIST.equals(head)) {
+                return new ListNode(analyzeAll(body, scope));
+            } else if(Compiler.IF.equals(head)) {
+                return new If(analyze(body.first(), scope, false),
+                        analyze(body.second(), scope, isTail),
+                        analyze(body.third(), scope, isTail));
+            } else if(Compiler.ASM.equals(head)) {
+                // raw bytecode only makes sense compiled
+                throw Unsupported.INSTANCE;
+            } else if((Compiler.MAKE_ARRAY.equals(head) || Compiler.AGET.equals(head)
+                    || Compiler.ASET.equals(head) || Compiler.ALENGTH.equals(head)) && !isBound(head, scope)) {
+                if(!Compiler.MAKE_ARRAY.equals(head) && body.first() instanceof Keyword) {
+                    // the type hint only matters to the compiler
+                    if(!Compiler.ARRAY_TYPES.containsKey(body.first()))
+                        throw Unsupported.INSTANCE;
+                    body = body.rest();
+                }
+                return new ArrayOp((Symbol) head, analyzeAll(body, scope));
+            } else if(Compiler.STR.equals(head) && !isBound(head, scope)) {
+                return new Str(analyzeAll(body, scope));
+            } else if(Arithmetic.isOperator(head) && body.length() == 2 && !isBound(head, scope)) {
+                return new ArithmeticOp(Arithmetic.OPERATORS.get(head),
+                        analyze(body.first(), scope, false), analyze(body.second(), scope, false));
+            } else if(head instanceof Symbol && !isBound(head, scope)) {
+                if(head.equals(scope.function.name))
+                    return new SelfCall(analyzeAll(body, scope));
+                return new GlobalCall((Symbol) head, analyzeAll(body, scope));
+            } else if(Compiler.isInlinable(head, body.length())) {
+                // like the compiler, run the body of an immediately called function literal as a loop
+                Sequence lambda = (Sequence) Compiler.macroExpand(head);
+                Node[] values = analyzeAll(body, scope);
+                Scope loopScope = new Scope(scope, scope.function);
+                int[] slots = new int[values.length];
+                Sequence params = (Sequence) lambda.second();
+                for(int i = 0; i < slots.length; i ++, params = params.rest()) {
+                    slots[i] = scope.function.slotCount ++;
+                    loopScope.bindings.put((Symbol) params.first(), slots[i]);
+                }
+                loopScope.loopArity = slots.length;
+                return new Loop(slots, values, analyze(lambda.third(), loopScope, true));
+            } else {
+                return new Call(analyze(head, scope, false), analyzeAll(body, scope));
+            }
+        } else if(ast instanceof Symbol) {
+            int depth = 0;
+            for(Scope s = scope; s != null; s = s.parent) {
+                Integer slot = s.bindings.get(ast);
+                if(slot != null)
+                    return depth == 0 ? new Local(slot) : new ClosedLocal(depth, slot);
+                if(s.parent != null && s.parent.function != s.function)
+                    depth ++;
+            }
+            return new Global((Symbol) ast);
+        } else if(ast instanceof Integer || ast instanceof Long || ast instanceof Double
+                || ast instanceof String || ast instanceof Keyword) {
+            return new Constant(ast);
+        }
+        throw Unsupported.INSTANCE;
+    }
+
+    // same cases as Compiler.compileQuote
+    private static void checkQuotable(Object ast) {
+        if(ast instanceof Sequence) {
+            for(Object obj : (Sequence) ast) {
+                checkQuotable(obj);
+            }
+        } else if(!(ast instanceof Symbol || ast instanceof Keyword || ast instanceof String
+                || ast instanceof Integer || ast instanceof Long || ast instanceof Double)) {
+            throw Unsupported.INSTANCE;
+        }
+    }
+
+    static final class Constant extends Node {
+        final Object value;
+
+        Constant(Object value) {
+            this.value = value;
+        }
+
+        Object eval(Frame frame) {
+            return value;
+        }
+    }
+
+    static final class Local extends Node {
+        final int slot;
+
+        Local(int slot) {
+            this.slot = slot;
+        }
+
+        Object eval(Frame frame) {
+            return frame.slots[slot];
+        }
+    }
+
+    static final class ClosedLocal extends Node {
+        final int depth;
+        final int slot;
+
+        ClosedLocal(int depth, int slot) {
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        Object eval(Frame frame) {
+            for(int i = depth; i > 0; i --) {
+                frame = frame.parent;
+            }
+            return frame.slots[slot];
+        }
+    }
+
+    static final class Global extends Node {
+        final Symbol name;
+        final Environment environment = Environment.current();
+
+        Global(Symbol name) {
+            this.name = name;
+            LoadedFiles.globalUsed(name);
+        }
+
+        Object eval(Frame frame) {
+            Object value = environment.valueOf(name);
+            if(value == null && !environment.defines(name))
+                throw new RuntimeException(name + " does not exist in environment " + environment.getName());
+            return value;
+        }
+    }
+
+    static final class If extends Node {
+        final Node test;
+        final Node then;
+        final Node otherwise;
+
+        If(Node test, Node then, Node otherwise) {
+            this.test = test;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+
+        Object eval(Frame frame) {
+            return test.eval(frame) != null ? then.eval(frame) : otherwise.eval(frame);
+        }
+    }
+
+    static final class Let extends Node {
+        final int[] slots;
+        final Node[] values;
+        final Node body;
+
+        Let(int[] slots, Node[] values, Node body) {
+            this.slots = slots;
+            this.values = values;
+            this.body = body;
+        }
+
+        Object eval(Frame frame) {
+            for(int i = 0; i < slots.length; i ++) {
+                frame.slots[slots[i]] = values[i].eval(frame);
+            }
+            return body.eval(frame);
+        }
+    }
+
+    static final class Loop extends Node {
+        final int[] slots;
+        final Node[] values;
+        final Node body;
+
+        Loop(int[] slots, Node[] values, Node body) {
+            this.slots = slots;
+            this.values = values;
+            this.body = body;
+        }
+
+        Object eval(Frame frame) {
+            for(int i = 0; i < slots.length; i ++) {
+                frame.slots[slots[i]] = values[i].eval(frame);
+            }
+            while(true) {
+                Object result = body.eval(frame);
+                if(result != RECUR)
+                    return result;
+                Interrupts.poll();
+                Object[] next = frame.recurArgs;
+                for(int i = 0; i < slots.length; i ++) {
+                    frame.slots[slots[i]] = next[i];
+                }
+                // iterations count towards tier up, so the next call of a function that loops a lot is compiled
+                frame.self.profileLoop();
+            }
+        }
+    }
+
+    static final class Recur extends Node {
+        final Node[] args;
+
+        Recur(Node[] args) {
+            this.args = args;
+        }
+
+        Object eval(Frame frame) {
+            frame.recurArgs = evalAll(args, frame);
+            return RECUR;
+        }
+    }
+
+    static final class ListNode extends Node {
+        final Node[] elements;
+
+        ListNode(Node[] elements) {
+            this.elements = elements;
+        }
+
+        Object eval(Frame frame) {
+            return Sequence.makeList(evalAll(elements, frame));
+        }
+    }
+
+    static final class ArithmeticOp extends Node {
+        final String operation;
+        final Node left;
+        final Node right;
+
+        ArithmeticOp(String operation, Node left, Node right) {
+            this.operation = operation;
+            this.left = left;
+            this.right = right;
+        }
+
+        Object eval(Frame frame) {
+            Object a = left.eval(frame);
+            Object b = right.eval(frame);
+            switch(operation) {
+                case "add": return Arithmetic.add(a, b);
+                case "sub": return Arithmetic.sub(a, b);
+                case "mul": return Arithmetic.mul(a, b);
+                case "div": return Arithmetic.div(a, b);
+                case "lt": return Arithmetic.truth(Arithmetic.lt(a, b));
+                case "gt": return Arithmetic.truth(Arithmetic.gt(a, b));
+                case "le": return Arithmetic.truth(Arithmetic.le(a, b));
+                default: return Arithmetic.truth(Arithmetic.ge(a, b));
+            }
+        }
+    }
+
+    static final class ArrayOp extends Node {
+        final Symbol op;
+        final Node[] args;
+
+        ArrayOp(Symbol op, Node[] args) {
+            this.op = op;
+            this.args = args;
+        }
+
+        Object eval(Frame frame) {
+            Object[] values = evalAll(args, frame);
+            if(Compiler.MAKE_ARRAY.equals(op)) {
+                return PrimitiveArrays.makeArray(values[0], (Integer) values[1]);
+            } else if(Compiler.ALENGTH.equals(op)) {
+                return PrimitiveArrays.alength(values[0]);
+            } else if(Compiler.AGET.equals(op)) {
+                return PrimitiveArrays.aget(values[0], (Integer) values[1]);
+            }
+            PrimitiveArrays.aset(values[0], (Integer) values[1], values[2]);
+            return values[2];
+        }
+    }
+
+    static final class Str extends Node {
+        final Node[] args;
+
+        Str(Node[] args) {
+            this.args = args;
+        }
+
+        Object eval(Frame frame) {
+            StringBuilder sb = new StringBuilder();
+            for(Node arg : args) {
+                sb.append(arg.eval(frame));
+            }
+            return sb.toString();
+        }
+    }
+
+    static final class GlobalCall extends Node {
+        final Symbol name;
+        final Node[] args;
+        final Environment environment = Environment.current();
+
+        GlobalCall(Symbol name, Node[] args) {
+            this.name = name;
+            LoadedFiles.globalUsed(name);
+            this.args = args;
+        }
+
+        Object eval(Frame frame) {
+            Object[] values = evalAll(args, frame);
+            Object function = environment.valueOf(name);
+            if(function instanceof Function)
+                return ((Function) function).apply(values);
+            if(function == null && !environment.defines(name))
+                throw new RuntimeException("function " + name + " does not exist");
+            throw new TypeException(function + " can't be used as a function");
+        }
+    }
+
+    static final class SelfCall extends Node {
+        final Node[] args;
+
+        SelfCall(Node[] args) {
+            this.args = args;
+        }
+
+        Object eval(Frame frame) {
+            return frame.self.apply(evalAll(args, frame));
+        }
+    }
+
+    static final class Call extends Node {
+        final Node head;
+        final Node[] args;
+
+        Call(Node head, Node[] args) {
+            this.head = head;
+            this.args = args;
+        }
+
+        Object eval(Frame frame) {
+            Function function = (Function) head.eval(frame);
+            return function.apply(evalAll(args, frame));
+        }
+    }
+}
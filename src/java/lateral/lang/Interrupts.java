@@ -0,0 +1,20 @@
+package lateral.lang;
+
+/**
+ * Lets Lisp code running on an interrupted thread stop, e.g. an evaluation of EvalServer that
+ * timed out. Every recur polls, in compiled code and in the interpreter, so a runaway loop stops
+ * at its next iteration. Other code runs out of stack or finishes on its own, and blocking calls
+ * like take! on a channel throw InterruptedException anyway.
+ */
+public final class Interrupts {
+    private Interrupts() {}
+
+    /**
+     * Clears the interrupt of the current thread
+     * @throws RuntimeException If the current thread was interrupted
+     */
+    public static void poll() {
+        if(Thread.interrupted())
+            throw new RuntimeException("interrupted");
+    }
+}
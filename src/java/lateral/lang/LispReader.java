@@ -1,14 +1,61 @@
 package lateral.lang;
 
 import java.io.*;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Deque;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 
-// TODO: add line and column metadata to symbols
+/**
+ * Reads Lisp source into forms.
+ * The positions of list forms are kept in a side table keyed by form identity, so
+ * the compiler can map generated bytecode back to source lines. Symbols and other
+ * atoms don't get positions since they may be shared. The table only covers the
+ * last top level form, so it doesn't grow with the size of the file.
+ */
 public class LispReader {
+    private static final int BUFFER_SIZE = 1 << 16;
+
     private Reader stream;
-    private Deque<Character> deque = new ArrayDeque<>();
+    /*
+    Characters are read from the stream in bulk into buffer.
+    buffer[position, limit) are the characters that haven't been consumed yet.
+    If mark is not -1, buffer[mark, position) is a token that is still being read and
+    has to survive the next refill.
+     */
+    private char[] buffer = new char[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+    private int mark = -1;
+
+    private final String sourceName;
+    // offset of buffer[0] from the start of the stream
+    private long consumed = 0;
+    private int line = 1;
+    // offset of the first character of the current line from the start of the stream
+    private long lineStart = 0;
+    /*
+    Positions of the list forms of the last top level form, in the order they were read.
+    The identity map is only built when a position is asked for, so reading without
+    compiling doesn't pay for hashing.
+     */
+    private Object[] positionForms = new Object[64];
+    private long[] positionValues = new long[64];
+    private int positionCount = 0;
+    private IdentityHashMap<Object, Position> positions = null;
+
+    public static final class Position {
+        public final int line;
+        public final int column;
+
+        Position(int line, int column) {
+            this.line = line;
+            this.column = column;
+        }
+
+        public String toString() {
+            return line + ":" + column;
+        }
+    }
 
     static Symbol QUOTE = Symbol.makeSymbol("quote");
     static Symbol UNQUOTE = Symbol.makeSymbol("unquote");
@@ -17,84 +64,149 @@ public class LispReader {
     static Symbol CONCAT = Symbol.makeSymbol("concat");
 
     public LispReader(Reader reader) {
+        this(reader, null);
+    }
+
+    public LispReader(Reader reader, String sourceName) {
         this.stream = reader;
+        this.sourceName = sourceName;
     }
 
     public static LispReader fileReader(String path) throws IOException {
-        return new LispReader(new BufferedReader(new FileReader(path)));
+        // no BufferedReader needed, the reader does its own buffering
+        return new LispReader(new FileReader(path), new File(path).getName());
+    }
+
+    /**
+     * @return The file name forms are read from, or null if they don't come from a file
+     */
+    public String getSourceName() {
+        return sourceName;
+    }
+
+    /**
+     * @return The position of a list form read by this reader, or null if form wasn't read by this reader
+     */
+    public Position getPosition(Object form) {
+        if(positions == null) {
+            positions = new IdentityHashMap<>(positionCount * 2);
+            for(int i = 0; i < positionCount; i ++) {
+                long value = positionValues[i];
+                positions.put(positionForms[i], new Position((int) (value >>> 32), (int) value));
+            }
+        }
+        return positions.get(form);
+    }
+
+    /**
+     * @return The line of a list form read by this reader, or -1 if form wasn't read by this reader
+     */
+    public int getLine(Object form) {
+        Position position = getPosition(form);
+        return position == null ? -1 : position.line;
     }
 
     public static LispReader stringReader(String value) {
         return new LispReader(new StringReader(value));
     }
 
-    private boolean hasNextChar() throws IOException {
-        if (deque.isEmpty()) {
-            int next = stream.read();
-            if (next == -1)
-                return false;
-            else {
-                deque.addLast((char) next);
-                return true;
-            }
-        } else {
+    /**
+     * Makes sure there is at least one unconsumed character in the buffer.
+     * @return false if the stream is exhausted
+     */
+    private boolean fill() throws IOException {
+        if(position < limit)
             return true;
+        int keep = 0;
+        consumed += mark == -1 ? limit : mark;
+        if(mark != -1) {
+            // move the partial token to the front, growing the buffer if the token fills it
+            keep = limit - mark;
+            char[] next = keep == buffer.length ? new char[buffer.length * 2] : buffer;
+            System.arraycopy(buffer, mark, next, 0, keep);
+            buffer = next;
+            mark = 0;
         }
+        int count;
+        do {
+            count = stream.read(buffer, keep, buffer.length - keep);
+        } while(count == 0);
+        position = keep;
+        limit = count == -1 ? keep : keep + count;
+        return count != -1;
     }
 
-    private char nextChar() throws IOException {
-        if(!deque.isEmpty()) {
-            return deque.removeFirst();
-        } else {
-            return (char)stream.read();
-        }
+    // called with position at a newline that is about to be consumed
+    private void newLine() {
+        line ++;
+        lineStart = consumed + position + 1;
     }
 
-    private char peekChar() throws IOException {
-        if(deque.isEmpty()) {
-            int next = stream.read();
-            if(next != -1)
-                deque.addLast((char) next);
-            return (char) next;
-        } else {
-            return deque.peekFirst();
-        }
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r' || c == '\f';
     }
 
     private void consumeWhitespace() throws IOException {
-        while(hasNextChar()) {
-            char c = peekChar();
-            if(c != ' ' && c != '\n') {
-                break;
+        while(fill()) {
+            while(position < limit && isWhitespace(buffer[position])) {
+                if(buffer[position] == '\n')
+                    newLine();
+                position ++;
             }
-            nextChar();
+            if(position < limit)
+                return;
         }
     }
 
     private void consumeComment() throws IOException {
-        while(hasNextChar()) {
-            char c = peekChar();
-            if(c == '\n')
-                break;
-            nextChar();
+        while(fill()) {
+            while(position < limit && buffer[position] != '\n')
+                position ++;
+            if(position < limit)
+                return;
         }
     }
 
     private String consumeString() throws IOException {
-        StringBuilder sb = new StringBuilder();
-        while(hasNextChar()) {
-            char c = peekChar();
+        mark = position;
+        while(fill()) {
+            char c = buffer[position];
             if(c == '"') {
-                nextChar();
-                break;
+                String value = new String(buffer, mark, position - mark);
+                position ++;
+                mark = -1;
+                return value;
             } else if (c == '\\'){
                 // escape sequences
+                mark = -1;
                 throw new RuntimeException();
+            } else if (c == '\n') {
+                newLine();
+            }
+            position ++;
+        }
+        // EOF before the closing quote
+        String value = new String(buffer, mark, position - mark);
+        mark = -1;
+        return value;
+    }
+
+    /**
+     * Reads the rest of a symbol, keyword or number whose first character was just consumed
+     */
+    private String consumeToken() throws IOException {
+        mark = position - 1;
+        read: while(fill()) {
+            while(position < limit) {
+                char c = buffer[position];
+                if(c == '(' || c == ')' || isWhitespace(c))
+                    break read;
+                position ++;
             }
-            sb.append(c);
-            nextChar();
         }
-        return sb.toString();
+        String value = new String(buffer, mark, position - mark);
+        mark = -1;
+        return value;
     }
 
     Object readAtom(String value) {
@@ -105,21 +217,34 @@ public class LispReader {
         if(value.charAt(0) == ':') {
             return Keyword.makeKeyword(value.substring(1));
         } else if('0' <= value.charAt(0) && value.charAt(0) <= '9') {
-            // TODO: other numerical literals
-            return Integer.parseInt(value);
+            return readNumber(value);
         } else if('-' == value.charAt(0) && value.length() > 1 &&
                 '0' <= value.charAt(1) && value.charAt(1) <= '9') {
-            return Integer.parseInt(value);
+            return readNumber(value);
         } else {
             return Symbol.makeSymbol(value);
         }
     }
 
+    /**
+     * Integers are read as Integer, or as Long if they don't fit in an int.
+     * Anything with a decimal point or an exponent is read as a Double.
+     */
+    static Number readNumber(String value) {
+        if(value.indexOf('.') != -1 || value.indexOf('e') != -1 || value.indexOf('E') != -1) {
+            return Double.parseDouble(value);
+        }
+        long number = Long.parseLong(value);
+        if(Integer.MIN_VALUE <= number && number <= Integer.MAX_VALUE)
+            return (int) number;
+        return number;
+    }
+
     Sequence readList() throws IOException {
         ArrayList<Object> forms = new ArrayList<>();
         Object form;
-        while(hasNextChar()) {
-            form = readForm();
+        while(fill()) {
+            form = read();
             if(form != null && form.equals(')')) {
                 // end of list
                 return Sequence.makeList(forms.toArray());
@@ -131,31 +256,54 @@ public class LispReader {
     }
 
     Object readForm() throws IOException {
-        while(hasNextChar()) {
+        Arrays.fill(positionForms, 0, positionCount, null);
+        positionCount = 0;
+        positions = null;
+        return read();
+    }
+
+    private Object read() throws IOException {
+        while(true) {
             consumeWhitespace();
-            if(hasNextChar() && peekChar() == ';') {
+            if(fill() && buffer[position] == ';') {
                 consumeComment();
             } else {
                 break;
             }
         }
 
-        if(!hasNextChar())
+        if(!fill())
             return null;
 
-        char c = nextChar();
+        int formLine = line;
+        int formColumn = (int) (consumed + position - lineStart) + 1;
+        Object form = readFormBody();
+        if(form instanceof Sequence && !((Sequence) form).isEmpty()) {
+            if(positionCount == positionForms.length) {
+                positionForms = Arrays.copyOf(positionForms, positionCount * 2);
+                positionValues = Arrays.copyOf(positionValues, positionCount * 2);
+            }
+            positionForms[positionCount] = form;
+            positionValues[positionCount] = ((long) formLine << 32) | formColumn;
+            positionCount ++;
+        }
+        return form;
+    }
+
+    private Object readFormBody() throws IOException {
+        char c = buffer[position ++];
         if(c == '"') {
             return consumeString();
         } else if(c == '\'') {
-            return Sequence.makeList(QUOTE, readForm());
+            return Sequence.makeList(QUOTE, read());
         } else if(c == '`') {
             return readQuasiQuote();
         } else if(c == ',') {
-            if(hasNextChar() && peekChar() == '@') {
-                nextChar(); // consume '@'
-                return Sequence.makeList(UNQUOTE_SPLICING, readForm());
+            if(fill() && buffer[position] == '@') {
+                position ++; // consume '@'
+                return Sequence.makeList(UNQUOTE_SPLICING, read());
             } else {
-                return Sequence.makeList(UNQUOTE, readForm());
+                return Sequence.makeList(UNQUOTE, read());
             }
         }
         // reader macros here
@@ -166,23 +314,7 @@ public class LispReader {
             return ')';
         }
 
-        StringBuilder sb = new StringBuilder();
-        sb.append(c);
-        read: while(hasNextChar()) {
-            c = peekChar();
-            switch (c) {
-                case '(':
-                case ')':
-                case ' ':
-                case '\n':
-                    break read;
-                default:
-                    sb.append(c);
-                    nextChar();
-                    break;
-            }
-        }
-        return readAtom(sb.toString());
+        return readAtom(consumeToken());
     }
 
     /**
@@ -225,7 +357,7 @@ public class LispReader {
     }
 
     private Object readQuasiQuote() throws IOException {
-        Object quoteBody = readForm();
+        Object quoteBody = read();
         if(quoteBody == null) {
             throw new RuntimeException("Unexpected EOF in readQuasiQuote");
         } else if(quoteBody instanceof Sequence) {
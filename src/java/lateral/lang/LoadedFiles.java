@@ -0,0 +1,347 @@
+package lateral.lang;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the top level forms of every file loaded with Compiler.load, and which macros and
+ * globals each form used while it was evaluated, so that reload only evaluates what changed.
+ *
+ * Reloading a file compares its forms with the ones loaded last time. Forms that are still in
+ * the file unchanged are skipped, new and edited ones are evaluated in order. Then every form of
+ * any loaded file that used a macro affected by the reload is evaluated again, since its
+ * expansion may be different now. A macro is affected if it was redefined, or if its definition
+ * uses a global that was, e.g. a helper function, or an affected macro.
+ *
+ * So is every def whose value was computed from a global that was redefined, e.g.
+ * (def y (+ x 1)) after x changed, and then the defs using y and so on.
+ *
+ * Functions don't need their users evaluated again: the interpreter looks globals up on every
+ * use, and compiled call sites are relinked in place when a global is defined, see
+ * Environment.GlobalCallSite. Other top level forms, e.g. (print x), aren't run again.
+ *
+ * Forms removed from a file are not undone, their definitions stay.
+ */
+final class LoadedFiles {
+    // a top level form of a loaded file
+    private static final class Form {
+        final Object form;
+        // environment the form was evaluated in
+        final Environment before;
+        // environment current after it, which the next form of the file is evaluated in
+        Environment after;
+        // the global it defines, if it is a def, defun or defmacro
+        Symbol defines;
+        // whether it is a def, whose value is computed once
+        boolean isValue;
+        final Set<Symbol> macros = new HashSet<>();
+        final Set<Symbol> globals = new HashSet<>();
+
+        Form(Object form, Environment before) {
+            this.form = form;
+            this.before = before;
+        }
+    }
+
+    // the globals a reload redefined, and what that affects
+    private static final class Changes {
+        final Set<Symbol> changed = new HashSet<>();
+        // the form defining each global, built when first needed
+        private Map<Symbol, Form> definitions;
+        // whether each macro asked about is affected by changed as it is now
+        final Map<Symbol, Boolean> macros = new HashMap<>();
+
+        boolean add(Symbol name) {
+            if(!changed.add(name))
+                return false;
+            macros.clear();
+            return true;
+        }
+
+        Map<Symbol, Form> definitions() {
+            if(definitions == null)
+                definitions = LoadedFiles.definitions();
+            return definitions;
+        }
+
+        // record was evaluated again as replacement
+        void replaced(Form record, Form replacement) {
+            if(definitions == null)
+                return;
+            if(record.defines != null)
+                definitions.remove(record.defines, record);
+            if(replacement.defines != null)
+                definitions.put(replacement.defines, replacement);
+            macros.clear();
+        }
+    }
+
+    private static final ConcurrentHashMap<String, List<Form>> FILES = new ConcurrentHashMap<>();
+    // the form load or reload is evaluating on this thread
+    private static final ThreadLocal<Form> EVALUATING = new ThreadLocal<>();
+
+    private LoadedFiles() {}
+
+    // called while forms are expanded, analyzed and compiled
+
+    static void macroUsed(Symbol macro) {
+        Form form = EVALUATING.get();
+        if(form != null)
+            form.macros.add(macro);
+    }
+
+    static void globalUsed(Symbol global) {
+        Form form = EVALUATING.get();
+        if(form != null)
+            form.globals.add(global);
+    }
+
+    /**
+     * @param isValue true for a def, false for a defun or defmacro
+     */
+    static void defining(Symbol name, boolean isValue) {
+        Form form = EVALUATING.get();
+        if(form != null && form.defines == null) {
+            form.defines = name;
+            form.isValue = isValue;
+        }
+    }
+
+    private static String key(String filename) {
+        return Path.of(filename).toAbsolutePath().normalize().toString();
+    }
+
+    private static Object evaluate(Form record, LispReader source) {
+        Form outer = EVALUATING.get();
+        EVALUATING.set(record);
+        try {
+            return Compiler.eval(record.form, source);
+        } finally {
+            EVALUATING.set(outer);
+            record.after = Environment.current();
+        }
+    }
+
+    /**
+     * Evaluates every form of a file in order and remembers them for reload
+     */
+    static void load(String filename) throws IOException {
+        LispReader reader = LispReader.fileReader(filename);
+        ArrayList<Form> records = new ArrayList<>();
+        try {
+            Object form;
+            while((form = read(reader)) != null) {
+                Form record = new Form(form, Environment.current());
+                evaluate(record, reader);
+                records.add(record);
+            }
+        } finally {
+            FILES.put(key(filename), records);
+        }
+    }
+
+    private static Object read(LispReader reader) throws IOException {
+        long start = CompilerMetrics.start();
+        Object form = reader.readForm();
+        CompilerMetrics.end(CompilerMetrics.Phase.READ, start);
+        return form;
+    }
+
+    /**
+     * Evaluates the forms of a file that changed since it was last loaded, and the forms of
+     * every loaded file that use a macro affected by them. A file that wasn't loaded before is loaded.
+     * The current environment is left as it was
+     * @return The globals defined by the forms evaluated
+     */
+    static synchronized Sequence reload(String filename) throws IOException {
+        String key = key(filename);
+        List<Form> old = FILES.get(key);
+        LispReader reader = LispReader.fileReader(filename);
+        ArrayList<Object> forms = new ArrayList<>();
+        Object form;
+        while((form = read(reader)) != null) {
+            forms.add(form);
+        }
+
+        // old forms that may still be in the file, by shape
+        HashMap<Integer, ArrayDeque<Form>> unchanged = new HashMap<>();
+        if(old != null) {
+            for(Form record : old) {
+                unchanged.computeIfAbsent(hash(record.form), h -> new ArrayDeque<>()).add(record);
+            }
+        }
+        Changes changes = new Changes();
+        Set<Form> evaluated = Collections.newSetFromMap(new IdentityHashMap<>());
+        ArrayList<Object> defined = new ArrayList<>();
+        ArrayList<Form> records = new ArrayList<>();
+        Environment previous = Environment.current();
+        Environment environment = old == null || old.isEmpty() ? previous : old.get(0).before;
+        try {
+            for(Object next : forms) {
+                Form match = take(unchanged, next);
+                if(match != null && match.before == environment && !isAffected(match, changes)) {
+                    records.add(match);
+                    environment = match.after;
+                    continue;
+                }
+                Form record = new Form(next, environment);
+                Environment.setCurrent(environment);
+                evaluate(record, reader);
+                records.add(record);
+                evaluated.add(record);
+                environment = record.after;
+                if(record.defines != null && changes.add(record.defines))
+                    defined.add(record.defines);
+            }
+        } finally {
+            FILES.put(key, records);
+            Environment.setCurrent(previous);
+        }
+        // this file's forms were replaced
+        changes.definitions = null;
+
+        // forms, in this or other files, whose macros or values changed under them
+        boolean again = !changes.changed.isEmpty();
+        try {
+            while(again) {
+                again = false;
+                for(List<Form> file : FILES.values()) {
+                    for(int i = 0; i < file.size(); i ++) {
+                        Form record = file.get(i);
+                        if(evaluated.contains(record) || !isAffected(record, changes))
+                            continue;
+                        Form replacement = new Form(record.form, record.before);
+                        Environment.setCurrent(record.before);
+                        // the same form was expanded before, by macros or helpers that have changed since
+                        MacroCache.clear();
+                        evaluate(replacement, null);
+                        file.set(i, replacement);
+                        changes.replaced(record, replacement);
+                        evaluated.add(replacement);
+                        if(replacement.defines != null && changes.add(replacement.defines)) {
+                            defined.add(replacement.defines);
+                            again = true;
+                        }
+                    }
+                }
+            }
+        } finally {
+            Environment.setCurrent(previous);
+        }
+        return Sequence.makeList(defined.toArray());
+    }
+
+    /**
+     * Removes an old form equal to form from unchanged
+     * @return The old form, or null if there is none
+     */
+    private static Form take(HashMap<Integer, ArrayDeque<Form>> unchanged, Object form) {
+        ArrayDeque<Form> candidates = unchanged.get(hash(form));
+        if(candidates == null)
+            return null;
+        for(Iterator<Form> it = candidates.iterator(); it.hasNext(); ) {
+            Form candidate = it.next();
+            if(same(candidate.form, form)) {
+                it.remove();
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return Whether record has to be evaluated again: it uses an affected macro, or it is a def
+     * using a global that changed
+     */
+    private static boolean isAffected(Form record, Changes changes) {
+        if(record.isValue && !Collections.disjoint(record.globals, changes.changed))
+            return true;
+        return usesAffected(record, changes);
+    }
+
+    private static boolean usesAffected(Form record, Changes changes) {
+        if(record.macros.isEmpty() || changes.changed.isEmpty())
+            return false;
+        for(Symbol macro : record.macros) {
+            if(changes.macros.computeIfAbsent(macro,
+                    m -> affected(m, changes.changed, changes.definitions(), new HashSet<>())))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return Whether name was redefined, or its definition uses a global or macro that is affected
+     */
+    private static boolean affected(Symbol name, Set<Symbol> changed, Map<Symbol, Form> definitions,
+                                    Set<Symbol> visited) {
+        if(changed.contains(name))
+            return true;
+        if(!visited.add(name))
+            return false;
+        Form definition = definitions.get(name);
+        if(definition == null)
+            return false;
+        for(Symbol used : definition.globals) {
+            if(affected(used, changed, definitions, visited))
+                return true;
+        }
+        for(Symbol used : definition.macros) {
+            if(affected(used, changed, definitions, visited))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return The form defining each global, in any loaded file and environment
+     */
+    private static Map<Symbol, Form> definitions() {
+        HashMap<Symbol, Form> definitions = new HashMap<>();
+        for(List<Form> file : FILES.values()) {
+            for(Form record : file) {
+                if(record.defines != null)
+                    definitions.put(record.defines, record);
+            }
+        }
+        return definitions;
+    }
+
+    // forms are compared by shape, Sequences don't implement equals
+
+    private static int hash(Object form) {
+        if(form instanceof Sequence) {
+            int hash = 1;
+            for(Object element : (Sequence) form) {
+                hash = hash * 31 + hash(element);
+            }
+            return hash;
+        }
+        return Objects.hashCode(form);
+    }
+
+    private static boolean same(Object a, Object b) {
+        if(a instanceof Sequence && b instanceof Sequence) {
+            Sequence left = (Sequence) a;
+            Sequence right = (Sequence) b;
+            for(; !left.isEmpty() && !right.isEmpty(); left = left.rest(), right = right.rest()) {
+                if(!same(left.first(), right.first()))
+                    return false;
+            }
+            return left.isEmpty() && right.isEmpty();
+        }
+        return Objects.equals(a, b);
+    }
+}
@@ -0,0 +1,90 @@
+package lateral.lang;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the expansion of macro calls so that Compiler.macroExpand only runs each
+ * macro once per form. Forms are revisited a lot: eval expands before the interpreter
+ * analyzes, a form the interpreter can't handle is analyzed again by the compiler, and a
+ * hot interpreted function compiles its whole body again when it tiers up.
+ *
+ * Forms are keyed by identity and the current Environment, since two equal forms may
+ * expand differently (gensym), and the reader never hands out the same form twice.
+ * The cache is a bounded LRU, -Dlateral.macroCache sets the size, 0 turns it off. Every
+ * entry records the Environment.getMacroVersion it was expanded under and is dropped once a
+ * macro is redefined.
+ * Macros with side effects only run once per form with the cache on.
+ */
+final class MacroCache {
+    static final int SIZE = Integer.getInteger("lateral.macroCache", 4096);
+
+    // the same form can expand differently in another environment
+    private static final class IdentityKey {
+        final Object form;
+        final Environment environment;
+
+        IdentityKey(Object form) {
+            this.form = form;
+            this.environment = Environment.current();
+        }
+
+        public boolean equals(Object obj) {
+            return obj instanceof IdentityKey && ((IdentityKey) obj).form == form
+                    && ((IdentityKey) obj).environment == environment;
+        }
+
+        public int hashCode() {
+            return System.identityHashCode(form) * 31 + System.identityHashCode(environment);
+        }
+    }
+
+    private static final LinkedHashMap<IdentityKey, Object> EXPANSIONS =
+            new LinkedHashMap<>(64, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<IdentityKey, Object> eldest) {
+                    return size() > SIZE;
+                }
+            };
+    // macro version the expansions are valid for
+    private static int version = 0;
+
+    private MacroCache() {}
+
+    /**
+     * @return The full expansion of form, or null if it isn't cached
+     */
+    static synchronized Object get(Object form) {
+        if(SIZE <= 0)
+            return null;
+        int current = Environment.getMacroVersion();
+        if(version != current) {
+            EXPANSIONS.clear();
+            version = current;
+            return null;
+        }
+        return EXPANSIONS.get(new IdentityKey(form));
+    }
+
+    static synchronized void put(Object form, Object expansion) {
+        if(SIZE <= 0)
+            return;
+        int current = Environment.getMacroVersion();
+        if(version != current) {
+            EXPANSIONS.clear();
+            version = current;
+        }
+        EXPANSIONS.put(new IdentityKey(form), expansion);
+    }
+
+    /**
+     * Drops every expansion, e.g. when a function a macro calls was redefined, which doesn't
+     * change the macro version
+     */
+    static synchronized void clear() {
+        EXPANSIONS.clear();
+    }
+
+    static synchronized int size() {
+        return EXPANSIONS.size();
+    }
+}
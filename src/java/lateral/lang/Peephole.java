@@ -0,0 +1,416 @@
+package lateral.lang;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Peephole optimizer over the Sequence form of classes, run on CompClass.toTree before
+ * Assembler.buildClass. It cleans up after the compiler and asm-quote, which emit code one
+ * form at a time: boxed int literals that are unboxed straight away, casts to a type the value
+ * already has, t and nil tested for null, jumps to returns and to the next instruction,
+ * pushes that are popped, and code after a jump or return that can't be reached.
+ *
+ * Every rule is a row of RULES: a name and a function that looks at the code of one method at
+ * some index and either declines or consumes some instructions and emits their replacement.
+ * The rules are applied in table order at every index, and the method is rescanned until no
+ * rule matches, so rules can enable each other. Each rule counts its rewrites and the
+ * instructions they removed, which CompilerMetrics reports.
+ * -Dlateral.peephole=false turns the pass off.
+ */
+final class Peephole {
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("lateral.peephole", "true"));
+    // a method needing more passes than this is left as it is by then
+    private static final int MAX_PASSES = 16;
+
+    private static final Keyword POP = Keyword.makeKeyword("pop");
+    private static final Keyword SWAP = Keyword.makeKeyword("swap");
+    private static final Keyword ACONST_NULL = Keyword.makeKeyword("aconst_null");
+    private static final Set<Keyword> JUMPS = Set.of(Assembler.IFNULL, Assembler.IFNONNULL, Assembler.GOTO,
+            Assembler.IF_ICMPLT, Assembler.IF_ICMPNE, Assembler.IFNE, Assembler.IFEQ,
+            Keyword.makeKeyword("ifgt"), Keyword.makeKeyword("ifge"),
+            Keyword.makeKeyword("iflt"), Keyword.makeKeyword("ifle"),
+            Keyword.makeKeyword("if_icmpgt"), Keyword.makeKeyword("if_icmpge"),
+            Keyword.makeKeyword("if_icmple"));
+    // control never falls through these
+    private static final Set<Keyword> TERMINALS = Set.of(Assembler.GOTO, Assembler.ARETURN,
+            Assembler.RETURN, Assembler.IRETURN, Assembler.ATHROW);
+    private static final Set<Keyword> RETURNS = Set.of(Assembler.ARETURN, Assembler.RETURN, Assembler.IRETURN);
+
+    /**
+     * The code of one method while a pass runs over it
+     */
+    static final class Method {
+        final List<Object> code;
+        // index of every label
+        final Map<Symbol, Integer> labels = new HashMap<>();
+        // labels something jumps to
+        final Set<Symbol> targets = new HashSet<>();
+
+        Method(List<Object> code) {
+            this.code = code;
+            for(int i = 0; i < code.size(); i ++) {
+                Object insn = code.get(i);
+                Keyword op = op(insn);
+                if(Assembler.LABEL.equals(op)) {
+                    labels.put((Symbol) arg(insn, 0), i);
+                } else if(JUMPS.contains(op)) {
+                    targets.add((Symbol) arg(insn, 0));
+                } else if(Assembler.LOOKUPSWITCH.equals(op)) {
+                    targets.add((Symbol) arg(insn, 0));
+                    for(Object label : (Sequence) arg(insn, 2)) {
+                        targets.add((Symbol) label);
+                    }
+                }
+            }
+        }
+
+        Object get(int i) {
+            return i < code.size() ? code.get(i) : null;
+        }
+
+        /**
+         * @return The first instruction at or after the label that isn't a label or line number, or null
+         */
+        Object at(Symbol label) {
+            Integer i = labels.get(label);
+            if(i == null)
+                return null;
+            for(; i < code.size(); i ++) {
+                Keyword op = op(code.get(i));
+                if(!Assembler.LABEL.equals(op) && !Assembler.LINE.equals(op))
+                    return code.get(i);
+            }
+            return null;
+        }
+    }
+
+    interface Rewrite {
+        /**
+         * @param i Index of the first instruction to look at
+         * @param out Where the replacement goes
+         * @return Number of instructions replaced, 0 if the rule doesn't apply at i
+         */
+        int rewrite(Method method, int i, List<Object> out);
+    }
+
+    static final class Rule {
+        final String name;
+        final Rewrite rewrite;
+        final LongAdder hits = new LongAdder();
+        final LongAdder removed = new LongAdder();
+
+        Rule(String name, Rewrite rewrite) {
+            this.name = name;
+            this.rewrite = rewrite;
+        }
+    }
+
+    static final List<Rule> RULES = List.of(
+            // (:line a) (:line b): a covers no instructions
+            new Rule("line-line", (m, i, out) -> {
+                if(!is(m.get(i), Assembler.LINE) || !is(m.get(i + 1), Assembler.LINE))
+                    return 0;
+                out.add(m.get(i + 1));
+                return 2;
+            }),
+            // (:iconst n) Integer.valueOf (:checkcast Integer) Integer.intValue, from literals in asm-quote
+            new Rule("box-unbox", (m, i, out) -> {
+                if(!isCall(m.get(i), "java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;"))
+                    return 0;
+                int j = i + 1;
+                if(isCast(m.get(j), "java/lang/Integer") || isCast(m.get(j), "java/lang/Number"))
+                    j ++;
+                if(!isCall(m.get(j), "java/lang/Integer", "intValue", "()I")
+                        && !isCall(m.get(j), "java/lang/Number", "intValue", "()I"))
+                    return 0;
+                return j + 1 - i;
+            }),
+            // a cast to the type the previous instruction is known to produce
+            new Rule("known-cast", (m, i, out) -> {
+                Object cast = m.get(i + 1);
+                if(!is(cast, Assembler.CHECKCAST))
+                    return 0;
+                String type = resultType(m.get(i));
+                if(type == null || !type.equals(arg(cast, 0)))
+                    return 0;
+                out.add(m.get(i));
+                return 2;
+            }),
+            new Rule("object-cast", (m, i, out) -> isCast(m.get(i), "java/lang/Object") ? 1 : 0),
+            // (:checkcast X) (:astore n) (:aload n) (:checkcast X)
+            new Rule("stored-cast", (m, i, out) -> {
+                Object cast = m.get(i);
+                if(!is(cast, Assembler.CHECKCAST) || !is(m.get(i + 1), Assembler.ASTORE)
+                        || !is(m.get(i + 2), Assembler.ALOAD) || !isCast(m.get(i + 3), (String) arg(cast, 0))
+                        || !arg(m.get(i + 1), 0).equals(arg(m.get(i + 2), 0)))
+                    return 0;
+                out.add(cast);
+                out.add(m.get(i + 1));
+                out.add(m.get(i + 2));
+                return 4;
+            }),
+            // t and nil tested for null, e.g. (if t ...) from cond
+            new Rule("constant-test", (m, i, out) -> {
+                Object test = m.get(i + 1);
+                boolean ifnull = is(test, Assembler.IFNULL);
+                if(!ifnull && !is(test, Assembler.IFNONNULL))
+                    return 0;
+                Boolean isNull = constantNullness(m.get(i));
+                if(isNull == null)
+                    return 0;
+                if(isNull == ifnull)
+                    out.add(Sequence.makeList(Assembler.GOTO, arg(test, 0)));
+                return 2;
+            }),
+            // a value that is pushed and dropped
+            new Rule("push-pop", (m, i, out) -> {
+                if(!isPure(m.get(i)))
+                    return 0;
+                if(is(m.get(i + 1), POP))
+                    return 2;
+                if(is(m.get(i + 1), Assembler.RETURN)) {
+                    out.add(m.get(i + 1));
+                    return 2;
+                }
+                return 0;
+            }),
+            new Rule("swap-swap", (m, i, out) -> is(m.get(i), SWAP) && is(m.get(i + 1), SWAP) ? 2 : 0),
+            // (:goto L) (:label L)
+            new Rule("goto-next", (m, i, out) -> {
+                Object jump = m.get(i);
+                Object next = m.get(i + 1);
+                if(!is(jump, Assembler.GOTO) || !is(next, Assembler.LABEL) || !arg(jump, 0).equals(arg(next, 0)))
+                    return 0;
+                return 1;
+            }),
+            // a goto to a return is the return
+            new Rule("goto-return", (m, i, out) -> {
+                Object jump = m.get(i);
+                if(!is(jump, Assembler.GOTO))
+                    return 0;
+                Object target = m.at((Symbol) arg(jump, 0));
+                if(target == null || !RETURNS.contains(op(target)))
+                    return 0;
+                out.add(target);
+                return 1;
+            }),
+            // a jump to a goto jumps straight to where the goto goes
+            new Rule("jump-goto", (m, i, out) -> {
+                Object jump = m.get(i);
+                if(!JUMPS.contains(op(jump)))
+                    return 0;
+                Object target = m.at((Symbol) arg(jump, 0));
+                if(!is(target, Assembler.GOTO) || arg(target, 0).equals(arg(jump, 0)))
+                    return 0;
+                out.add(Sequence.makeList(op(jump), arg(target, 0)));
+                return 1;
+            }),
+            new Rule("unused-label", (m, i, out) -> {
+                Object label = m.get(i);
+                return is(label, Assembler.LABEL) && !m.targets.contains((Symbol) arg(label, 0)) ? 1 : 0;
+            }),
+            // nothing after a goto, return or throw runs until the next label
+            new Rule("dead-code", (m, i, out) -> {
+                if(!TERMINALS.contains(op(m.get(i))))
+                    return 0;
+                int j = i + 1;
+                while(j < m.code.size() && !is(m.get(j), Assembler.LABEL)) {
+                    j ++;
+                }
+                if(j == i + 1)
+                    return 0;
+                out.add(m.get(i));
+                return j - i;
+            })
+    );
+
+    private Peephole() {}
+
+    /**
+     * @param classTree A class from CompClass.toTree
+     * @return The same class with every method optimized
+     */
+    static Sequence optimize(Sequence classTree) {
+        if(!ENABLED)
+            return classTree;
+        ArrayList<Object> members = new ArrayList<>();
+        for(Object member : classTree) {
+            if(member instanceof Sequence && Assembler.DEFMETHOD.equals(((Sequence) member).first()))
+                member = optimizeMethod((Sequence) member);
+            members.add(member);
+        }
+        return new ArraySequence(members.toArray());
+    }
+
+    // (defmethod name descriptor meta code...)
+    private static Sequence optimizeMethod(Sequence method) {
+        ArrayList<Object> header = new ArrayList<>();
+        Sequence code = method;
+        for(int i = 0; i < 4; i ++, code = code.rest()) {
+            header.add(code.first());
+        }
+        ArrayList<Object> optimized = new ArrayList<>();
+        for(Object insn : code) {
+            optimized.add(insn);
+        }
+        header.addAll(optimize(optimized));
+        return new ArraySequence(header.toArray());
+    }
+
+    /**
+     * Applies RULES to the code of one method until none of them match
+     * @return The optimized code
+     */
+    static List<Object> optimize(List<Object> code) {
+        for(int pass = 0; pass < MAX_PASSES; pass ++) {
+            Method method = new Method(code);
+            ArrayList<Object> out = new ArrayList<>(code.size());
+            boolean changed = false;
+            for(int i = 0; i < code.size(); ) {
+                int replaced = 0;
+                for(Rule rule : RULES) {
+                    int size = out.size();
+                    replaced = rule.rewrite.rewrite(method, i, out);
+                    if(replaced > 0) {
+                        if(CompilerMetrics.ENABLED) {
+                            rule.hits.increment();
+                            rule.removed.add(replaced - (out.size() - size));
+                        }
+                        break;
+                    }
+                }
+                if(replaced == 0) {
+                    out.add(code.get(i));
+                    i ++;
+                } else {
+                    i += replaced;
+                    changed = true;
+                }
+            }
+            code = out;
+            if(!changed)
+                break;
+        }
+        return code;
+    }
+
+    static Keyword op(Object insn) {
+        if(insn instanceof Keyword)
+            return (Keyword) insn;
+        if(insn instanceof Sequence && ((Sequence) insn).first() instanceof Keyword)
+            return (Keyword) ((Sequence) insn).first();
+        return null;
+    }
+
+    private static Object arg(Object insn, int n) {
+        return ((Sequence) insn).nth(n + 1);
+    }
+
+    private static boolean is(Object insn, Keyword op) {
+        return op.equals(op(insn));
+    }
+
+    private static boolean isCast(Object insn, String type) {
+        return is(insn, Assembler.CHECKCAST) && type.equals(arg(insn, 0));
+    }
+
+    private static boolean isCall(Object insn, String owner, String name, String descriptor) {
+        Keyword op = op(insn);
+        return (Assembler.INVOKESTATIC.equals(op) || Assembler.INVOKEVIRTUAL.equals(op))
+                && owner.equals(arg(insn, 0)) && name.equals(arg(insn, 1)) && descriptor.equals(arg(insn, 2));
+    }
+
+    /**
+     * @return Whether insn only pushes one value and has no side effects
+     */
+    private static boolean isPure(Object insn) {
+        Keyword op = op(insn);
+        if(Assembler.ALOAD.equals(op) || Assembler.ICONST.equals(op)
+                || ACONST_NULL.equals(op) || Assembler.DUP.equals(op))
+            return true;
+        // dynamic constants run their bootstrap
+        return Assembler.LDC.equals(op) && !(arg(insn, 0) instanceof Sequence);
+    }
+
+    /**
+     * @return The internal name of the class of the value insn pushes, if it is known exactly
+     */
+    private static String resultType(Object insn) {
+        Keyword op = op(insn);
+        if(Assembler.NEW.equals(op))
+            return (String) arg(insn, 0);
+        if(Assembler.LDC.equals(op) && arg(insn, 0) instanceof String)
+            return "java/lang/String";
+        String descriptor = null;
+        if(Assembler.INVOKESTATIC.equals(op) || Assembler.INVOKEVIRTUAL.equals(op)
+                || Assembler.INVOKEINTERFACE.equals(op) || Assembler.INVOKESPECIAL.equals(op)) {
+            String method = (String) arg(insn, 2);
+            descriptor = method.substring(method.indexOf(')') + 1);
+        } else if(Assembler.GETSTATIC.equals(op) || Assembler.GETFIELD.equals(op)) {
+            descriptor = (String) arg(insn, 2);
+        }
+        if(descriptor == null || !descriptor.startsWith("L"))
+            return null;
+        return descriptor.substring(1, descriptor.length() - 1);
+    }
+
+    /**
+     * @return true if insn always pushes null, false if it never does, null if it isn't known.
+     * t and nil are looked up now rather than when the call site links, like the interpreter does
+     */
+    private static Boolean constantNullness(Object insn) {
+        Keyword op = op(insn);
+        if(ACONST_NULL.equals(op) || Assembler.NEW.equals(op))
+            return ACONST_NULL.equals(op);
+        if(Assembler.LDC.equals(op) && !(arg(insn, 0) instanceof Sequence))
+            return false;
+        if(Assembler.GETSTATIC.equals(op) && "java/lang/Boolean".equals(arg(insn, 0)))
+            return false;
+        if(Assembler.INVOKEDYNAMIC.equals(op)) {
+            Sequence handle = (Sequence) arg(insn, 0);
+            if(!"dynamicObject".equals(handle.second()) || ((Sequence) insn).length() != 6)
+                return null;
+            String name = (String) arg(insn, 3);
+            if(!"t".equals(name) && !"nil".equals(name))
+                return null;
+            Environment environment = Environment.forName((String) arg(insn, 4));
+            Symbol symbol = Symbol.makeSymbol(name);
+            if(environment == null || !environment.defines(symbol))
+                return null;
+            Object value = environment.valueOf(symbol);
+            if(value == null)
+                return true;
+            return value == Boolean.TRUE ? false : null;
+        }
+        return null;
+    }
+
+    static void reset() {
+        for(Rule rule : RULES) {
+            rule.hits.reset();
+            rule.removed.reset();
+        }
+    }
+
+    /**
+     * @return Number of rewrites by each rule, keyed by rule name
+     */
+    static Map<String, Long> getHits() {
+        Map<String, Long> hits = new LinkedHashMap<>();
+        for(Rule rule : RULES) {
+            hits.put(rule.name, rule.hits.sum());
+        }
+        return hits;
+    }
+
+    /**
+     * @return Number of instructions each rule removed, keyed by rule name
+     */
+    static Map<String, Long> getRemoved() {
+        Map<String, Long> removed = new LinkedHashMap<>();
+        for(Rule rule : RULES) {
+            removed.put(rule.name, rule.removed.sum());
+        }
+        return removed;
+    }
+}
@@ -0,0 +1,92 @@
+package lateral.lang;
+
+import java.util.Map;
+
+/**
+ * Runtime support for make-array, aget, aset and alength when the compiler can't
+ * tell which kind of array it is dealing with. When the type is known the compiler
+ * emits the array instructions directly instead of calling these.
+ *
+ * Elements are converted the same way in both cases: byte, short and int elements
+ * are read as Integer, long as Long, float and double as Double, char as Character
+ * and boolean as t or nil.
+ */
+public final class PrimitiveArrays {
+    private PrimitiveArrays() {}
+
+    static final Map<Keyword, Class<?>> ELEMENT_TYPES = Map.of(
+            Keyword.makeKeyword("boolean"), boolean.class,
+            Keyword.makeKeyword("byte"), byte.class,
+            Keyword.makeKeyword("char"), char.class,
+            Keyword.makeKeyword("short"), short.class,
+            Keyword.makeKeyword("int"), int.class,
+            Keyword.makeKeyword("long"), long.class,
+            Keyword.makeKeyword("float"), float.class,
+            Keyword.makeKeyword("double"), double.class,
+            Keyword.makeKeyword("object"), Object.class
+    );
+
+    public static Object makeArray(Object type, int length) {
+        Class<?> elementType = ELEMENT_TYPES.get(type);
+        if(elementType == null)
+            throw new TypeException(type + " is not an array type");
+        return java.lang.reflect.Array.newInstance(elementType, length);
+    }
+
+    public static boolean isTrue(Object value) {
+        return value != null;
+    }
+
+    public static int alength(Object array) {
+        if(array == null || !array.getClass().isArray())
+            throw new TypeException(array + " is not an array");
+        return java.lang.reflect.Array.getLength(array);
+    }
+
+    public static Object aget(Object array, int index) {
+        if(array instanceof Object[]) {
+            return ((Object[]) array)[index];
+        } else if(array instanceof double[]) {
+            return ((double[]) array)[index];
+        } else if(array instanceof int[]) {
+            return ((int[]) array)[index];
+        } else if(array instanceof long[]) {
+            return ((long[]) array)[index];
+        } else if(array instanceof float[]) {
+            return (double) ((float[]) array)[index];
+        } else if(array instanceof byte[]) {
+            return (int) ((byte[]) array)[index];
+        } else if(array instanceof short[]) {
+            return (int) ((short[]) array)[index];
+        } else if(array instanceof char[]) {
+            return ((char[]) array)[index];
+        } else if(array instanceof boolean[]) {
+            return Arithmetic.truth(((boolean[]) array)[index]);
+        }
+        throw new TypeException(array + " is not an array");
+    }
+
+    public static void aset(Object array, int index, Object value) {
+        if(array instanceof Object[]) {
+            ((Object[]) array)[index] = value;
+        } else if(array instanceof double[]) {
+            ((double[]) array)[index] = ((Number) value).doubleValue();
+        } else if(array instanceof int[]) {
+            ((int[]) array)[index] = ((Number) value).intValue();
+        } else if(array instanceof long[]) {
+            ((long[]) array)[index] = ((Number) value).longValue();
+        } else if(array instanceof float[]) {
+            ((float[]) array)[index] = ((Number) value).floatValue();
+        } else if(array instanceof byte[]) {
+            ((byte[]) array)[index] = ((Number) value).byteValue();
+        } else if(array instanceof short[]) {
+            ((short[]) array)[index] = ((Number) value).shortValue();
+        } else if(array instanceof char[]) {
+            ((char[]) array)[index] = (Character) value;
+        } else if(array instanceof boolean[]) {
+            ((boolean[]) array)[index] = isTrue(value);
+        } else {
+            throw new TypeException(array + " is not an array");
+        }
+    }
+}
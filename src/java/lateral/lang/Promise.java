@@ -0,0 +1,97 @@
+package lateral.lang;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A value that is delivered once, possibly by another thread, and read with deref.
+ *
+ * future runs a function on a virtual thread and delivers its result to a promise, so blocking
+ * work such as calling many services can be started from Lisp and waited for together.
+ * The first delivery wins, later ones are ignored. If the function of a future throws, deref
+ * rethrows the exception in the thread that reads it.
+ */
+public final class Promise implements Deref {
+    private final CompletableFuture<Object> value = new CompletableFuture<>();
+
+    /**
+     * Runs function with no arguments on a virtual thread, in the current environment
+     * @return A promise delivered with the function's result
+     */
+    public static Promise future(Function function) {
+        Promise promise = new Promise();
+        Environment environment = Environment.current();
+        VirtualThreads.EXECUTOR.execute(() -> {
+            Environment.setCurrent(environment);
+            try {
+                promise.deliver(function.invoke0());
+            } catch (Throwable e) {
+                promise.value.completeExceptionally(e);
+            }
+        });
+        return promise;
+    }
+
+    /**
+     * @return false if the promise was already delivered
+     */
+    public boolean deliver(Object obj) {
+        return value.complete(obj);
+    }
+
+    public boolean isRealized() {
+        return value.isDone();
+    }
+
+    /**
+     * Waits for the value
+     */
+    public Object deref() {
+        try {
+            return value.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    /**
+     * Waits at most timeoutMillis for the value
+     * @return The value, or timeoutValue if it wasn't delivered in time
+     */
+    public Object deref(long timeoutMillis, Object timeoutValue) {
+        try {
+            return value.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return timeoutValue;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    /**
+     * Throws e as it is if it is unchecked, otherwise wrapped
+     */
+    static RuntimeException rethrow(Throwable e) {
+        if(e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        if(e instanceof Error)
+            throw (Error) e;
+        throw new RuntimeException(e);
+    }
+
+    public String toString() {
+        if(!value.isDone())
+            return "#<promise pending>";
+        if(value.isCompletedExceptionally())
+            return "#<promise failed>";
+        return "#<promise " + value.join() + ">";
+    }
+}
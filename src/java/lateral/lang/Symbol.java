@@ -1,5 +1,7 @@
 package lateral.lang;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 public final class Symbol {
     private final String value;
     private final int hash;
@@ -14,12 +16,11 @@ public final class Symbol {
         return new Symbol(value);
     }
 
-    static private int gensymCount = -1;
+    static private final AtomicInteger gensymCount = new AtomicInteger();
 
     public static Symbol gensym(String prefix) {
-        gensymCount ++;
         // TODO: check if symbol exists already
-        return Symbol.makeSymbol(prefix + gensymCount);
+        return Symbol.makeSymbol(prefix + gensymCount.getAndIncrement());
     }
 
     public int hashCode() {
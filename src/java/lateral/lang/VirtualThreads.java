@@ -0,0 +1,32 @@
+package lateral.lang;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Virtual threads when the JVM has them. The build targets Java 17, so they are found reflectively
+ * and replaced by a cached pool of daemon threads on older JVMs.
+ */
+final class VirtualThreads {
+    // runs futures and other blocking work started from Lisp
+    static final ExecutorService EXECUTOR = newExecutor();
+
+    private VirtualThreads() {}
+
+    /**
+     * @return One virtual thread per task on Java 21 and later, otherwise a cached thread pool
+     */
+    static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(VirtualThreads::daemon);
+        }
+    }
+
+    static Thread daemon(Runnable runnable) {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -9,6 +9,70 @@
                             "load"
                             "(Ljava/lang/String;)Ljava/lang/Object;")))
 
+; evaluates only the forms of a loaded file that changed, and the ones using macros they affect
+(defun reload (file)
+  (asm-quote (asm-unquote file)
+             (:checkcast "java/lang/String")
+             (:invokestatic "lateral/lang/Compiler"
+                            "reload"
+                            "(Ljava/lang/String;)Llateral/lang/Sequence;")))
+
+; reads every form in a file of plain data without evaluating anything
+(defun read-data (file)
+  (asm-quote (asm-unquote file)
+             (:checkcast "java/lang/String")
+             (:invokestatic "lateral/lang/DataReader"
+                            "readFile"
+                            "(Ljava/lang/String;)Llateral/lang/Sequence;")))
+
+; a summary of where eval and load have spent their time, see CompilerMetrics.java
+(defun compiler-metrics ()
+  (asm-quote (:invokestatic "lateral/lang/CompilerMetrics"
+                            "report"
+                            "()Ljava/lang/String;")))
+
+; the functions that took the most time, when run with -Dlateral.profile=time or alloc
+; see FunctionProfile.java
+(defun profile-report ()
+  (profile-report 20)
+  (limit)
+  (asm-quote (asm-unquote limit)
+             (:checkcast "java/lang/Integer")
+             (:invokevirtual "java/lang/Integer" "intValue" "()I")
+             (:invokestatic "lateral/lang/FunctionProfile" "report" "(I)Ljava/lang/String;")))
+
+(defun profile-reset ()
+  (asm-quote (:invokestatic "lateral/lang/FunctionProfile" "reset" "()V")
+             :aconst_null))
+
+; environments, see Environment.java
+; definitions go into the current environment, which imports core
+(defun current-environment ()
+  (asm-quote (:invokestatic "lateral/lang/Environment" "current" "()Llateral/lang/Environment;")))
+
+; switches to the environment, creating it if needed
+(defun in-environment (name)
+  (asm-quote (asm-unquote name)
+             (:checkcast "java/lang/String")
+             (:invokestatic "lateral/lang/Environment" "inEnvironment"
+                            "(Ljava/lang/String;)Llateral/lang/Environment;")))
+
+; makes the definitions of another environment visible in the current one
+(defun import-environment (name)
+  (asm-quote (asm-unquote name)
+             (:checkcast "java/lang/String")
+             (:invokestatic "lateral/lang/Environment" "importEnvironment"
+                            "(Ljava/lang/String;)Llateral/lang/Environment;")))
+
+; (alias-environment "s" "strings") makes s/join refer to join in strings
+(defun alias-environment (alias name)
+  (asm-quote (asm-unquote alias)
+             (:checkcast "java/lang/String")
+             (asm-unquote name)
+             (:checkcast "java/lang/String")
+             (:invokestatic "lateral/lang/Environment" "aliasEnvironment"
+                            "(Ljava/lang/String;Ljava/lang/String;)Llateral/lang/Environment;")))
+
 (def t (asm-quote (:getstatic "java/lang/Boolean" "TRUE" "Ljava/lang/Boolean;")))
 (def nil (asm-quote :aconst_null))
 
@@ -18,21 +82,18 @@
 (def not nil?)
 
 (defun eq? (a b)
-  (if (and (nil? a) (nil? b))
-    t
-    (asm-quote (asm-unquote (if a a b))
-               (asm-unquote (if a b a))
-               ; args are swapped so a is never nil
-               ; this way Object.equals never throws NullPointerException
-               (:invokevirtual "java/lang/Object"
-                               "equals"
-                               "(Ljava/lang/Object;)Z")
-               (:ifeq falsebranch)
-               (asm-unquote t)
-               :areturn
-               (:label falsebranch)
-               ; implicit :areturn in asm-quote
-               (asm-unquote nil))))
+  ;; Objects.equals is true when both are nil, and never calls equals on nil
+  (asm-quote (asm-unquote a)
+             (asm-unquote b)
+             (:invokestatic "java/util/Objects"
+                            "equals"
+                            "(Ljava/lang/Object;Ljava/lang/Object;)Z")
+             (:ifeq falsebranch)
+             (asm-unquote t)
+             :areturn
+             (:label falsebranch)
+             ; implicit :areturn in asm-quote
+             (asm-unquote nil)))
 
 (defun print (x)
   (asm-quote (asm-unquote x)
@@ -41,46 +102,39 @@
              :swap
              (:invokevirtual "java/io/PrintStream" "println" "(Ljava/lang/Object;)V")))
 
+;;; The compiler turns binary calls of + - * / < > <= >= into type profiling
+;;; invokedynamic sites, see Bootstrapper.arithmetic.
+;;; These definitions are for higher order programming and other arities.
 (defun + (a b)
-  (asm-quote (asm-unquote a)
-             (:checkcast "java/lang/Integer")
-             (:invokevirtual "java/lang/Integer" "intValue" "()I")
-             (asm-unquote b)
-             (:checkcast "java/lang/Integer")
-             (:invokevirtual "java/lang/Integer" "intValue" "()I")
-             :iadd
-             (:invokestatic "java/lang/Integer" "valueOf" "(I)Ljava/lang/Integer;")))
+  (+ a b))
+
+(defun -
+  (a)   (- 0 a)
+  (a b) (- a b))
+
+(defun * (a b)
+  (* a b))
+
+(defun / (a b)
+  (/ a b))
+
+(defun < (a b)
+  (< a b))
 
 (defun > (a b)
-  (asm-quote (asm-unquote a)
-             (:checkcast "java/lang/Integer")
-             (:invokevirtual "java/lang/Integer" "intValue" "()I")
-             (asm-unquote b)
-             (:checkcast "java/lang/Integer")
-             (:invokevirtual "java/lang/Integer" "intValue" "()I")
-             (:if_icmple falsebranch)
-             (asm-unquote t)
-             :areturn
-             (:label falsebranch)
-             (asm-unquote nil)
-             :areturn))
+  (> a b))
 
-(defun inc (n)
-  (asm-quote (asm-unquote n)
-             (:checkcast "java/lang/Integer")
-             (:invokevirtual "java/lang/Integer" "intValue" "()I")
-             (:iconst 1)
-             :iadd
-             (:invokestatic "java/lang/Integer" "valueOf" "(I)Ljava/lang/Integer;")))
+(defun <= (a b)
+  (<= a b))
 
+(defun >= (a b)
+  (>= a b))
+
+(defun inc (n)
+  (+ n 1))
 
 (defun dec (n)
-  (asm-quote (asm-unquote n)
-             (:checkcast "java/lang/Integer")
-             (:invokevirtual "java/lang/Integer" "intValue" "()I")
-             (:iconst -1)
-             :iadd
-             (:invokestatic "java/lang/Integer" "valueOf" "(I)Ljava/lang/Integer;")))
+  (- n 1))
 
 (defun even? (n)
   (asm-quote (asm-unquote n)
@@ -321,26 +375,17 @@
 
 ;;; Measures wall time execution of clock in ms
 (defmacro time (form)
-  `(asm-quote
-    (:invokestatic "java/lang/System" "currentTimeMillis" "()J")
-    (asm-unquote ,form)
-    :dup_x2
-    :pop
-    (:invokestatic "java/lang/System" "currentTimeMillis" "()J")
-    :lsub
-    :lneg
-    ;; poor man's System.out.printf("Evaluation took %lms of real time%n");
-    (:getstatic "java/lang/System" "out" "Ljava/io/PrintStream;")
-    :dup
-    (:ldc "Evaluation took ") ; Stack: Object, long, out, out, String
-    (:invokevirtual "java/io/PrintStream" "print" "(Ljava/lang/String;)V") ; Stack: Object, long, out
-    :dup_x2
-    :dup_x2
-    :pop ; Stack: Object, out, out, long
-    (:invokevirtual "java/io/PrintStream" "print" "(J)V") ; Stack: Object, out
-    (:ldc "ms of real time") ; Stack: Object, out, String
-    ;; at the end, asm-quote implicitly returns the top object on the stack - i.e. the result of form
-    (:invokevirtual "java/io/PrintStream" "println" "(Ljava/lang/String;)V")))
+  (let (start  (gensym "start")
+        result (gensym "result"))
+    `(let (,start  (asm-quote (:invokestatic "java/lang/System" "currentTimeMillis" "()J")
+                              (:invokestatic "java/lang/Long" "valueOf" "(J)Ljava/lang/Long;"))
+           ,result ,form
+           _       (print (str "Evaluation took "
+                               (- (asm-quote (:invokestatic "java/lang/System" "currentTimeMillis" "()J")
+                                             (:invokestatic "java/lang/Long" "valueOf" "(J)Ljava/lang/Long;"))
+                                  ,start)
+                               "ms of real time")))
+       ,result)))
 
 (defun hashmap (:rest kvlist)
   (let (newmap (asm-quote (:new "java/util/HashMap")
@@ -415,3 +460,275 @@
            (if (f (first lst))
              (cons (first lst) acc)
              acc))))
+
+;;; ===================================
+;;;  ARRAYS
+;;; ===================================
+;;; make-array, aget, aset and alength are compiled inline, with direct array
+;;; instructions when the element type is known. These are for higher order programming.
+
+(defun make-array (type n)
+  (make-array type n))
+
+(defun aget (arr i)
+  (aget arr i))
+
+(defun aset (arr i value)
+  (aset arr i value))
+
+(defun alength (arr)
+  (alength arr))
+
+;;; ===================================
+;;;  STRINGS
+;;; ===================================
+;;; str is compiled inline to a StringConcatFactory call site, with literal strings and
+;;; numbers folded into its recipe. This is for higher order programming.
+
+(defun str (:rest parts)
+  (loop (sb    (asm-quote (:new "java/lang/StringBuilder")
+                          :dup
+                          (:invokespecial "java/lang/StringBuilder" "<init>" "()V"))
+         parts parts)
+    (if (empty? parts)
+      (asm-quote (asm-unquote sb)
+                 (:invokevirtual "java/lang/Object" "toString" "()Ljava/lang/String;"))
+      (recur (asm-quote (asm-unquote sb)
+                        (:checkcast "java/lang/StringBuilder")
+                        (asm-unquote (first parts))
+                        (:invokevirtual "java/lang/StringBuilder" "append"
+                                        "(Ljava/lang/Object;)Ljava/lang/StringBuilder;"))
+             (rest parts)))))
+
+;;; ===================================
+;;;  CONCURRENCY
+;;; ===================================
+;;; see Promise.java, Atom.java and Channel.java
+
+(defun promise ()
+  (asm-quote (:new "lateral/lang/Promise")
+             :dup
+             (:invokespecial "lateral/lang/Promise" "<init>" "()V")))
+
+;;; only the first delivery counts, returns the promise
+(defun deliver (p value)
+  (asm-quote (asm-unquote p)
+             (:checkcast "lateral/lang/Promise")
+             :dup
+             (asm-unquote value)
+             (:invokevirtual "lateral/lang/Promise" "deliver" "(Ljava/lang/Object;)Z")
+             :pop))
+
+;;; the value of an atom, or waits for the value of a promise or future,
+;;; at most timeout-ms before returning timeout-value
+(defun deref
+  (p)
+  (asm-quote (asm-unquote p)
+             (:checkcast "lateral/lang/Deref")
+             (:invokeinterface "lateral/lang/Deref" "deref" "()Ljava/lang/Object;"))
+
+  (p timeout-ms timeout-value)
+  (asm-quote (asm-unquote p)
+             (:checkcast "lateral/lang/Promise")
+             (asm-unquote timeout-ms)
+             (:checkcast "java/lang/Number")
+             (:invokevirtual "java/lang/Number" "longValue" "()J")
+             (asm-unquote timeout-value)
+             (:invokevirtual "lateral/lang/Promise" "deref" "(JLjava/lang/Object;)Ljava/lang/Object;")))
+
+(defun realized? (p)
+  (asm-quote (asm-unquote p)
+             (:checkcast "lateral/lang/Promise")
+             (:invokevirtual "lateral/lang/Promise" "isRealized" "()Z")
+             (:ifeq falsebranch)
+             (asm-unquote t)
+             :areturn
+             (:label falsebranch)
+             (asm-unquote nil)))
+
+;;; calls f with no arguments on a virtual thread
+(defun future-call (f)
+  (asm-quote (asm-unquote f)
+             (:checkcast "lateral/lang/Function")
+             (:invokestatic "lateral/lang/Promise" "future" "(Llateral/lang/Function;)Llateral/lang/Promise;")))
+
+;;; the body becomes a compiled function, which future-call invokes through invoke0
+(defmacro future (body)
+  (list 'future-call (list 'function '() body)))
+
+(defun atom (value)
+  (asm-quote (:new "lateral/lang/Atom")
+             :dup
+             (asm-unquote value)
+             (:invokespecial "lateral/lang/Atom" "<init>" "(Ljava/lang/Object;)V")))
+
+;;; sets the atom to (f value args...), retrying if another thread got there first
+(defun swap!
+  (a f)
+  (asm-quote (asm-unquote a)
+             (:checkcast "lateral/lang/Atom")
+             (asm-unquote f)
+             (:checkcast "lateral/lang/Function")
+             (:invokevirtual "lateral/lang/Atom" "swap" "(Llateral/lang/Function;)Ljava/lang/Object;"))
+
+  (a f x)
+  (asm-quote (asm-unquote a)
+             (:checkcast "lateral/lang/Atom")
+             (asm-unquote f)
+             (:checkcast "lateral/lang/Function")
+             (asm-unquote x)
+             (:invokevirtual "lateral/lang/Atom" "swap"
+                             "(Llateral/lang/Function;Ljava/lang/Object;)Ljava/lang/Object;"))
+
+  (a f x y)
+  (asm-quote (asm-unquote a)
+             (:checkcast "lateral/lang/Atom")
+             (asm-unquote f)
+             (:checkcast "lateral/lang/Function")
+             (asm-unquote x)
+             (asm-unquote y)
+             (:invokevirtual "lateral/lang/Atom" "swap"
+                             "(Llateral/lang/Function;Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;")))
+
+(defun reset! (a value)
+  (asm-quote (asm-unquote a)
+             (:checkcast "lateral/lang/Atom")
+             (asm-unquote value)
+             (:invokevirtual "lateral/lang/Atom" "reset" "(Ljava/lang/Object;)Ljava/lang/Object;")))
+
+;;; sets the atom to new if its value equals old
+(defun compare-and-set! (a old new)
+  (asm-quote (asm-unquote a)
+             (:checkcast "lateral/lang/Atom")
+             (asm-unquote old)
+             (asm-unquote new)
+             (:invokevirtual "lateral/lang/Atom" "compareAndSet" "(Ljava/lang/Object;Ljava/lang/Object;)Z")
+             (:ifeq falsebranch)
+             (asm-unquote t)
+             :areturn
+             (:label falsebranch)
+             (asm-unquote nil)))
+
+;;; f is called with (key atom old new) after every change
+(defun add-watch (a key f)
+  (asm-quote (asm-unquote a)
+             (:checkcast "lateral/lang/Atom")
+             (asm-unquote key)
+             (asm-unquote f)
+             (:checkcast "lateral/lang/Function")
+             (:invokevirtual "lateral/lang/Atom" "addWatch"
+                             "(Ljava/lang/Object;Llateral/lang/Function;)Llateral/lang/Atom;")))
+
+(defun remove-watch (a key)
+  (asm-quote (asm-unquote a)
+             (:checkcast "lateral/lang/Atom")
+             (asm-unquote key)
+             (:invokevirtual "lateral/lang/Atom" "removeWatch" "(Ljava/lang/Object;)Llateral/lang/Atom;")))
+
+;;; an unbounded channel, or one that buffers at most n values
+(defun chan
+  ()
+  (chan 0)
+
+  (n)
+  (asm-quote (:new "lateral/lang/Channel")
+             :dup
+             (asm-unquote n)
+             (:checkcast "java/lang/Number")
+             (:invokevirtual "java/lang/Number" "intValue" "()I")
+             (:invokespecial "lateral/lang/Channel" "<init>" "(I)V")))
+
+;;; waits for room, returns nil if the channel is closed
+(defun put! (ch value)
+  (asm-quote (asm-unquote ch)
+             (:checkcast "lateral/lang/Channel")
+             (asm-unquote value)
+             (:invokevirtual "lateral/lang/Channel" "put" "(Ljava/lang/Object;)Z")
+             (:ifeq falsebranch)
+             (asm-unquote t)
+             :areturn
+             (:label falsebranch)
+             (asm-unquote nil)))
+
+;;; waits for a value, returns nil once the channel is closed and empty.
+;;; Rethrows the exception of a go block or pipeline that failed the channel
+(defun take! (ch)
+  (asm-quote (asm-unquote ch)
+             (:checkcast "lateral/lang/Channel")
+             (:invokevirtual "lateral/lang/Channel" "take" "()Ljava/lang/Object;")))
+
+(defun close! (ch)
+  (asm-quote (asm-unquote ch)
+             (:checkcast "lateral/lang/Channel")
+             (:invokevirtual "lateral/lang/Channel" "close" "()V")
+             :aconst_null))
+
+(defun closed? (ch)
+  (asm-quote (asm-unquote ch)
+             (:checkcast "lateral/lang/Channel")
+             (:invokevirtual "lateral/lang/Channel" "isClosed" "()Z")
+             (:ifeq falsebranch)
+             (asm-unquote t)
+             :areturn
+             (:label falsebranch)
+             (asm-unquote nil)))
+
+;;; takes from whichever channel has a value first, returns (value channel)
+;;; or nil after timeout-ms
+(defun alts
+  (chans)
+  (alts chans -1)
+
+  (chans timeout-ms)
+  (asm-quote (asm-unquote chans)
+             (:checkcast "lateral/lang/Sequence")
+             (asm-unquote timeout-ms)
+             (:checkcast "java/lang/Number")
+             (:invokevirtual "java/lang/Number" "longValue" "()J")
+             (:invokestatic "lateral/lang/Channel" "alts" "(Llateral/lang/Sequence;J)Llateral/lang/Sequence;")))
+
+;;; calls f with no arguments on a virtual thread, returns a channel of its result
+(defun go-call (f)
+  (asm-quote (asm-unquote f)
+             (:checkcast "lateral/lang/Function")
+             (:invokestatic "lateral/lang/Channel" "go" "(Llateral/lang/Function;)Llateral/lang/Channel;")))
+
+(defmacro go (body)
+  (list 'go-call (list 'function '() body)))
+
+;;; a channel that receives the elements of lst and closes
+(defun to-chan
+  (lst)
+  (to-chan lst 64)
+
+  (lst n)
+  (asm-quote (asm-unquote lst)
+             (:checkcast "lateral/lang/Sequence")
+             (asm-unquote n)
+             (:checkcast "java/lang/Number")
+             (:invokevirtual "java/lang/Number" "intValue" "()I")
+             (:invokestatic "lateral/lang/Channel" "fromSequence"
+                            "(Llateral/lang/Sequence;I)Llateral/lang/Channel;")))
+
+;;; takes until the channel is closed, returns the values as a list.
+;;; Rethrows like take!
+(defun from-chan (ch)
+  (asm-quote (asm-unquote ch)
+             (:checkcast "lateral/lang/Channel")
+             (:invokevirtual "lateral/lang/Channel" "toSequence" "()Llateral/lang/Sequence;")))
+
+;;; n go blocks that put (f value) into out for every value taken from in,
+;;; out is closed after in. Order isn't kept when n > 1.
+;;; If f throws, out is failed with the exception and in is closed
+(defun pipeline (n f in out)
+  (asm-quote (asm-unquote n)
+             (:checkcast "java/lang/Number")
+             (:invokevirtual "java/lang/Number" "intValue" "()I")
+             (asm-unquote f)
+             (:checkcast "lateral/lang/Function")
+             (asm-unquote in)
+             (:checkcast "lateral/lang/Channel")
+             (asm-unquote out)
+             (:checkcast "lateral/lang/Channel")
+             (:invokestatic "lateral/lang/Channel" "pipeline"
+                            "(ILlateral/lang/Function;Llateral/lang/Channel;Llateral/lang/Channel;)Llateral/lang/Channel;")))